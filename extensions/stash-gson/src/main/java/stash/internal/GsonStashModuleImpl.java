@@ -16,6 +16,8 @@
 
 package stash.internal;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 
 import java.util.concurrent.atomic.AtomicReference;
@@ -27,11 +29,23 @@
 
 @Module
 public final class GsonStashModuleImpl {
+    private static final String TAG = GsonStashModuleImpl.class.getSimpleName();
     private static final GsonStashModuleImpl INSTANCE = new GsonStashModuleImpl();
 
     private final AtomicReference<GsonDbHook> gsonDbHook = new AtomicReference<GsonDbHook>();
 
-    private GsonStashModuleImpl() {}
+    private GsonStashModuleImpl() {
+        StashModuleImpl.getInstance().doOnInit(new Runnable() {
+            @Override public void run() {
+                // posted, so hooks registered right after init() are in place before the open fixes the hook
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override public void run() {
+                        preloadGsonDb();
+                    }
+                });
+            }
+        });
+    }
 
     @ExtensionMethod(Kind.Instance) public static GsonStashModuleImpl getInstance() {
         return INSTANCE;
@@ -45,10 +59,29 @@ private GsonStashModuleImpl() {}
         return gsonDbHook.get();
     }
 
+    /**
+     * Registers the hook and starts opening the gson db with its config in the background, so the first request
+     * doesn't wait for the disk cache to load.
+     */
     @ExtensionMethod(Kind.ReturnThis) public void registerGsonDbHook(@NonNull GsonDbHook hook) {
         if (!gsonDbHook.compareAndSet(null, hook)) {
             throw new IllegalStateException(
                     "Another strategy was already registered: " + gsonDbHook.get());
         }
+        preloadGsonDb();
+    }
+
+    /**
+     * Starts opening the gson db in the background. Runs on its own on the main thread right after {@code init()}, and
+     * when a {@link GsonDbHook} is registered, so a hook must be registered in the same main thread task as
+     * {@code init()}. Like the first access, this fixes the hook in place.
+     */
+    @ExtensionMethod(Kind.ReturnThis) public void preloadGsonDb() {
+        GsonDbHook hook = gsonDbHook.get();
+        if ((hook == null || hook.getGsonConfig() == null) && StashModuleImpl.getInstance().getContext() == null) {
+            StashLog.w(TAG, "can't preload gson db before init()");
+            return;
+        }
+        GsonStashesImpl.getInstance().open();
     }
 }
@@ -19,9 +19,11 @@
 import android.content.Context;
 import android.support.annotation.NonNull;
 
-import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
+import rx.functions.Func0;
 import sourcerer.ExtensionMethod;
 import sourcerer.ExtensionMethod.Kind;
 import stash.Stash;
@@ -29,15 +31,30 @@
 import stash.StashDb;
 import stash.StashKey;
 import stash.annotations.Stashes;
+import stash.plugins.GsonDbHook;
+import stash.stashdbs.AsyncDb;
 import stash.stashdbs.FileDb;
 import stash.stashdbs.GsonDb;
 
 @Stashes
 public final class GsonStashesImpl {
+    private static final String TAG = GsonStashesImpl.class.getSimpleName();
     private static final GsonStashesImpl INSTANCE = new GsonStashesImpl();
+    private static final long MIN_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
     private final AtomicReference<GsonDb.Config> gsonConfig = new AtomicReference<GsonDb.Config>();
-    private volatile FileDb gsonDb;
+    private final Func0<Future<FileDb>> opener = new Func0<Future<FileDb>>() {
+        @Override public Future<FileDb> call() {
+            return open();
+        }
+    };
+    private volatile Future<FileDb> opening;
+    private volatile StashDb<String> gsonDb;
+    // guarded by this
+    private Future<FileDb> failed;
+    private long retryAt;
+    private long retryMillis = MIN_RETRY_MILLIS;
 
     private GsonStashesImpl() {}
 
@@ -45,23 +62,24 @@ private GsonStashesImpl() {}
         return INSTANCE;
     }
 
+    /**
+     * Returns the gson db, which opens in the background. Stashes skip it until it is open, or for at most
+     * {@link GsonDbHook#getOpenTimeoutMillis()} per request.
+     */
     @ExtensionMethod(Kind.Return) @NonNull public StashDb<String> gsonDb() {
-        FileDb gsonDb = this.gsonDb;
-        if (gsonDb == null || gsonDb.isClosed()) {
-            GsonDb.Config gsonConfig = getGsonConfig();
+        StashDb<String> gsonDb = this.gsonDb;
+        if (gsonDb == null) {
+            // fails fast without a config, like opening right away did
+            open();
             synchronized (this) {
                 gsonDb = this.gsonDb;
-                if (gsonDb == null || gsonDb.isClosed()) {
-                    try {
-                        this.gsonDb = gsonDb = GsonDb.open(gsonConfig);
-                    } catch (IOException e) {
-                        throw new IllegalStateException(
-                                "Unable to create GsonDb with config: " + gsonConfig, e);
-                    }
+                if (gsonDb == null) {
+                    long timeoutMillis = GsonStashModuleImpl.getInstance().getGsonDbHook().getOpenTimeoutMillis();
+                    this.gsonDb = gsonDb = StashDb.create(new AsyncDb<String>(opener, timeoutMillis));
                 }
             }
         }
-        return StashDb.create(gsonDb);
+        return gsonDb;
     }
 
     @ExtensionMethod(Kind.Return) @NonNull
@@ -74,6 +92,59 @@ public <T> Stash<T> gson(@NonNull Class<T> type, @NonNull StashKey<String> stash
         return gsonDb().getStash(type, stashKey);
     }
 
+    /**
+     * Starts opening the db in the background, unless it is open or already opening, and returns the pending open. A
+     * db that was closed is opened again. One that failed to open is retried with an exponential backoff, until then
+     * the failed open is returned and stashes skip the db.
+     */
+    @NonNull Future<FileDb> open() {
+        Future<FileDb> opening = this.opening;
+        if (opening == null || isClosedOrFailed(opening)) {
+            GsonDb.Config gsonConfig = getGsonConfig();
+            synchronized (this) {
+                opening = this.opening;
+                if (opening == null || shouldReopen(opening)) {
+                    StashLog.d(TAG, "opening gson db in the background");
+                    this.opening = opening = GsonDb.openAsync(gsonConfig);
+                }
+            }
+        }
+        return opening;
+    }
+
+    private boolean shouldReopen(Future<FileDb> opening) {
+        if (!opening.isDone()) {
+            return false;
+        }
+        FileDb db;
+        try {
+            db = opening.get();
+        } catch (Exception e) {
+            long now = System.currentTimeMillis();
+            if (failed != opening) {
+                failed = opening;
+                retryAt = now + retryMillis;
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                return false;
+            }
+            return now >= retryAt;
+        }
+        retryMillis = MIN_RETRY_MILLIS;
+        return db.isClosed();
+    }
+
+    /** @return whether the db was closed or failed to open, without taking the lock */
+    private static boolean isClosedOrFailed(Future<FileDb> opening) {
+        if (!opening.isDone()) {
+            return false;
+        }
+        try {
+            return opening.get().isClosed();
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
     @NonNull private GsonDb.Config getGsonConfig() {
         GsonDb.Config config = gsonConfig.get();
         if (config == null) {
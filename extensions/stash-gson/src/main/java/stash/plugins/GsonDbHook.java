@@ -20,6 +20,7 @@
 
 public class GsonDbHook {
     private static final GsonDbHook DEFAULT_INSTANCE = new GsonDbHook();
+    private static final long DEFAULT_OPEN_TIMEOUT_MILLIS = 200;
 
     protected GsonDbHook() {}
 
@@ -27,6 +28,14 @@ public GsonDb.Config getGsonConfig() {
         return null;
     }
 
+    /**
+     * How long a stash operation waits for the db, which is opened in the background, before it skips the db for
+     * that request. Negative waits for as long as the open takes.
+     */
+    public long getOpenTimeoutMillis() {
+        return DEFAULT_OPEN_TIMEOUT_MILLIS;
+    }
+
     public static GsonDbHook getDefaultInstance() {
         return DEFAULT_INSTANCE;
     }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import stash.Entry;
+import stash.KeyStash;
+import stash.Stash;
+import stash.StashCollection;
+import stash.StashDb;
+import stash.StashKey;
+import stash.internal.StashInterner;
+import stash.internal.StashLog;
+
+/**
+ * A {@link StashDb.Worker} in front of a db that is opened in the background. Gets and puts wait for the open for at
+ * most {@code timeoutMillis}. A get that times out misses, so the request falls back to the other stashes and the
+ * source instead of queueing behind the open. A put that times out is deferred: it is applied in the background once
+ * the open completes, ahead of any operation that reaches the open db later, so an older record on disk never
+ * outlives it. Removes, collection and bulk operations always wait, since dropping them would leave stale records on
+ * disk.
+ * <p>
+ * {@code opener} is asked for the pending open on every operation, so it can start a new one once a db was closed.
+ */
+public final class AsyncDb<K> implements StashDb.Worker<K> {
+    private static final String TAG = AsyncDb.class.getSimpleName();
+
+    private final Func0<? extends Future<? extends StashDb.Worker<K>>> opener;
+    private final long timeoutMillis;
+    private volatile Future<?> failed;
+    private final Object pendingLock = new Object();
+    // puts that timed out, in the order they were made
+    private final List<DeferredPut<K, ?>> pending = new ArrayList<DeferredPut<K, ?>>();
+    private volatile boolean hasPending;
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @SuppressWarnings("unchecked")
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, (K) key));
+        }
+    };
+
+    /**
+     * @param timeoutMillis how long stash operations wait for the open, negative to wait for as long as it takes
+     */
+    public AsyncDb(@NonNull Func0<? extends Future<? extends StashDb.Worker<K>>> opener, long timeoutMillis) {
+        this.opener = opener;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @NonNull @Override public <V> StashCollection<K, V> getCollection(@NonNull Class<V> type) {
+        return StashCollection.create(new CollectionWorker<V>(type));
+    }
+
+    @NonNull @Override
+    public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<? extends K> stashKey) {
+        return handles.intern(type, stashKey.getKey(), stashFactory);
+    }
+
+    @NonNull @Override public Iterable<? extends K> keys() {
+        StashDb.Worker<K> db = db(-1);
+        return db == null ? Collections.<K>emptyList() : db.keys();
+    }
+
+    @Override public boolean removeAll() {
+        StashDb.Worker<K> db = db(-1);
+        return db != null && db.removeAll();
+    }
+
+    @Override public boolean removeAll(@NonNull Collection<StashKey<? extends K>> stashKeys) {
+        StashDb.Worker<K> db = db(-1);
+        return db != null && db.removeAll(stashKeys);
+    }
+
+    /**
+     * Returns the opened db, or null if it didn't open within {@code timeoutMillis} or failed to open. A failed open
+     * is only logged once. Deferred puts are applied before the db is returned.
+     */
+    private StashDb.Worker<K> db(long timeoutMillis) {
+        Future<? extends StashDb.Worker<K>> future = opener.call();
+        try {
+            StashDb.Worker<K> db = timeoutMillis < 0 ? future.get() : future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            applyPending(db);
+            return db;
+        } catch (TimeoutException e) {
+            StashLog.d(TAG, "db not open after %d ms, skipping it", timeoutMillis);
+            return null;
+        } catch (ExecutionException e) {
+            if (failed != future) {
+                failed = future;
+                StashLog.e(TAG, "error opening db", e.getCause());
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /** Queues {@code put}, and starts waiting for the open in the background if nothing was queued yet. */
+    private void defer(DeferredPut<K, ?> put) {
+        synchronized (pendingLock) {
+            pending.add(put);
+            if (hasPending) {
+                return;
+            }
+            hasPending = true;
+        }
+        final Scheduler.Worker worker = Schedulers.io().createWorker();
+        worker.schedule(new Action0() {
+            @Override public void call() {
+                try {
+                    if (db(-1) == null) {
+                        dropPending();
+                    }
+                } finally {
+                    worker.unsubscribe();
+                }
+            }
+        });
+    }
+
+    /** Holds the lock while writing, so operations on the open db queue up behind the deferred puts. */
+    private void applyPending(StashDb.Worker<K> db) {
+        if (!hasPending) {
+            return;
+        }
+        synchronized (pendingLock) {
+            for (DeferredPut<K, ?> put : pending) {
+                try {
+                    put.apply(db);
+                } catch (Exception e) {
+                    StashLog.e(TAG, "error applying deferred put", e);
+                }
+            }
+            pending.clear();
+            hasPending = false;
+        }
+    }
+
+    private void dropPending() {
+        synchronized (pendingLock) {
+            // the failed open was logged already
+            StashLog.d(TAG, "db failed to open, dropping %d deferred puts", pending.size());
+            pending.clear();
+            hasPending = false;
+        }
+    }
+
+    private static final class DeferredPut<K, T> {
+        private final Class<T> type;
+        private final StashKey<K> stashKey;
+        private final Entry<T> entry;
+
+        private DeferredPut(Class<T> type, StashKey<K> stashKey, Entry<T> entry) {
+            this.type = type;
+            this.stashKey = stashKey;
+            this.entry = entry;
+        }
+
+        private void apply(StashDb.Worker<K> db) throws Exception {
+            db.getStash(type, stashKey).put(entry).asCallable().call();
+        }
+    }
+
+    private final class CollectionWorker<V> implements StashCollection.Worker<K, V> {
+        private final Class<V> type;
+
+        private CollectionWorker(Class<V> type) {
+            this.type = type;
+        }
+
+        @NonNull @Override public Stash<V> getStash(@NonNull StashKey<? extends K> stashKey) {
+            return AsyncDb.this.getStash(type, stashKey);
+        }
+
+        @NonNull @Override public List<K> keys() {
+            StashDb.Worker<K> db = db(-1);
+            if (db == null) {
+                return Collections.emptyList();
+            }
+            return db.getCollection(type).keys().asObservable().toList().toBlocking().single();
+        }
+
+        @NonNull @Override public Iterable<KeyStash<K, V>> getAll() {
+            final List<KeyStash<K, V>> stashes = new ArrayList<KeyStash<K, V>>();
+            for (K key : keys()) {
+                stashes.add(KeyStash.<K, V>create(handles.intern(type, key, stashFactory), key));
+            }
+            return stashes;
+        }
+
+        @Override public boolean removeAll() {
+            StashDb.Worker<K> db = db(-1);
+            return db != null && db.getCollection(type).removeAll().asObservable().toBlocking().single();
+        }
+
+        @Override public boolean removeAll(Collection<StashKey<? extends K>> stashKeys) {
+            StashDb.Worker<K> db = db(-1);
+            return db != null && db.getCollection(type).removeAll(stashKeys).asObservable().toBlocking().single();
+        }
+
+        @Override public int size() {
+            StashDb.Worker<K> db = db(-1);
+            return db == null ? 0 : db.getCollection(type).size().asObservable().toBlocking().single();
+        }
+    }
+
+    private final class Worker<T> implements Stash.Worker<T>, StashKey<K> {
+        private final Class<T> type;
+        private final K key;
+
+        private Worker(Class<T> type, K key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override public K getKey() {
+            return key;
+        }
+
+        @Override public Entry<T> get() throws Exception {
+            StashDb.Worker<K> db = db(timeoutMillis);
+            // lazy, so the body is only read if the entry is used
+            return db == null ? null : db.getStash(type, this).getLazy().asCallable().call();
+        }
+
+        @Override public T put(@NonNull Entry<T> entry) throws Exception {
+            StashDb.Worker<K> db = db(timeoutMillis);
+            if (db == null) {
+                defer(new DeferredPut<K, T>(type, this, entry));
+                return entry.getData();
+            }
+            return db.getStash(type, this).put(entry).asCallable().call();
+        }
+
+        @Override public boolean remove() throws Exception {
+            StashDb.Worker<K> db = db(-1);
+            return db != null && db.getStash(type, this).remove().asCallable().call();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import java.io.IOException;
+
+/**
+ * Encodes entry bodies before they are written by {@link FileCache}, usually to compress them. The id is stored with
+ * every encoded body, so a store keeps reading entries written with a codec it no longer writes with, as long as the
+ * codec is still registered in the {@link FileCache.Config}.
+ */
+public interface Codec {
+    /**
+     * Returns the id stored with encoded bodies, from 1 to 14. Id 0 marks bodies stored as is, and 15 bodies
+     * compressed with a trained dictionary, see {@link FileCache.Config.Builder#setDictionaries(boolean)}.
+     */
+    int getId();
+
+    byte[] encode(byte[] data) throws IOException;
+
+    byte[] decode(byte[] data) throws IOException;
+}
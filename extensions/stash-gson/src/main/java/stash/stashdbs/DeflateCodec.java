@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses bodies with raw deflate. Slower than {@link Lz4Codec}, but JSON typically shrinks to a fifth of its
+ * size or less.
+ * <pre>
+ * encoded: length:int deflated
+ * </pre>
+ */
+public final class DeflateCodec implements Codec {
+    public static final int ID = 1;
+
+    private final int level;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level a {@link Deflater} compression level
+     */
+    public DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    @Override public int getId() {
+        return ID;
+    }
+
+    @Override public byte[] encode(byte[] data) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteBuffer out = ByteBuffer.allocate(4 + data.length / 2 + 64);
+            out.putInt(data.length);
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) {
+                    out = grow(out);
+                }
+                int count = deflater.deflate(out.array(), out.position(), out.remaining());
+                out.position(out.position() + count);
+            }
+            byte[] encoded = new byte[out.position()];
+            System.arraycopy(out.array(), 0, encoded, 0, encoded.length);
+            return encoded;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override public byte[] decode(byte[] data) throws IOException {
+        if (data.length < 4) {
+            throw new IOException("truncated deflate body");
+        }
+        byte[] decoded = new byte[ByteBuffer.wrap(data).getInt()];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            int offset = 0;
+            while (offset < decoded.length) {
+                int count = inflater.inflate(decoded, offset, decoded.length - offset);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated deflate body");
+                }
+                offset += count;
+            }
+            return decoded;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
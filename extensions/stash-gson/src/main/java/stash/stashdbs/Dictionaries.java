@@ -0,0 +1,429 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import stash.internal.StashLog;
+
+/**
+ * Trains a preset deflate dictionary per name, usually a stashed type, from the first bodies written under it, and
+ * compresses later bodies with it. Small JSON bodies of one type repeat the same field names and enum values, which
+ * generic compression can't exploit within a single body.
+ * <p>
+ * Dictionaries are stored in the cache directory as {@code dict-<name>-<version>.bin} and never change. Bodies
+ * name the dictionary they were written with, so an entry keeps decoding after its type was retrained; the Adler-32
+ * the zlib stream carries only checks it is the same dictionary. A name is retrained every {@code retrainInterval}
+ * writes, up to {@link #MAX_VERSIONS} times. Training and saving run on the writing thread, outside the lock.
+ * <pre>
+ * encoded: length:int name:utf version:byte zlib
+ * </pre>
+ */
+final class Dictionaries {
+    private static final String TAG = Dictionaries.class.getSimpleName();
+    /** The codec id of dictionary compressed bodies, reserved in {@link FileCache}. */
+    static final int CODEC_ID = SegmentStore.MAX_CODEC;
+    static final int DEFAULT_SAMPLE_COUNT = 16;
+    static final int DEFAULT_RETRAIN_INTERVAL = 1024;
+    static final int MAX_VERSIONS = 4;
+    private static final Pattern FILE_NAME = Pattern.compile("dict-(.+)-(\\d+)\\.bin");
+    private static final int MAX_DICTIONARY_SIZE = 4 * 1024;
+    private static final int MAX_SAMPLE_SIZE = 16 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final int sampleCount;
+    private final int retrainInterval;
+    private final Map<String, Trainer> trainers = new HashMap<String, Trainer>();
+
+    Dictionaries(File dir, int sampleCount, int retrainInterval) {
+        this.dir = dir;
+        this.sampleCount = sampleCount;
+        this.retrainInterval = retrainInterval;
+        load();
+    }
+
+    /**
+     * Samples {@code body} for training and returns it compressed with the current dictionary of {@code name}, or
+     * null if there is none yet. Bodies that aren't JSON, such as binary codec bodies, share none of the dictionary's
+     * tokens; they are neither sampled nor compressed and null is returned.
+     */
+    byte[] encode(String name, byte[] body) throws IOException {
+        if (!isJson(body)) {
+            return null;
+        }
+        final Trainer trainer;
+        final List<byte[]> samples;
+        final int next;
+        synchronized (this) {
+            trainer = trainer(name);
+            samples = trainer.sample(body);
+            next = trainer.version + 1;
+        }
+        if (samples != null) {
+            train(name, trainer, next, samples);
+        }
+        final byte[] dictionary;
+        final int version;
+        synchronized (this) {
+            version = trainer.version;
+            dictionary = trainer.dictionaries[version];
+        }
+        return dictionary == null ? null : deflate(name, version, body, dictionary);
+    }
+
+    byte[] decode(byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final byte[] decoded;
+        final byte[] dictionary;
+        try {
+            decoded = new byte[in.readInt()];
+            dictionary = dictionary(in.readUTF(), in.readUnsignedByte());
+        } catch (EOFException e) {
+            throw new IOException("truncated dictionary body");
+        }
+        final int header = data.length - in.available();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, header, data.length - header);
+            int offset = 0;
+            while (offset < decoded.length) {
+                int count = inflater.inflate(decoded, offset, decoded.length - offset);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (inflater.getAdler() != adler(dictionary)) {
+                            throw new IOException("dictionary does not match body");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("truncated dictionary body");
+                    }
+                }
+                offset += count;
+            }
+            return decoded;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    synchronized int version(String name) {
+        Trainer trainer = trainers.get(name);
+        return trainer == null ? 0 : trainer.version;
+    }
+
+    private synchronized byte[] dictionary(String name, int version) throws IOException {
+        Trainer trainer = trainers.get(name);
+        byte[] dictionary = trainer == null || version > MAX_VERSIONS ? null : trainer.dictionaries[version];
+        if (dictionary == null) {
+            throw new IOException("unknown dictionary: " + name + " version " + version);
+        }
+        return dictionary;
+    }
+
+    private Trainer trainer(String name) {
+        Trainer trainer = trainers.get(name);
+        if (trainer == null) {
+            trainer = new Trainer();
+            trainers.put(name, trainer);
+        }
+        return trainer;
+    }
+
+    /**
+     * Trains version {@code next} of {@code name} from {@code samples}, saves it and only then makes it current. Runs
+     * without the lock, {@link Trainer#training} keeps other writers from starting the same training meanwhile.
+     */
+    private void train(String name, Trainer trainer, int next, List<byte[]> samples) throws IOException {
+        byte[] trained = null;
+        boolean saved = false;
+        try {
+            trained = train(samples);
+            if (trained.length == 0) {
+                return;
+            }
+            save(name, next, trained);
+            saved = true;
+        } finally {
+            synchronized (this) {
+                trainer.training = false;
+                if (saved) {
+                    trainer.version = next;
+                    trainer.dictionaries[next] = trained;
+                }
+            }
+        }
+        StashLog.d(TAG, "trained dictionary %s version %d, %d bytes", name, next, trained.length);
+    }
+
+    private static byte[] deflate(String name, int version, byte[] body, byte[] dictionary) throws IOException {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 64);
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(body.length);
+            header.writeUTF(name);
+            header.writeByte(version);
+            byte[] buffer = new byte[Math.min(8192, body.length + 64)];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            try {
+                int version = Integer.parseInt(matcher.group(2));
+                if (version < 1 || version > MAX_VERSIONS) {
+                    StashLog.w(TAG, "unexpected dictionary file %s", file.getName());
+                    continue;
+                }
+                Trainer trainer = trainer(matcher.group(1));
+                trainer.dictionaries[version] = read(file);
+                if (version > trainer.version) {
+                    trainer.version = version;
+                    trainer.nextTraining = retrainInterval;
+                }
+            } catch (IOException e) {
+                StashLog.w(TAG, "unable to read dictionary %s: %s", file.getName(), e.getMessage());
+            } catch (NumberFormatException e) {
+                StashLog.w(TAG, "unexpected dictionary file %s", file.getName());
+            }
+        }
+    }
+
+    private void save(String name, int version, byte[] dictionary) throws IOException {
+        File file = new File(dir, "dict-" + name + "-" + version + ".bin");
+        File tmp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(dictionary);
+            // entries written with it must never outlive the dictionary
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp);
+        }
+    }
+
+    /** Returns true if {@code body} starts with a JSON value, after any whitespace. */
+    static boolean isJson(byte[] body) {
+        for (byte b : body) {
+            switch (b) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    continue;
+                case '{':
+                case '[':
+                case '"':
+                case '-':
+                case 't':
+                case 'f':
+                case 'n':
+                    return true;
+                default:
+                    return b >= '0' && b <= '9';
+            }
+        }
+        return false;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int adler(byte[] bytes) {
+        Adler32 adler = new Adler32();
+        adler.update(bytes);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * Builds a dictionary from the quoted strings the samples have in common, such as field names with their colon
+     * and enum values. Deflate finds nearer matches cheaper, so the most valuable strings go last.
+     */
+    static byte[] train(List<byte[]> samples) {
+        final Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (byte[] sample : samples) {
+            Map<String, Integer> seen = new HashMap<String, Integer>();
+            for (String token : tokens(sample)) {
+                Integer count = seen.get(token);
+                seen.put(token, count == null ? 1 : count + 1);
+            }
+            for (Map.Entry<String, Integer> entry : seen.entrySet()) {
+                int[] count = counts.get(entry.getKey());
+                if (count == null) {
+                    count = new int[2];
+                    counts.put(entry.getKey(), count);
+                }
+                count[0]++;
+                count[1] += entry.getValue();
+            }
+        }
+        List<String> tokens = new ArrayList<String>();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            // only strings shared by several bodies are worth a place
+            if (entry.getValue()[0] > 1 || samples.size() == 1) {
+                tokens.add(entry.getKey());
+            }
+        }
+        Collections.sort(tokens, new Comparator<String>() {
+            @Override public int compare(String lhs, String rhs) {
+                long l = score(counts.get(lhs), lhs);
+                long r = score(counts.get(rhs), rhs);
+                return l < r ? 1 : (l == r ? lhs.compareTo(rhs) : -1);
+            }
+        });
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (String token : tokens) {
+            byte[] bytes = utf8(token);
+            if (size + bytes.length > MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+        ByteBuffer dictionary = ByteBuffer.allocate(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.put(chosen.get(i));
+        }
+        return dictionary.array();
+    }
+
+    private static long score(int[] count, String token) {
+        return (long) count[1] * token.length();
+    }
+
+    /** Splits JSON into quoted strings, each with the separator before it and a colon after it if present. */
+    private static List<String> tokens(byte[] json) {
+        List<String> tokens = new ArrayList<String>();
+        final int length = json.length;
+        int i = 0;
+        while (i < length) {
+            if (json[i] != '"') {
+                i++;
+                continue;
+            }
+            int start = (i > 0 && (json[i - 1] == ',' || json[i - 1] == '{' || json[i - 1] == '[')) ? i - 1 : i;
+            int end = i + 1;
+            while (end < length && json[end] != '"') {
+                end += json[end] == '\\' ? 2 : 1;
+            }
+            if (end >= length) {
+                break;
+            }
+            end++;
+            if (end < length && json[end] == ':') {
+                end++;
+            }
+            if (end - start > 3) {
+                tokens.add(new String(json, start, end - start, UTF_8));
+            }
+            i = end;
+        }
+        return tokens;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    private final class Trainer {
+        // by version, the first has none
+        private final byte[][] dictionaries = new byte[MAX_VERSIONS + 1][];
+        private final List<byte[]> samples = new ArrayList<byte[]>();
+        private int version;
+        private int writes;
+        private int nextTraining;
+        private boolean training;
+
+        /** Adds {@code body} to the samples, and returns them once there are enough to train the next version. */
+        private List<byte[]> sample(byte[] body) {
+            if (training || version >= MAX_VERSIONS || ++writes < nextTraining) {
+                return null;
+            }
+            samples.add(body.length > MAX_SAMPLE_SIZE ? Arrays.copyOf(body, MAX_SAMPLE_SIZE) : body);
+            if (samples.size() < sampleCount) {
+                return null;
+            }
+            List<byte[]> trainingSamples = new ArrayList<byte[]>(samples);
+            samples.clear();
+            writes = 0;
+            nextTraining = retrainInterval;
+            training = true;
+            return trainingSamples;
+        }
+    }
+}
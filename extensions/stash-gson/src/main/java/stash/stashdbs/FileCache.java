@@ -17,30 +17,41 @@
 package stash.stashdbs;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 
-import com.jakewharton.disklrucache.DiskLruCache;
-
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
 import stash.internal.StashLog;
 
 public class FileCache implements Closeable {
     private static final String TAG = FileCache.class.getSimpleName();
     private static final String DEFAULT_DIR = "stash";
     private static final int DEFAULT_VERSION = 1;
-    private static final int ENTRY_METADATA = 0;
-    private static final int ENTRY_BODY = 1;
-    private static final int ENTRY_COUNT = 2;
+    // below a few pages a plain read is cheaper than touching a mapping
+    private static final int MIN_MAPPED_BODY_SIZE = 8 * 1024;
+    private static final char GROUP_SEPARATOR = '/';
+    private static final String SHARD_PREFIX = "shard-";
+    private static final Pattern SHARD_NAME = Pattern.compile(SHARD_PREFIX + "\\d+");
     private static final char[] HEX_DIGITS =
             {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
@@ -50,12 +61,45 @@ public class FileCache implements Closeable {
      */
     private static final Map<File, Instance> sInstances = new HashMap<File, Instance>(5);
 
-    private final DiskLruCache cache;
+    private static final SegmentStore.Grouper GROUPER = new SegmentStore.Grouper() {
+        @Override public String group(String key) {
+            final int index = key.indexOf(GROUP_SEPARATOR);
+            return index < 0 ? null : key.substring(0, index);
+        }
+    };
+
+    private final SegmentStore[] stores;
+    // one worker for the background work of every shard, instead of a thread each
+    private final Scheduler.Worker background;
+    private final Dictionaries dictionaries;
     private final Config config;
 
     private FileCache(Config config) throws IOException {
         this.config = config;
-        this.cache = DiskLruCache.open(config.dir, config.version, ENTRY_COUNT, config.maxSize);
+        final File[] dirs = config.storeDirs();
+        this.stores = new SegmentStore[dirs.length];
+        this.background = dirs.length == 1 ? null : Schedulers.io().createWorker();
+        try {
+            deleteStaleStores(config.dir, dirs);
+            for (int i = 0; i < dirs.length; i++) {
+                // the budget is split evenly, each shard evicts on its own
+                stores[i] = SegmentStore.open(dirs[i], config.version, config.maxSize / dirs.length, GROUPER,
+                        background);
+            }
+            if (!config.dir.isDirectory() && !config.dir.mkdirs()) {
+                throw new IOException("unable to create dir: " + config.dir);
+            }
+        } catch (IOException e) {
+            try {
+                closeStores();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            throw e;
+        }
+        // loaded even when disabled, entries written with dictionaries stay readable
+        this.dictionaries = new Dictionaries(config.dir, Dictionaries.DEFAULT_SAMPLE_COUNT,
+                Dictionaries.DEFAULT_RETRAIN_INTERVAL);
     }
 
     public static synchronized FileCache open(final Config config) throws IOException {
@@ -96,14 +140,14 @@ private static synchronized void close(FileCache networkCache) throws IOExceptio
         final File cacheDir = networkCache.getDirectory();
         final Instance instance = sInstances.get(cacheDir);
         if (instance == null || instance.cache != networkCache) {
-            networkCache.cache.close();
+            networkCache.closeStores();
             return;
         }
 
         int openCount = instance.decrementOpenCount();
         StashLog.v(TAG, "%s open count decremented to %d", instance.cache, openCount);
         if (openCount <= 0) {
-            instance.cache.cache.close();
+            instance.cache.closeStores();
             sInstances.remove(cacheDir);
         }
     }
@@ -112,27 +156,108 @@ private static synchronized void delete(FileCache networkCache) throws IOExcepti
         final File cacheDir = networkCache.getDirectory();
         final Instance instance = sInstances.get(cacheDir);
         if (instance == null || instance.cache != networkCache) {
-            networkCache.cache.delete();
+            networkCache.deleteStores();
             return;
         }
 
-        instance.cache.cache.delete();
+        instance.cache.deleteStores();
         sInstances.remove(cacheDir);
     }
 
     /**
-     * Returns a 32 character string containing a hash of {@code s}.
+     * Deletes the stores an earlier layout of the cache left in {@code dir}: the shard dirs that aren't among
+     * {@code storeDirs}, and the files of an unsharded store if the cache is now sharded. Nothing else reclaims
+     * them once the shard count changes. Shards of an earlier layout in other dirs are left alone.
      */
-    private static String hash(String s) {
+    private static void deleteStaleStores(File dir, File[] storeDirs) throws IOException {
+        final Set<File> current = new HashSet<File>(storeDirs.length);
+        for (File storeDir : storeDirs) {
+            current.add(storeDir.getAbsoluteFile());
+        }
+        final boolean sharded = !current.contains(dir.getAbsoluteFile());
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (SHARD_NAME.matcher(file.getName()).matches() && !current.contains(file.getAbsoluteFile())) {
+                    StashLog.d(TAG, "deleting stale shard: %s", file);
+                    deleteContents(file);
+                    deleteFile(file);
+                }
+            } else if (sharded && SegmentStore.isStoreFile(file.getName())) {
+                StashLog.d(TAG, "deleting stale store file: %s", file);
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static void deleteContents(File dir) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (!file.delete() && file.exists()) {
+            throw new IOException("failed to delete file: " + file);
+        }
+    }
+
+    private void closeStores() throws IOException {
+        IOException error = null;
+        try {
+            for (SegmentStore store : stores) {
+                try {
+                    if (store != null) {
+                        store.close();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        } finally {
+            if (background != null) {
+                background.unsubscribe();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void deleteStores() throws IOException {
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] md5bytes = messageDigest.digest(s.getBytes("UTF-8"));
-            return hex(md5bytes);
-        } catch (NoSuchAlgorithmException e) {
-            throw new AssertionError(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError(e);
+            for (SegmentStore store : stores) {
+                store.delete();
+            }
+        } finally {
+            if (background != null) {
+                background.unsubscribe();
+            }
         }
+        if (stores.length > 1) {
+            // shard directories inside the cache dir, and the files they share such as dictionaries
+            File[] files = config.dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete() && file.exists() && !file.isDirectory()) {
+                        throw new IOException("failed to delete file: " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the shard that holds keys with {@code hash}. Uses the half of the hash the store's index doesn't.
+     */
+    private SegmentStore store(KeyHash hash) {
+        return stores.length == 1 ? stores[0] : stores[(int) ((hash.h2 & Long.MAX_VALUE) % stores.length)];
     }
 
     /**
@@ -148,10 +273,19 @@ public static String hex(byte[] data) {
         return new String(result);
     }
 
-    private static String toKey(String key) {
-        final String finalKey = hash(key.toUpperCase(Locale.US));
-        StashLog.d(TAG, "toKey(key: %s) -> %s", key, finalKey);
-        return finalKey;
+    /**
+     * Returns the key of {@code name} in {@code group}. Groups are indexed, see {@link #keys(String)}. A group must not
+     * contain {@code '/'}.
+     */
+    public static String key(String group, String name) {
+        return group + GROUP_SEPARATOR + name;
+    }
+
+    /**
+     * Returns the name part of a key built with {@link #key(String, String)}.
+     */
+    public static String name(String key) {
+        return key.substring(key.indexOf(GROUP_SEPARATOR) + 1);
     }
 
     public FileCache open() throws IOException {
@@ -159,10 +293,13 @@ public FileCache open() throws IOException {
     }
 
     public Entry get(String key) {
-        key = toKey(key);
-        DiskLruCache.Snapshot snapshot;
+        return get(Key.of(key));
+    }
+
+    public Entry get(Key key) {
+        SegmentStore.Snapshot snapshot;
         try {
-            snapshot = cache.get(key);
+            snapshot = store(key.hash).get(key.value, key.hash);
             if (snapshot == null) {
                 StashLog.v(TAG, "couldn't find snapshot for key: %s", key);
                 return null;
@@ -172,23 +309,116 @@ public Entry get(String key) {
             // Give up because the cache cannot be read.
             return null;
         }
-        return new Entry(snapshot);
+        return new Entry(this, snapshot);
     }
 
     public Editor edit(String key) throws IOException {
-        key = toKey(key);
-        DiskLruCache.Editor editor = cache.edit(key);
+        return edit(Key.of(key));
+    }
+
+    public Editor edit(Key key) throws IOException {
+        Editor editor = new Editor(this, key);
         StashLog.d(TAG, "edit(key: %s) -> editor: %s", key, editor);
-        return (editor == null) ? null : new Editor(editor);
+        return editor;
     }
 
     public boolean remove(String key) throws IOException {
-        key = toKey(key);
-        boolean success = cache.remove(key);
+        return remove(Key.of(key));
+    }
+
+    public boolean remove(Key key) throws IOException {
+        boolean success = store(key.hash).remove(key.value, key.hash);
         StashLog.d(TAG, "remove(key: %s) -> success? %s", key, success);
         return success;
     }
 
+    /**
+     * Commits {@code editors}, which must all come from this cache, as one group: their records are appended with a
+     * single write per shard. An editor that fails to complete aborts the whole group.
+     */
+    public void commitAll(List<Editor> editors) throws IOException {
+        Map<SegmentStore, List<SegmentStore.Write>> groups =
+                new LinkedHashMap<SegmentStore, List<SegmentStore.Write>>(stores.length);
+        for (Editor editor : editors) {
+            if (editor.cache != this) {
+                throw new IllegalArgumentException("editor belongs to another cache: " + editor.key);
+            }
+            List<SegmentStore.Write> writes = groups.get(editor.store);
+            if (writes == null) {
+                writes = new ArrayList<SegmentStore.Write>();
+                groups.put(editor.store, writes);
+            }
+            writes.add(editor.finish());
+        }
+        for (Map.Entry<SegmentStore, List<SegmentStore.Write>> group : groups.entrySet()) {
+            group.getKey().putAll(group.getValue());
+        }
+        StashLog.d(TAG, "committed %d editors as one group", editors.size());
+    }
+
+    /**
+     * Returns every stored key.
+     */
+    public List<String> keys() {
+        if (stores.length == 1) {
+            return stores[0].keys();
+        }
+        List<String> keys = new ArrayList<String>();
+        for (SegmentStore store : stores) {
+            keys.addAll(store.keys());
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the keys stored in {@code group}, in time proportional to their number.
+     */
+    public List<String> keys(String group) {
+        if (stores.length == 1) {
+            return stores[0].keys(group);
+        }
+        List<String> keys = new ArrayList<String>();
+        for (SegmentStore store : stores) {
+            keys.addAll(store.keys(group));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the groups that hold at least one key.
+     */
+    public List<String> groups() {
+        if (stores.length == 1) {
+            return stores[0].groups();
+        }
+        Set<String> groups = new LinkedHashSet<String>();
+        for (SegmentStore store : stores) {
+            groups.addAll(store.groups());
+        }
+        return new ArrayList<String>(groups);
+    }
+
+    /**
+     * Returns the number of keys stored in {@code group}, in constant time.
+     */
+    public int count(String group) {
+        int count = 0;
+        for (SegmentStore store : stores) {
+            count += store.count(group);
+        }
+        return count;
+    }
+
+    /**
+     * Removes every stored value, keeping the cache open.
+     */
+    public void clear() throws IOException {
+        for (SegmentStore store : stores) {
+            store.clear();
+        }
+        StashLog.d(TAG, "cleared cache in dir: %s", getDirectory());
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete all files in the cache directory
      * including files that weren't created by the cache.
@@ -197,8 +427,15 @@ public void delete() throws IOException {
         delete(this);
     }
 
+    /**
+     * Returns the number of bytes held by live records. Files on disk may be larger until compaction catches up.
+     */
     public long getSize() {
-        return cache.size();
+        long size = 0;
+        for (SegmentStore store : stores) {
+            size += store.size();
+        }
+        return size;
     }
 
     public long maxSize() {
@@ -206,7 +443,9 @@ public long maxSize() {
     }
 
     public void flush() throws IOException {
-        cache.flush();
+        for (SegmentStore store : stores) {
+            store.flush();
+        }
     }
 
     @Override
@@ -215,31 +454,92 @@ public void close() throws IOException {
     }
 
     public File getDirectory() {
-        return cache.getDirectory();
+        return config.dir;
     }
 
     public boolean isClosed() {
-        return cache.isClosed();
+        return stores[0].isClosed();
+    }
+
+    /**
+     * A key with its index hash computed once. Keys are matched exactly, case included. Keep one around to look the
+     * same key up repeatedly.
+     */
+    public static final class Key {
+        private final String value;
+        private final KeyHash hash;
+
+        private Key(String value, KeyHash hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+
+        public static Key of(String value) {
+            return new Key(value, KeyHash.of(value));
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            return value.equals(((Key) o).value);
+        }
+
+        @Override public int hashCode() {
+            return hash.hashCode();
+        }
+
+        @Override public String toString() {
+            return value;
+        }
     }
 
     public static final class Entry implements Closeable {
-        private final DiskLruCache.Snapshot snapshot;
+        private final FileCache cache;
+        private final SegmentStore.Snapshot snapshot;
 
-        private Entry(DiskLruCache.Snapshot snapshot) {
+        private Entry(FileCache cache, SegmentStore.Snapshot snapshot) {
+            this.cache = cache;
             this.snapshot = snapshot;
         }
 
         public InputStream getMetadata() {
-            return snapshot.getInputStream(ENTRY_METADATA);
+            return snapshot.getMetadata();
         }
 
-        public InputStream getBody() {
-            return snapshot.getInputStream(ENTRY_BODY);
+        /**
+         * Returns the body, decoded if it was stored with a {@link Codec}.
+         */
+        public InputStream getBody() throws IOException {
+            final int id = snapshot.getCodec();
+            if (id == 0) {
+                return snapshot.getBody();
+            } else if (id == Dictionaries.CODEC_ID) {
+                return new ByteArrayInputStream(cache.dictionaries.decode(Editor.readFully(snapshot.getBody())));
+            }
+            Codec codec = cache.config.codecs[id];
+            if (codec == null) {
+                throw new IOException("no codec registered for id " + id);
+            }
+            return new ByteArrayInputStream(codec.decode(Editor.readFully(snapshot.getBody())));
         }
 
+        /**
+         * Returns the body as a read-only buffer mapped from the store file, or null if {@link Config#mapReads} is off,
+         * the body is too small for mapping to pay off, it is encoded or it was written to the segment that is still
+         * being appended to. Use {@link #getBody()} then.
+         */
+        public ByteBuffer mapBody() throws IOException {
+            if (!cache.config.mapReads || snapshot.getCodec() != 0 || snapshot.getBodyLength() < MIN_MAPPED_BODY_SIZE) {
+                return null;
+            }
+            return snapshot.mapBody();
+        }
+
+        /**
+         * Returns an editor for this entry, or null if the entry changed since this snapshot was taken.
+         */
         public Editor edit() throws IOException {
-            DiskLruCache.Editor editor = snapshot.edit();
-            return (editor == null) ? null : new Editor(editor);
+            return snapshot.isCurrent() ? new Editor(cache, new Key(snapshot.getKey(), snapshot.getKeyHash())) : null;
         }
 
         @Override
@@ -248,27 +548,124 @@ public void close() throws IOException {
         }
     }
 
+    /**
+     * Buffers the metadata and body in memory and appends them as a single record on {@link #commit()}. A section
+     * that isn't written keeps its current value. Bodies at or above the configured threshold are encoded with the
+     * configured {@link Codec}, unless that doesn't make them smaller.
+     */
     public static final class Editor {
-        private final DiskLruCache.Editor editor;
+        private final FileCache cache;
+        private final SegmentStore store;
+        private final Key key;
+        private final Config config;
+        private final Dictionaries dictionaries;
+        private ByteArrayOutputStream metadata;
+        private ByteArrayOutputStream body;
+        private String dictionary;
+        private int codecId;
+        private boolean done;
+
+        private Editor(FileCache cache, Key key) {
+            this.cache = cache;
+            this.store = cache.store(key.hash);
+            this.key = key;
+            this.config = cache.config;
+            this.dictionaries = cache.dictionaries;
+        }
 
-        private Editor(DiskLruCache.Editor editor) {
-            this.editor = editor;
+        /**
+         * Compresses the body with the dictionary trained for {@code name}, usually the stashed type, if the cache
+         * has {@link Config.Builder#setDictionaries(boolean) dictionaries} enabled. Bodies of every size are
+         * sampled and compressed, the threshold doesn't apply.
+         */
+        public Editor setDictionary(String name) {
+            this.dictionary = name;
+            return this;
         }
 
         public OutputStream newMetadata() throws IOException {
-            return editor.newOutputStream(ENTRY_METADATA);
+            checkNotDone();
+            metadata = new ByteArrayOutputStream(256);
+            return metadata;
         }
 
         public OutputStream newBody() throws IOException {
-            return editor.newOutputStream(ENTRY_BODY);
+            checkNotDone();
+            body = new ByteArrayOutputStream(1024);
+            return body;
         }
 
         public void commit() throws IOException {
-            editor.commit();
+            store.putAll(Collections.singletonList(finish()));
+        }
+
+        /** Completes this editor into the record it appends. */
+        private SegmentStore.Write finish() throws IOException {
+            checkNotDone();
+            done = true;
+            byte[] metadataBytes = (metadata == null) ? null : metadata.toByteArray();
+            byte[] bodyBytes = (body == null) ? null : encode(body.toByteArray());
+            int codec = (bodyBytes == null) ? 0 : codecId;
+            if (metadataBytes == null || bodyBytes == null) {
+                SegmentStore.Snapshot current = store.get(key.value, key.hash);
+                try {
+                    if (metadataBytes == null) {
+                        metadataBytes = (current == null) ? new byte[0] : readFully(current.getMetadata());
+                    }
+                    if (bodyBytes == null) {
+                        // copied as stored, still encoded
+                        bodyBytes = (current == null) ? new byte[0] : readFully(current.getBody());
+                        codec = (current == null) ? 0 : current.getCodec();
+                    }
+                } finally {
+                    if (current != null) {
+                        current.close();
+                    }
+                }
+            }
+            return new SegmentStore.Write(key.value, key.hash, metadataBytes, bodyBytes, codec);
         }
 
         public void abort() throws IOException {
-            editor.abort();
+            done = true;
+            metadata = null;
+            body = null;
+        }
+
+        private void checkNotDone() {
+            if (done) {
+                throw new IllegalStateException("editor already committed or aborted");
+            }
+        }
+
+        private byte[] encode(byte[] bytes) throws IOException {
+            if (config.dictionaries && dictionary != null) {
+                byte[] encoded = dictionaries.encode(dictionary, bytes);
+                if (encoded != null && encoded.length < bytes.length) {
+                    codecId = Dictionaries.CODEC_ID;
+                    return encoded;
+                }
+            }
+            Codec codec = config.codec;
+            if (codec != null && bytes.length >= config.compressionThreshold) {
+                byte[] encoded = codec.encode(bytes);
+                if (encoded.length < bytes.length) {
+                    codecId = codec.getId();
+                    return encoded;
+                }
+            }
+            codecId = 0;
+            return bytes;
+        }
+
+        private static byte[] readFully(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, in.available()));
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
         }
     }
 
@@ -276,14 +673,40 @@ public static class Config {
         private final File dir;
         private final int version;
         private final int maxSize;
+        private final boolean mapReads;
+        private final boolean dictionaries;
+        private final Codec codec;
+        private final int compressionThreshold;
+        private final Codec[] codecs;
+        private final File[] shardDirs;
 
         public Config(File dir, int version, int maxSize) {
-            if (dir == null) {
-                throw new IllegalStateException("Config directory cannot be null");
-            }
-            this.dir = dir;
-            this.version = version;
-            this.maxSize = maxSize;
+            this(new Builder(dir, version, maxSize));
+        }
+
+        /**
+         * @param mapReads serve large entry bodies from memory-mapped regions of the store files, see
+         *                 {@link FileDb.BufferConverter}
+         */
+        public Config(File dir, int version, int maxSize, boolean mapReads) {
+            this(new Builder(dir, version, maxSize).setMapReads(mapReads));
+        }
+
+        private Config(Builder builder) {
+            this.dir = builder.dir;
+            this.version = builder.version;
+            this.maxSize = builder.maxSize;
+            this.mapReads = builder.mapReads;
+            this.dictionaries = builder.dictionaries;
+            this.codec = builder.codec;
+            this.compressionThreshold = builder.compressionThreshold;
+            this.codecs = builder.codecs.clone();
+            this.shardDirs = builder.shardDirs;
+        }
+
+        /** Returns the directory of each shard's store, just {@link #dir} if the cache isn't sharded. */
+        private File[] storeDirs() {
+            return shardDirs == null ? new File[]{dir} : shardDirs.clone();
         }
 
         @Override
@@ -295,7 +718,12 @@ public boolean equals(Object o) {
 
             return maxSize == config.maxSize
                     && version == config.version
-                    && dir.equals(config.dir);
+                    && mapReads == config.mapReads
+                    && dictionaries == config.dictionaries
+                    && codecId() == config.codecId()
+                    && compressionThreshold == config.compressionThreshold
+                    && dir.equals(config.dir)
+                    && Arrays.equals(shardDirs, config.shardDirs);
         }
 
         @Override
@@ -303,11 +731,136 @@ public int hashCode() {
             int result = dir.hashCode();
             result = 31 * result + version;
             result = 31 * result + maxSize;
+            result = 31 * result + (mapReads ? 1 : 0);
+            result = 31 * result + (dictionaries ? 1 : 0);
+            result = 31 * result + codecId();
+            result = 31 * result + compressionThreshold;
+            result = 31 * result + Arrays.hashCode(shardDirs);
             return result;
         }
 
+        private int codecId() {
+            return codec == null ? 0 : codec.getId();
+        }
+
+        /**
+         * The default config stores bodies as is. Encoded bodies are decoded into memory on read, which would take
+         * the large bodies off the mapped and streaming read paths, so compression is left to
+         * {@link Builder#setCodec(Codec, int)}.
+         */
         public static Config getDefault(Context context) {
-            return new Config(getDefaultDir(context), DEFAULT_VERSION, 10 * 1024);
+            return new Builder(getDefaultDir(context), DEFAULT_VERSION, 10 * 1024).build();
+        }
+
+        public static final class Builder implements stash.Builder<Config> {
+            private final File dir;
+            private final int version;
+            private final int maxSize;
+            private final Codec[] codecs = new Codec[SegmentStore.MAX_CODEC + 1];
+            private boolean mapReads;
+            private boolean dictionaries;
+            private Codec codec;
+            private int compressionThreshold;
+            private File[] shardDirs;
+
+            public Builder(File dir, int version, int maxSize) {
+                if (dir == null) {
+                    throw new IllegalStateException("Config directory cannot be null");
+                }
+                this.dir = dir;
+                this.version = version;
+                this.maxSize = maxSize;
+                addCodec(new DeflateCodec());
+                addCodec(new Lz4Codec());
+            }
+
+            /**
+             * Serve large entry bodies from memory-mapped regions of the store files, see
+             * {@link FileDb.BufferConverter}.
+             */
+            public Builder setMapReads(boolean mapReads) {
+                this.mapReads = mapReads;
+                return this;
+            }
+
+            /**
+             * Trains a deflate dictionary per type from the first bodies written and compresses later bodies with it,
+             * see {@link Editor#setDictionary(String)}. Most useful for many small bodies of few types.
+             */
+            public Builder setDictionaries(boolean dictionaries) {
+                this.dictionaries = dictionaries;
+                return this;
+            }
+
+            /**
+             * Encodes bodies of at least {@code threshold} bytes with {@code codec}, or stores every body as is if
+             * {@code codec} is null, which is the default. The codec is also registered for reading. Encoded bodies
+             * are read whole and decoded in memory, they are never mapped or streamed from the store file.
+             */
+            public Builder setCodec(Codec codec, int threshold) {
+                if (threshold < 0) {
+                    throw new IllegalArgumentException("threshold < 0");
+                }
+                if (codec != null) {
+                    addCodec(codec);
+                }
+                this.codec = codec;
+                this.compressionThreshold = threshold;
+                return this;
+            }
+
+            /**
+             * Registers a codec for reading bodies written with it. {@link DeflateCodec} and {@link Lz4Codec} are
+             * always registered.
+             */
+            public Builder addCodec(Codec codec) {
+                final int id = codec.getId();
+                if (id <= 0 || id >= Dictionaries.CODEC_ID) {
+                    throw new IllegalArgumentException("codec id must be between 1 and " + (Dictionaries.CODEC_ID - 1));
+                }
+                codecs[id] = codec;
+                return this;
+            }
+
+            /**
+             * Spreads keys over {@code count} stores in sub-directories of the cache dir, each with its own lock and
+             * an even share of the size budget, so operations on keys of different shards run in parallel. Changing
+             * the count later drops the entries stored under the old layout, its stores are deleted on open.
+             */
+            public Builder setShards(int count) {
+                if (count <= 0) {
+                    throw new IllegalArgumentException("count <= 0");
+                }
+                if (count == 1) {
+                    this.shardDirs = null;
+                    return this;
+                }
+                File[] dirs = new File[count];
+                for (int i = 0; i < count; i++) {
+                    dirs[i] = new File(dir, SHARD_PREFIX + i);
+                }
+                this.shardDirs = dirs;
+                return this;
+            }
+
+            /**
+             * Like {@link #setShards(int)}, with one shard in each of {@code dirs}, which can be on different volumes
+             * such as the internal and external cache dirs. The cache dir still holds state shared by the shards.
+             */
+            public Builder setShardDirs(File... dirs) {
+                if (dirs.length == 0) {
+                    throw new IllegalArgumentException("no shard dirs");
+                }
+                if (new HashSet<File>(Arrays.asList(dirs)).size() != dirs.length) {
+                    throw new IllegalArgumentException("shard dirs must be distinct");
+                }
+                this.shardDirs = dirs.clone();
+                return this;
+            }
+
+            @NonNull @Override public Config build() {
+                return new Config(this);
+            }
         }
     }
 
@@ -20,35 +20,71 @@
 import android.support.annotation.Nullable;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import stash.ElementReader;
+import stash.ExpiringMetadata;
 import stash.KeyStash;
 import stash.LazyEntry;
 import stash.Stash;
 import stash.StashCollection;
 import stash.StashDb;
 import stash.StashKey;
+import stash.internal.ExpiryPurger;
+import stash.internal.StashInterner;
 import stash.internal.StashLog;
 
 public class FileDb implements StashDb.Worker<String> {
     private static final String TAG = FileDb.class.getSimpleName();
+    // a group this large is written right away instead of waiting out the delay
+    private static final int MAX_PENDING_PUTS = 64;
 
     private final FileCache cache;
     private final Converter converter;
+    private final WriteBehind writeBehind;
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, getKey(type, (String) key)));
+        }
+    };
 
     protected FileDb(FileCache cache, Converter converter) {
+        this(cache, converter, 0);
+    }
+
+    /**
+     * @param writeBehindMillis how long puts are held in memory before they are written as one group, or 0 to write
+     *                          each put before it returns
+     */
+    protected FileDb(FileCache cache, Converter converter, long writeBehindMillis) {
+        if (writeBehindMillis < 0) {
+            throw new IllegalArgumentException("writeBehindMillis < 0");
+        }
         this.cache = cache;
         this.converter = converter;
+        this.writeBehind = (writeBehindMillis == 0) ? null : new WriteBehind(writeBehindMillis);
     }
 
     public static FileDb open(FileCache.Config config,
@@ -56,6 +92,15 @@ public static FileDb open(FileCache.Config config,
         return new FileDb(FileCache.open(config), converter);
     }
 
+    /**
+     * Opens a db whose puts return once they are queued. Queued puts are written together, as one group, after
+     * {@code writeBehindMillis}, or sooner if many are pending. Until then, reads still see them.
+     */
+    public static FileDb open(FileCache.Config config, Converter converter, long writeBehindMillis)
+            throws IOException {
+        return new FileDb(FileCache.open(config), converter, writeBehindMillis);
+    }
+
     private static FileDb open(FileCache cache, Converter converter) {
         return new FileDb(cache, converter);
     }
@@ -78,6 +123,56 @@ private static long readLong(BufferedReader source) throws IOException {
         }
     }
 
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated varint");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Expected an integer but was " + value);
+        }
+        return (int) value;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = in.read(bytes, offset, bytes.length - offset);
+            if (count == -1) {
+                throw new EOFException("Truncated string");
+            }
+            offset += count;
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
     private static void abortQuietly(FileCache.Editor editor) {
         // Give up because the cache cannot be written.
         try {
@@ -95,30 +190,107 @@ private static void abortQuietly(FileCache.Editor editor) {
 
     @NonNull @Override
     public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<? extends String> stashKey) {
-        return Stash.create(new Worker<V>(type, getKey(type, stashKey)));
+        return handles.intern(type, stashKey.getKey(), stashFactory);
     }
 
     @NonNull @Override public Iterable<? extends String> keys() {
-        // TODO:
-        return Collections.emptySet();
+        flushQuietly();
+        Set<String> keys = new HashSet<String>();
+        for (String key : cache.keys()) {
+            keys.add(FileCache.name(key));
+        }
+        return keys;
     }
 
     @Override public boolean removeAll() {
-        // TODO:
-        return false;
+        try {
+            flush();
+            cache.clear();
+            return true;
+        } catch (IOException e) {
+            StashLog.e(TAG, "error removing all", e);
+            return false;
+        }
     }
 
     @Override public boolean removeAll(@NonNull Collection<StashKey<? extends String>> stashKeys) {
-        // TODO:
-        return false;
+        flushQuietly();
+        boolean removed = false;
+        for (String group : cache.groups()) {
+            removed |= removeAll(group, stashKeys);
+        }
+        return removed;
+    }
+
+    private boolean removeAll(String group, Collection<StashKey<? extends String>> stashKeys) {
+        boolean removed = false;
+        for (StashKey<? extends String> stashKey : stashKeys) {
+            removed |= remove(FileCache.Key.of(FileCache.key(group, stashKey.getKey())));
+        }
+        return removed;
+    }
+
+    private boolean remove(FileCache.Key key) {
+        try {
+            return (writeBehind == null) ? cache.remove(key) : writeBehind.remove(key);
+        } catch (IOException e) {
+            StashLog.e(TAG, "error removing key: " + key, e);
+            return false;
+        }
     }
 
     public boolean isClosed() {
         return cache.isClosed();
     }
 
+    /**
+     * Writes every pending put now. Does nothing if puts aren't written behind.
+     */
+    public void flush() throws IOException {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            StashLog.e(TAG, "error flushing pending puts", e);
+        }
+    }
+
     public void close() throws IOException {
-        cache.close();
+        try {
+            flush();
+        } finally {
+            if (writeBehind != null) {
+                writeBehind.flusher.unsubscribe();
+            }
+            cache.close();
+        }
+    }
+
+    /**
+     * Opens an editor holding {@code entry}, ready to commit.
+     */
+    private <T> FileCache.Editor edit(FileCache.Key key, Class<T> type, stash.Entry<T> entry) throws IOException {
+        final Metadata meta = new Metadata(entry.getMetadata());
+        final Body<T> body = new Body<T>(entry.getData());
+        FileCache.Editor editor = null;
+        try {
+            editor = cache.edit(key);
+            if (editor != null) {
+                editor.setDictionary(type.getName());
+                // the body goes first so its hash can be recorded in the metadata
+                long contentHash = body.writeTo(editor, converter);
+                meta.writeTo(editor, contentHash);
+            }
+            return editor;
+        } catch (IOException e) {
+            abortQuietly(editor);
+            throw e;
+        }
     }
 
     public static interface Converter {
@@ -127,36 +299,104 @@ public static interface Converter {
         <T> void toFile(OutputStream out, T data) throws IOException;
     }
 
-    private static final class Metadata implements stash.Metadata {
+    /**
+     * A {@link Converter} that can also decode a body straight from a read-only, memory-mapped buffer. Used for large
+     * bodies when the {@link FileCache.Config} has mapped reads enabled.
+     */
+    public static interface BufferConverter extends Converter {
+        <T> T fromBuffer(Class<T> clazz, ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * A {@link Converter} that can decode the elements of a stored collection one at a time, for {@link
+     * stash.Stash#streamData(String, Class)}.
+     */
+    public static interface StreamingConverter extends Converter {
+        /**
+         * @param clazz the type the body was stored as
+         * @param field the Java field of {@code clazz} holding the collection, or null if the body is the collection
+         * @return a reader over the collection's elements that owns {@code in}, or null if the body can't be streamed
+         */
+        <E> ElementReader<E> openElements(Class<?> clazz, @Nullable String field, Class<E> elementType, InputStream in)
+                throws IOException;
+    }
+
+    /**
+     * Metadata is stored in front of the body in the same record. The current format is binary:
+     * <pre>
+     * format:byte flags:byte lastUpdated:varint [expiresAt:varint] [contentHash:varint] count:varint
+     * (length:varint utf8)*
+     * </pre>
+     * Older entries hold the text format, one value per line, which always starts with an ASCII digit. It is still
+     * read, and replaced with the binary format the next time the entry is written.
+     */
+    static final class Metadata implements ExpiringMetadata {
+        static final long NO_CONTENT_HASH = -1;
+        private static final int FORMAT_BINARY_V1 = 0xb1;
+        private static final int FORMAT_BINARY_MASK = 0xf0;
+        private static final int FLAG_EXPIRES_AT = 1;
+        private static final int FLAG_CONTENT_HASH = 1 << 1;
+
         private final long lastUpdated;
+        private final long expiresAt;
+        private final long contentHash;
         private final List<String> data;
 
-        private static Metadata create(InputStream in) throws IOException {
-            final BufferedReader source = new BufferedReader(new InputStreamReader(in));
+        static Metadata create(InputStream in) throws IOException {
+            final PushbackInputStream source = new PushbackInputStream(in, 1);
             try {
-                long lastUpdated = readLong(source);
-                final int size = readInt(source);
-                List<String> data = new ArrayList<String>(size);
-                for (int i = 0; i < size; i++) {
-                    data.add(source.readLine());
+                final int format = source.read();
+                if (format == FORMAT_BINARY_V1) {
+                    return readBinary(source);
+                } else if ((format & FORMAT_BINARY_MASK) == (FORMAT_BINARY_V1 & FORMAT_BINARY_MASK)) {
+                    throw new IOException("Unsupported metadata format: " + Integer.toHexString(format));
+                } else if (format != -1) {
+                    source.unread(format);
                 }
-                return new Metadata(lastUpdated, data);
+                return readText(source);
             } finally {
                 source.close();
             }
         }
 
+        private static Metadata readBinary(InputStream source) throws IOException {
+            final int flags = source.read();
+            if (flags == -1) {
+                throw new EOFException("Truncated metadata");
+            }
+            long lastUpdated = readVarLong(source);
+            long expiresAt = (flags & FLAG_EXPIRES_AT) == 0 ? NO_EXPIRATION : readVarLong(source);
+            long contentHash = (flags & FLAG_CONTENT_HASH) == 0 ? NO_CONTENT_HASH : readVarLong(source);
+            final int size = readVarInt(source);
+            List<String> data = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                data.add(readString(source));
+            }
+            return new Metadata(lastUpdated, expiresAt, contentHash, data);
+        }
+
+        private static Metadata readText(InputStream in) throws IOException {
+            final BufferedReader source = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            long lastUpdated = readLong(source);
+            final int size = readInt(source);
+            List<String> data = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                data.add(source.readLine());
+            }
+            return new Metadata(lastUpdated, NO_EXPIRATION, NO_CONTENT_HASH, data);
+        }
+
         private Metadata(stash.Metadata meta) {
             this(meta == null ? System.currentTimeMillis() : meta.getLastUpdated(),
+                    ExpiryPurger.getExpiresAt(meta),
+                    NO_CONTENT_HASH,
                     meta == null ? null : meta.getData());
         }
 
-        private Metadata(List<String> data) {
-            this(System.currentTimeMillis(), data);
-        }
-
-        private Metadata(long lastUpdated, List<String> data) {
+        private Metadata(long lastUpdated, long expiresAt, long contentHash, List<String> data) {
             this.lastUpdated = lastUpdated;
+            this.expiresAt = expiresAt;
+            this.contentHash = contentHash;
             this.data = data;
         }
 
@@ -164,27 +404,44 @@ private Metadata(long lastUpdated, List<String> data) {
             return lastUpdated;
         }
 
+        @Override public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * Returns the CRC32 of the serialized body, or {@link #NO_CONTENT_HASH} if it wasn't recorded. Equal hashes
+         * let callers skip decoding a body they already have.
+         */
+        long getContentHash() {
+            return contentHash;
+        }
+
         @NonNull @Override public List<String> getData() {
             return data == null ? Collections.<String>emptyList() : data;
         }
 
-        private void writeTo(FileCache.Editor editor) throws IOException {
+        private void writeTo(FileCache.Editor editor, long contentHash) throws IOException {
             OutputStream out = editor.newMetadata();
-            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
-
-            writer.write(Long.toString(getLastUpdated()));
-            writer.write('\n');
+            int flags = FLAG_CONTENT_HASH;
+            if (expiresAt != NO_EXPIRATION) {
+                flags |= FLAG_EXPIRES_AT;
+            }
+            out.write(FORMAT_BINARY_V1);
+            out.write(flags);
+            writeVarLong(out, lastUpdated);
+            if ((flags & FLAG_EXPIRES_AT) != 0) {
+                writeVarLong(out, expiresAt);
+            }
+            writeVarLong(out, contentHash);
 
             final List<String> data = getData();
             final int size = data.size();
-            writer.write(Integer.toString(size));
-            writer.write('\n');
+            writeVarLong(out, size);
             for (int i = 0; i < size; i++) {
-                writer.write(data.get(i));
-                writer.write('\n');
+                writeString(out, data.get(i));
             }
 
-            writer.close();
+            out.close();
         }
     }
 
@@ -195,10 +452,14 @@ private Body(T data) {
             this.data = data;
         }
 
-        private void writeTo(FileCache.Editor editor, Converter converter) throws IOException {
-            OutputStream out = editor.newBody();
+        /**
+         * @return the CRC32 of the serialized body
+         */
+        private long writeTo(FileCache.Editor editor, Converter converter) throws IOException {
+            CheckedOutputStream out = new CheckedOutputStream(editor.newBody(), new CRC32());
             converter.toFile(out, data);
             out.close();
+            return out.getChecksum().getValue();
         }
     }
 
@@ -206,24 +467,27 @@ private void writeTo(FileCache.Editor editor, Converter converter) throws IOExce
         private final Class<T> type;
         private final Converter converter;
         private final FileCache.Entry entry;
+        private final stash.Metadata metadata;
 
-        private Entry(Class<T> type, Converter converter, FileCache.Entry entry) {
+        private Entry(Class<T> type, Converter converter, FileCache.Entry entry, stash.Metadata metadata) {
             this.type = type;
             this.converter = converter;
             this.entry = entry;
+            this.metadata = metadata;
         }
 
         @NonNull @Override protected stash.Metadata loadMetadata() {
-            try {
-                return Metadata.create(entry.getMetadata());
-            } catch (IOException e) {
-                StashLog.e(TAG, "error loading metadata from file cache", e);
-                return stash.Metadata.EMPTY;
-            }
+            return metadata;
         }
 
         @Nullable @Override protected T loadData() {
             try {
+                if (converter instanceof BufferConverter) {
+                    ByteBuffer buffer = entry.mapBody();
+                    if (buffer != null) {
+                        return ((BufferConverter) converter).fromBuffer(type, buffer);
+                    }
+                }
                 return converter.fromFile(type, entry.getBody());
             } catch (IOException e) {
                 StashLog.e(TAG, "error loading data from file cache", e);
@@ -231,14 +495,131 @@ private Entry(Class<T> type, Converter converter, FileCache.Entry entry) {
             }
         }
 
+        @Nullable @Override
+        protected <E> ElementReader<E> openElements(@Nullable String field, @NonNull Class<E> elementType)
+                throws IOException {
+            if (converter instanceof StreamingConverter) {
+                return ((StreamingConverter) converter).openElements(type, field, elementType, entry.getBody());
+            }
+            return null;
+        }
+
         @Override protected void closeInternal() throws IOException {
             entry.close();
         }
     }
 
-    private static <T> String getKey(Class<T> type, StashKey<? extends String> stashKey) {
-        // TODO:
-        return type.getName() + "." + stashKey.getKey();
+    private static <T> FileCache.Key getKey(Class<T> type, String key) {
+        // grouped by type, so a type's keys can be listed and counted from the index
+        return FileCache.Key.of(FileCache.key(type.getName(), key));
+    }
+
+    /**
+     * Holds puts in memory and writes them in groups with {@link FileCache#commitAll(List)}. A key has at most one
+     * pending put, a newer put replaces it. Reads check the pending puts first, so they never see an older value than
+     * the last put. Removes wait for a group being written, so a removed value can't be written back after it.
+     */
+    private final class WriteBehind {
+        private final long delayMillis;
+        private final Map<FileCache.Key, stash.Entry<?>> pending = new LinkedHashMap<FileCache.Key, stash.Entry<?>>();
+        private final Map<FileCache.Key, Class<?>> types = new HashMap<FileCache.Key, Class<?>>();
+        private final Scheduler.Worker flusher = Schedulers.io().createWorker();
+        private final Action0 flushAction = new Action0() {
+            @Override public void call() {
+                flushQuietly();
+            }
+        };
+        private final Object flushLock = new Object();
+        private boolean scheduled;
+
+        private WriteBehind(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> stash.Entry<T> get(FileCache.Key key) {
+            synchronized (pending) {
+                return (stash.Entry<T>) pending.get(key);
+            }
+        }
+
+        private <T> T put(FileCache.Key key, Class<T> type, stash.Entry<T> entry) {
+            final stash.Entry<T> copy = stash.Entry.Builder.copy(entry);
+            final boolean full;
+            synchronized (pending) {
+                // moved to the end, so a group is written in put order
+                pending.remove(key);
+                pending.put(key, copy);
+                types.put(key, type);
+                full = pending.size() >= MAX_PENDING_PUTS;
+                if (!full && scheduled) {
+                    return copy.getData();
+                }
+                scheduled = true;
+            }
+            flusher.schedule(flushAction, full ? 0 : delayMillis, TimeUnit.MILLISECONDS);
+            return copy.getData();
+        }
+
+        private boolean remove(FileCache.Key key) throws IOException {
+            synchronized (flushLock) {
+                boolean removed;
+                synchronized (pending) {
+                    removed = pending.remove(key) != null;
+                    types.remove(key);
+                }
+                return cache.remove(key) || removed;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void flush() throws IOException {
+            synchronized (flushLock) {
+                final List<FileCache.Key> keys;
+                final List<stash.Entry<?>> entries;
+                final List<Class<?>> entryTypes;
+                synchronized (pending) {
+                    scheduled = false;
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    keys = new ArrayList<FileCache.Key>(pending.keySet());
+                    entries = new ArrayList<stash.Entry<?>>(pending.values());
+                    entryTypes = new ArrayList<Class<?>>(keys.size());
+                    for (FileCache.Key key : keys) {
+                        entryTypes.add(types.get(key));
+                    }
+                }
+                // serialized outside of the pending lock, so puts don't wait for it
+                final List<FileCache.Editor> editors = new ArrayList<FileCache.Editor>(keys.size());
+                try {
+                    for (int i = 0, size = keys.size(); i < size; i++) {
+                        try {
+                            FileCache.Editor editor = edit(keys.get(i), (Class<Object>) entryTypes.get(i),
+                                    (stash.Entry<Object>) entries.get(i));
+                            if (editor != null) {
+                                editors.add(editor);
+                            }
+                        } catch (IOException e) {
+                            StashLog.e(TAG, "error outputting key: " + keys.get(i), e);
+                        }
+                    }
+                    cache.commitAll(editors);
+                    StashLog.d(TAG, "flushed %d pending puts", editors.size());
+                } finally {
+                    synchronized (pending) {
+                        // a put that came in meanwhile stays pending for the next group
+                        for (int i = 0, size = keys.size(); i < size; i++) {
+                            FileCache.Key key = keys.get(i);
+                            if (pending.get(key) == entries.get(i)) {
+                                pending.remove(key);
+                                types.remove(key);
+                            }
+                        }
+                    }
+                }
+            }
+        }
     }
 
     private final class CollectionWorker<T> implements StashCollection.Worker<String, T> {
@@ -249,74 +630,99 @@ public CollectionWorker(Class<T> type) {
         }
 
         @NonNull @Override public Iterable<KeyStash<String, T>> getAll() {
-            // TODO:
-            return Collections.emptySet();
+            final List<KeyStash<String, T>> stashes = new ArrayList<KeyStash<String, T>>();
+            for (String key : keys()) {
+                stashes.add(KeyStash.<String, T>create(handles.intern(type, key, stashFactory), key));
+            }
+            return stashes;
         }
 
         @NonNull @Override public Stash<T> getStash(@NonNull StashKey<? extends String> stashKey) {
             return FileDb.this.getStash(type, stashKey);
         }
 
-        @NonNull @Override public Iterable<? extends String> keys() {
-            // TODO:
-            return Collections.emptySet();
+        @NonNull @Override public List<String> keys() {
+            flushQuietly();
+            List<String> keys = cache.keys(type.getName());
+            for (int i = 0, size = keys.size(); i < size; i++) {
+                keys.set(i, FileCache.name(keys.get(i)));
+            }
+            return keys;
         }
 
         @Override public boolean removeAll() {
-            return false;
+            flushQuietly();
+            boolean removed = false;
+            for (String key : cache.keys(type.getName())) {
+                removed |= remove(FileCache.Key.of(key));
+            }
+            return removed;
         }
 
         @Override public boolean removeAll(Collection<StashKey<? extends String>> stashKeys) {
-            return false;
+            return FileDb.this.removeAll(type.getName(), stashKeys);
         }
 
         @Override public int size() {
-            return 0;
+            flushQuietly();
+            return cache.count(type.getName());
         }
     }
 
+    /**
+     * Handles are interned, so a worker derives its key, and the key's hash, once for all of its lookups.
+     */
     private final class Worker<T> implements Stash.Worker<T> {
         private final Class<T> type;
-        private final String key;
+        private final FileCache.Key key;
 
-        private Worker(Class<T> type, String key) {
+        private Worker(Class<T> type, FileCache.Key key) {
             this.type = type;
             this.key = key;
         }
 
         @Override public stash.Entry<T> get() throws Exception {
+            if (writeBehind != null) {
+                stash.Entry<T> pending = writeBehind.get(key);
+                if (pending != null) {
+                    return pending;
+                }
+            }
             FileCache.Entry entry = cache.get(key);
-            return (entry == null) ? null : new Entry<T>(type, converter, entry);
+            if (entry == null) {
+                return null;
+            }
+            // the header is decoded up front for the expiry predicate, the body is only opened by getData()
+            stash.Metadata metadata;
+            try {
+                metadata = Metadata.create(entry.getMetadata());
+            } catch (IOException e) {
+                StashLog.e(TAG, "error loading metadata from file cache", e);
+                metadata = stash.Metadata.EMPTY;
+            }
+            return new Entry<T>(type, converter, entry, metadata);
         }
 
         @Override public T put(@NonNull stash.Entry<T> entry) throws Exception {
             StashLog.d(TAG, "putting key: %s, entry: %s", key, entry);
-            final Metadata meta = new Metadata(entry.getMetadata());
-            final Body<T> body = new Body<T>(entry.getData());
-            FileCache.Editor editor = null;
+            if (writeBehind != null) {
+                return writeBehind.put(key, type, entry);
+            }
             try {
-                editor = cache.edit(key);
+                FileCache.Editor editor = edit(key, type, entry);
                 if (editor != null) {
-                    meta.writeTo(editor);
-                    body.writeTo(editor, converter);
                     editor.commit();
-                    return body.data;
+                    return entry.getData();
                 }
                 return null;
             } catch (IOException e) {
                 StashLog.e(TAG, "error outputting", e);
-                abortQuietly(editor);
                 throw e;
             }
         }
 
         @Override public boolean remove() throws Exception {
-            try {
-                return cache.remove(key);
-            } catch (IOException e) {
-                StashLog.e(TAG, "error removing key: " + key, e);
-                return false;
-            }
+            return FileDb.this.remove(key);
         }
     }
 }
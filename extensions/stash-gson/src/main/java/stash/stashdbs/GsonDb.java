@@ -17,29 +17,80 @@
 package stash.stashdbs;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonNull;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import stash.ElementReader;
+import stash.internal.Util;
+import stash.util.binary.BinaryConverter;
+import stash.util.gson.GsonFactory;
 
 public final class GsonDb {
 
     private GsonDb() { throw new AssertionError("no instances"); }
 
     public static FileDb open(Config config) throws IOException {
-        return FileDb.open(config.fileConfig, new Converter(config.gson));
+        return FileDb.open(config.fileConfig, converter(config.gson), config.writeBehindMillis);
+    }
+
+    /**
+     * @return a converter that stores types with a generated {@code BinarySchema} in the binary format, and all
+     * other types as JSON
+     */
+    public static FileDb.BufferConverter converter(Gson gson) {
+        return new BinaryConverter(new Converter(gson));
+    }
+
+    /**
+     * Opens the db on the io scheduler, so loading the store stays off the calling thread. See {@link AsyncDb} for
+     * using it before the open completes.
+     */
+    public static Future<FileDb> openAsync(final Config config) {
+        final FutureTask<FileDb> task = new FutureTask<FileDb>(new Callable<FileDb>() {
+            @Override public FileDb call() throws Exception {
+                return open(config);
+            }
+        });
+        final Scheduler.Worker worker = Schedulers.io().createWorker();
+        worker.schedule(new Action0() {
+            @Override public void call() {
+                try {
+                    task.run();
+                } finally {
+                    worker.unsubscribe();
+                }
+            }
+        });
+        return task;
     }
 
     public static Gson defaultGson() {
-        return new GsonBuilder()
+        return GsonFactory.DEFAULT.newGsonBuilder()
                 .disableHtmlEscaping()
                 .create();
     }
@@ -47,17 +98,28 @@ public static Gson defaultGson() {
     public static class Config {
         private final FileCache.Config fileConfig;
         private final Gson gson;
+        private final long writeBehindMillis;
 
         public Config(Gson gson, File dir, int version, int size) {
             this(gson, new FileCache.Config(dir, version, size));
         }
 
         public Config(Gson gson, FileCache.Config fileConfig) {
+            this(gson, fileConfig, 0);
+        }
+
+        /**
+         * @param writeBehindMillis how long puts are held before they are written as one group, or 0 to write each
+         *                          put before it returns. See {@link FileDb#open(FileCache.Config, FileDb.Converter,
+         *                          long)}.
+         */
+        public Config(Gson gson, FileCache.Config fileConfig, long writeBehindMillis) {
             if (gson == null) {
                 throw new IllegalStateException("Gson cannot be null in Config");
             }
             this.fileConfig = fileConfig;
             this.gson = gson;
+            this.writeBehindMillis = writeBehindMillis;
         }
 
         public static Config getDefault(Context context) {
@@ -65,7 +127,13 @@ public static Config getDefault(Context context) {
         }
     }
 
-    private static class Converter implements FileDb.Converter {
+    /**
+     * Streams bodies through {@link JsonReader} and {@link JsonWriter}, so no full copy of the JSON text is ever held
+     * in memory.
+     */
+    private static class Converter implements FileDb.BufferConverter, FileDb.StreamingConverter {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
         private final Gson gson;
 
         private Converter(Gson gson) {
@@ -74,33 +142,274 @@ private Converter(Gson gson) {
 
         @Override
         public <T> T fromFile(Class<T> clazz, InputStream in) throws IOException {
-            final String json = read(in);
-            return gson.fromJson(json, clazz);
+            return read(clazz, new InputStreamReader(in, UTF_8));
+        }
+
+        @Override
+        public <T> T fromBuffer(Class<T> clazz, ByteBuffer buffer) throws IOException {
+            return read(clazz, new InputStreamReader(new ByteBufferInputStream(buffer), UTF_8));
         }
 
         @Override
         public <T> void toFile(OutputStream out, T data) throws IOException {
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+            JsonWriter writer = new JsonWriter(new Utf8Writer(out));
+            boolean written = false;
             try {
-                writer.write(gson.toJson(data));
+                if (data == null) {
+                    gson.toJson(JsonNull.INSTANCE, writer);
+                } else {
+                    gson.toJson(data, data.getClass(), writer);
+                }
+                written = true;
+            } catch (JsonIOException e) {
+                throw new IOException(e);
             } finally {
-                writer.close();
+                if (written) {
+                    writer.close();
+                } else {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                        // an incomplete document, the failure that left it so is what the caller sees
+                    }
+                }
             }
         }
 
-        private static String read(InputStream in) throws IOException {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        @Override public <E> ElementReader<E> openElements(Class<?> clazz, @Nullable String field,
+                Class<E> elementType, InputStream in) throws IOException {
+            String name = (field == null) ? null : jsonName(Util.collectionField(clazz, field));
+            JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+            // lenient like Gson.fromJson()
+            reader.setLenient(true);
             try {
-                String line;
-                StringBuilder str = new StringBuilder();
-                while ((line = reader.readLine()) != null) {
-                    // Not writing any line ending, but should be fine
-                    str.append(line);
+                boolean inCollection = beginCollection(reader, clazz, name);
+                return new JsonElementReader<E>(reader, gson.getAdapter(elementType), inCollection);
+            } catch (IOException e) {
+                reader.close();
+                throw e;
+            } catch (RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves to the first element of the collection, which is the body if {@code name} is null, otherwise the
+         * body's field with that name.
+         *
+         * @return false if the body or the field is null or missing
+         */
+        private static boolean beginCollection(JsonReader reader, Class<?> clazz, @Nullable String name)
+                throws IOException {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                return false;
+            } else if (name == null) {
+                if (token != JsonToken.BEGIN_ARRAY) {
+                    throw new IllegalStateException(clazz.getName() + " is not a collection");
+                }
+                reader.beginArray();
+                return true;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (name.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    return true;
                 }
-                return str.toString();
+                reader.skipValue();
+            }
+            return false;
+        }
+
+        /** The name generated type adapters use: the {@link SerializedName}, or else the field name. */
+        private static String jsonName(Field field) {
+            SerializedName serializedName = field.getAnnotation(SerializedName.class);
+            return (serializedName == null) ? field.getName() : serializedName.value();
+        }
+
+        private <T> T read(Class<T> clazz, Reader in) throws IOException {
+            JsonReader reader = new JsonReader(in);
+            try {
+                return gson.fromJson(reader, clazz);
+            } catch (JsonIOException e) {
+                throw new IOException(e);
             } finally {
                 reader.close();
             }
         }
     }
+
+    private static final class JsonElementReader<E> implements ElementReader<E> {
+        private final JsonReader reader;
+        private final TypeAdapter<E> adapter;
+        private final boolean inCollection;
+
+        private JsonElementReader(JsonReader reader, TypeAdapter<E> adapter, boolean inCollection) {
+            this.reader = reader;
+            this.adapter = adapter;
+            this.inCollection = inCollection;
+        }
+
+        @Override public boolean hasNext() throws IOException {
+            return inCollection && reader.hasNext();
+        }
+
+        @Override public E next() throws IOException {
+            try {
+                return adapter.read(reader);
+            } catch (JsonIOException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Encodes UTF-8 straight into a byte buffer the thread reuses for its next body, in place of an
+     * OutputStreamWriter behind a BufferedWriter, which allocate 8K char and byte buffers for every write. Unpaired
+     * surrogates become '?', like they do with OutputStreamWriter.
+     */
+    private static final class Utf8Writer extends Writer {
+        private static final int BUFFER_SIZE = 8192;
+        private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
+        private final OutputStream out;
+        private byte[] buffer;
+        private int count;
+        private char highSurrogate;
+
+        private Utf8Writer(OutputStream out) {
+            this.out = out;
+            byte[] buffer = BUFFERS.get();
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            } else {
+                // taken until close, so a nested write on this thread gets a buffer of its own
+                BUFFERS.set(null);
+            }
+            this.buffer = buffer;
+        }
+
+        @Override public void write(int c) throws IOException {
+            checkNotClosed();
+            writeChar((char) c);
+        }
+
+        @Override public void write(char[] chars, int off, int len) throws IOException {
+            checkNotClosed();
+            for (int i = off, end = off + len; i < end; i++) {
+                writeChar(chars[i]);
+            }
+        }
+
+        @Override public void write(String str, int off, int len) throws IOException {
+            checkNotClosed();
+            for (int i = off, end = off + len; i < end; i++) {
+                writeChar(str.charAt(i));
+            }
+        }
+
+        @Override public void flush() throws IOException {
+            checkNotClosed();
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                if (highSurrogate != 0) {
+                    highSurrogate = 0;
+                    buffer[count++] = '?';
+                }
+                flushBuffer();
+            } finally {
+                BUFFERS.set(buffer);
+                buffer = null;
+                out.close();
+            }
+        }
+
+        private void writeChar(char c) throws IOException {
+            // the most a char adds: a '?' for a pending surrogate, and three bytes
+            if (count + 4 > buffer.length) {
+                flushBuffer();
+            }
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                    return;
+                }
+                buffer[count++] = '?';
+            }
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private void checkNotClosed() throws IOException {
+            if (buffer == null) {
+                throw new IOException("writer is closed");
+            }
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override public int available() {
+            return buffer.remaining();
+        }
+    }
 }
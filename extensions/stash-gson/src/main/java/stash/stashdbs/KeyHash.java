@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+/**
+ * The 128-bit MurmurHash3 (x64 variant) of a key's UTF-16LE code units, used to index records. The chars are hashed
+ * directly, without encoding the key first. Equal hashes of different keys are possible, if unlikely, so lookups
+ * still compare the original key.
+ */
+final class KeyHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    final long h1;
+    final long h2;
+
+    private KeyHash(long h1, long h2) {
+        this.h1 = h1;
+        this.h2 = h2;
+    }
+
+    static KeyHash of(String key) {
+        final int length = key.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        // 8 chars make one 16 byte block
+        for (; i + 8 <= length; i += 8) {
+            long k1 = chars(key, i, 4);
+            long k2 = chars(key, i + 4, 4);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        final int remaining = length - i;
+        if (remaining > 4) {
+            h2 ^= mixK2(chars(key, i + 4, remaining - 4));
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(chars(key, i, Math.min(remaining, 4)));
+        }
+        h1 ^= length * 2L;
+        h2 ^= length * 2L;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new KeyHash(h1, h2);
+    }
+
+    /** Packs {@code count} chars, at most 4, little endian. */
+    private static long chars(String key, int start, int count) {
+        long k = 0;
+        for (int j = 0; j < count; j++) {
+            k |= (long) key.charAt(start + j) << (16 * j);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof KeyHash)) return false;
+        KeyHash other = (KeyHash) o;
+        return h1 == other.h1 && h2 == other.h2;
+    }
+
+    @Override public int hashCode() {
+        // already well mixed
+        return (int) h1;
+    }
+
+    @Override public String toString() {
+        return String.format("%016x%016x", h1, h2);
+    }
+}
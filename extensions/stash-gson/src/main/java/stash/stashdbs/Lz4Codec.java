@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import java.io.IOException;
+
+/**
+ * A pure Java encoder and decoder for the LZ4 block format. It compresses less than {@link DeflateCodec}, but encodes
+ * faster and decodes several times faster once warmed up, which suits bodies that are read often.
+ * <pre>
+ * encoded: length:int block
+ * </pre>
+ */
+public final class Lz4Codec implements Codec {
+    public static final int ID = 2;
+
+    private static final int MIN_MATCH = 4;
+    // the format requires the last literals and the last match start to keep this distance from the end
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 0x0f;
+
+    @Override public int getId() {
+        return ID;
+    }
+
+    @Override public byte[] encode(byte[] src) throws IOException {
+        final int length = src.length;
+        byte[] dst = new byte[4 + length + length / 255 + 16];
+        writeIntBigEndian(dst, 0, length);
+        int op = 4;
+        int anchor = 0;
+        // positions are stored plus one so zero marks an empty slot
+        int[] table = new int[1 << HASH_LOG];
+        int ip = 0;
+        final int limit = length - MATCH_FIND_LIMIT;
+        while (ip < limit) {
+            int sequence = readInt(src, ip);
+            int slot = hash(sequence);
+            int ref = table[slot] - 1;
+            table[slot] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            final int matchLimit = length - LAST_LITERALS;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeLiterals(src, anchor, length - anchor, dst, op, 0);
+        byte[] encoded = new byte[op];
+        System.arraycopy(dst, 0, encoded, 0, op);
+        return encoded;
+    }
+
+    @Override public byte[] decode(byte[] src) throws IOException {
+        if (src.length < 4) {
+            throw new IOException("truncated lz4 body");
+        }
+        final int length = readIntBigEndian(src, 0);
+        if (length < 0) {
+            throw new IOException("corrupt lz4 body");
+        }
+        byte[] dst = new byte[length];
+        int ip = 4;
+        int op = 0;
+        while (ip < src.length) {
+            final int token = src[ip++] & 0xff;
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    checkAvailable(src, ip, 1);
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 0xff);
+            }
+            checkAvailable(src, ip, literalLength);
+            if (literalLength > length - op) {
+                throw new IOException("corrupt lz4 body");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == src.length) {
+                // the last sequence only has literals
+                break;
+            }
+
+            checkAvailable(src, ip, 2);
+            final int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    checkAvailable(src, ip, 1);
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 0xff);
+            }
+            matchLength += MIN_MATCH;
+            if (offset == 0 || offset > op || matchLength > length - op) {
+                throw new IOException("corrupt lz4 body");
+            }
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // the match overlaps its own output, so copy forward one byte at a time
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        if (op != length) {
+            throw new IOException("truncated lz4 body");
+        }
+        return dst;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int op, int offset,
+            int matchLength) {
+        int extra = matchLength - MIN_MATCH;
+        op = writeLiterals(src, literalStart, literalLength, dst, op, Math.min(extra, RUN_MASK));
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        if (extra >= RUN_MASK) {
+            op = writeLength(dst, op, extra - RUN_MASK);
+        }
+        return op;
+    }
+
+    /** Writes the token and literals of a sequence. */
+    private static int writeLiterals(byte[] src, int start, int literalLength, byte[] dst, int op, int matchToken) {
+        dst[op++] = (byte) (Math.min(literalLength, RUN_MASK) << 4 | matchToken);
+        if (literalLength >= RUN_MASK) {
+            op = writeLength(dst, op, literalLength - RUN_MASK);
+        }
+        System.arraycopy(src, start, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 0xff) {
+            dst[op++] = (byte) 0xff;
+            length -= 0xff;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static void checkAvailable(byte[] src, int ip, int count) throws IOException {
+        if (count > src.length - ip) {
+            throw new IOException("truncated lz4 body");
+        }
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff) << 16 | (src[i + 3] & 0xff) << 24;
+    }
+
+    private static int readIntBigEndian(byte[] src, int i) {
+        return (src[i] & 0xff) << 24 | (src[i + 1] & 0xff) << 16 | (src[i + 2] & 0xff) << 8 | (src[i + 3] & 0xff);
+    }
+
+    private static void writeIntBigEndian(byte[] dst, int i, int value) {
+        dst[i] = (byte) (value >>> 24);
+        dst[i + 1] = (byte) (value >>> 16);
+        dst[i + 2] = (byte) (value >>> 8);
+        dst[i + 3] = (byte) value;
+    }
+}
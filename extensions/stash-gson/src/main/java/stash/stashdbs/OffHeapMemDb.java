@@ -0,0 +1,415 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import stash.Entry;
+import stash.ExpiringMetadata;
+import stash.KeyStash;
+import stash.LazyEntry;
+import stash.Metadata;
+import stash.Stash;
+import stash.StashCollection;
+import stash.StashKey;
+import stash.internal.ExpiryPurger;
+import stash.internal.StashLog;
+import stash.internal.StashInterner;
+import stash.internal.StatsCounter;
+import stash.internal.TypedKey;
+
+/**
+ * A {@link MemDb.Worker} that keeps entries serialized in direct {@link java.nio.ByteBuffer} slabs instead of as
+ * decoded objects on the Java heap. Values are encoded with a {@link FileDb.Converter} on put, and decoded lazily on
+ * {@link LazyEntry#getData()}. Entries are evicted in LRU order once the slabs are full, and
+ * {@link #registerMaxSize(Class, int)} additionally caps the entry count per type.
+ */
+public final class OffHeapMemDb implements MemDb.StatsWorker {
+    private static final String TAG = OffHeapMemDb.class.getSimpleName();
+    public static final int DEFAULT_SIZE = 5;
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final int DEFAULT_PAGE_SIZE = 4 * 1024;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<TypedKey, Node> lru = new LinkedHashMap<TypedKey, Node>(16, 0.75f, true);
+    // mirrors lru, so the purger can look nodes up without promoting them
+    private final Map<TypedKey, Node> index = new HashMap<TypedKey, Node>(16);
+    private final Map<Class<?>, TypeCache> types = new HashMap<Class<?>, TypeCache>(4);
+    private final ExpiryPurger<TypedKey> purger = new ExpiryPurger<TypedKey>(new ExpiryPurger.Purger<TypedKey>() {
+        @Override public void purge(@NonNull TypedKey typedKey, long now) {
+            synchronized (lock) {
+                Node node = index.get(typedKey);
+                if (node != null && node.expiresAt != ExpiringMetadata.NO_EXPIRATION && node.expiresAt < now) {
+                    removeLocked(typedKey);
+                }
+            }
+        }
+    });
+    private final StatsCounter stats = new StatsCounter();
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, key));
+        }
+    };
+    private final FileDb.Converter converter;
+    private final SlabAllocator allocator;
+
+    public OffHeapMemDb(@NonNull FileDb.Converter converter, long maxBytes) {
+        this(converter, maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_PAGE_SIZE);
+    }
+
+    public OffHeapMemDb(@NonNull FileDb.Converter converter, long maxBytes, int slabSize, int pageSize) {
+        if (maxBytes < slabSize) {
+            throw new IllegalArgumentException("maxBytes must hold at least one slab");
+        }
+        this.converter = converter;
+        this.allocator = new SlabAllocator(slabSize, pageSize, (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize));
+    }
+
+    /**
+     * @return bytes of direct memory currently reserved by slabs
+     */
+    public long allocatedBytes() {
+        synchronized (lock) {
+            return allocator.allocatedBytes();
+        }
+    }
+
+    /**
+     * @return bytes held by live entries, rounded up to whole pages
+     */
+    public long size() {
+        synchronized (lock) {
+            return (long) (allocator.capacityPages() - allocator.freePages()) * allocator.pageSize();
+        }
+    }
+
+    @Override public <T> void registerMaxSize(@NonNull Class<T> type, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (lock) {
+            TypeCache cache = getOrCreateCache(type);
+            cache.maxSize = maxSize;
+            cache.trim();
+        }
+    }
+
+    @NonNull @Override public Map<Class<?>, CacheStats> stats() {
+        synchronized (lock) {
+            Map<Class<?>, Integer> sizes = new HashMap<Class<?>, Integer>(types.size());
+            for (Map.Entry<Class<?>, TypeCache> entry : types.entrySet()) {
+                sizes.put(entry.getKey(), entry.getValue().keys.size());
+            }
+            return stats.snapshot(sizes);
+        }
+    }
+
+    @NonNull @Override public <V> StashCollection<Object, V> getCollection(@NonNull Class<V> type) {
+        return StashCollection.create(new CollectionWorker<V>(type));
+    }
+
+    @NonNull @Override public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<?> stashKey) {
+        return handles.intern(type, stashKey.getKey(), stashFactory);
+    }
+
+    @NonNull @Override public Iterable<?> keys() {
+        synchronized (lock) {
+            Collection<Object> keys = new HashSet<Object>();
+            for (TypedKey typedKey : lru.keySet()) {
+                keys.add(typedKey.getKey());
+            }
+            return keys;
+        }
+    }
+
+    @Override public boolean removeAll() {
+        synchronized (lock) {
+            for (TypedKey typedKey : new ArrayList<TypedKey>(lru.keySet())) {
+                removeLocked(typedKey);
+            }
+        }
+        purger.clear();
+        return true;
+    }
+
+    @Override public boolean removeAll(@NonNull Collection<StashKey<?>> stashKeys) {
+        synchronized (lock) {
+            boolean removed = false;
+            for (Class<?> type : types.keySet()) {
+                for (StashKey<?> stashKey : stashKeys) {
+                    removed |= removeLocked(new TypedKey(type, stashKey.getKey()));
+                }
+            }
+            return removed;
+        }
+    }
+
+    private TypeCache getOrCreateCache(Class<?> type) {
+        TypeCache cache = types.get(type);
+        if (cache == null) {
+            cache = new TypeCache(type, DEFAULT_SIZE);
+            types.put(type, cache);
+        }
+        return cache;
+    }
+
+    private boolean removeLocked(TypedKey typedKey) {
+        Node node = lru.remove(typedKey);
+        if (node != null) {
+            index.remove(typedKey);
+            types.get(typedKey.getType()).keys.remove(typedKey.getKey());
+            allocator.free(node.pages);
+            // the bulk removes come through here too, don't leave their timers in the wheel
+            purger.cancel(typedKey);
+            return true;
+        }
+        return false;
+    }
+
+    private int[] allocateLocked(int length) {
+        int[] pages;
+        Iterator<TypedKey> it = lru.keySet().iterator();
+        while ((pages = allocator.allocate(length)) == null && it.hasNext()) {
+            TypedKey eldest = it.next();
+            it.remove();
+            index.remove(eldest);
+            Node node = types.get(eldest.getType()).keys.remove(eldest.getKey());
+            allocator.free(node.pages);
+            stats.recordEviction(eldest.getType());
+        }
+        return pages;
+    }
+
+    private static final class Node {
+        private final long lastUpdated;
+        private final long expiresAt;
+        private final List<String> metadata;
+        private final int[] pages;
+        private final int length;
+
+        private Node(Metadata metadata, int[] pages, int length) {
+            this.lastUpdated = metadata.getLastUpdated();
+            this.expiresAt = ExpiryPurger.getExpiresAt(metadata);
+            this.metadata = metadata.getData();
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+
+    /** Keys of a single type in access order, guarded by the outer lock. */
+    private final class TypeCache {
+        private final LinkedHashMap<Object, Node> keys = new LinkedHashMap<Object, Node>(8, 0.75f, true);
+        private final Class<?> type;
+        private int maxSize;
+
+        private TypeCache(Class<?> type, int maxSize) {
+            this.type = type;
+            this.maxSize = maxSize;
+        }
+
+        private void trim() {
+            Iterator<Object> it = keys.keySet().iterator();
+            while (keys.size() > maxSize && it.hasNext()) {
+                Object key = it.next();
+                it.remove();
+                TypedKey typedKey = new TypedKey(type, key);
+                Node node = lru.remove(typedKey);
+                index.remove(typedKey);
+                allocator.free(node.pages);
+                stats.recordEviction(type);
+            }
+        }
+    }
+
+    private static final class OffHeapEntry<T> extends LazyEntry<T> {
+        private final Class<T> type;
+        private final FileDb.Converter converter;
+        private final Node node;
+        private final byte[] bytes;
+
+        private OffHeapEntry(Class<T> type, FileDb.Converter converter, Node node, byte[] bytes) {
+            this.type = type;
+            this.converter = converter;
+            this.node = node;
+            this.bytes = bytes;
+        }
+
+        @NonNull @Override protected Metadata loadMetadata() {
+            return new Metadata.Builder()
+                    .setLastUpdated(node.lastUpdated)
+                    .setExpiresAt(node.expiresAt)
+                    .setData(node.metadata)
+                    .build();
+        }
+
+        @Nullable @Override protected T loadData() {
+            try {
+                return converter.fromFile(type, new ByteArrayInputStream(bytes, 0, node.length));
+            } catch (IOException e) {
+                StashLog.e(TAG, "error decoding off-heap entry", e);
+                return null;
+            }
+        }
+
+        @Override protected void closeInternal() throws IOException {}
+    }
+
+    private final class CollectionWorker<V> implements StashCollection.Worker<Object, V> {
+        private final Class<V> type;
+
+        private CollectionWorker(Class<V> type) {
+            this.type = type;
+        }
+
+        @NonNull @Override public Stash<V> getStash(@NonNull StashKey<?> stashKey) {
+            return handles.intern(type, stashKey.getKey(), stashFactory);
+        }
+
+        @NonNull @Override public Iterable<?> keys() {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                return cache == null
+                        ? Collections.emptySet()
+                        : new ArrayList<Object>(cache.keys.keySet());
+            }
+        }
+
+        @NonNull @Override public Iterable<KeyStash<Object, V>> getAll() {
+            final List<KeyStash<Object, V>> stashes = new ArrayList<KeyStash<Object, V>>();
+            for (Object key : keys()) {
+                stashes.add(KeyStash.<Object, V>create(handles.intern(type, key, stashFactory), key));
+            }
+            return stashes;
+        }
+
+        @Override public boolean removeAll() {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                if (cache != null) {
+                    for (Object key : new ArrayList<Object>(cache.keys.keySet())) {
+                        removeLocked(new TypedKey(type, key));
+                    }
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        @Override public boolean removeAll(Collection<StashKey<?>> stashKeys) {
+            synchronized (lock) {
+                boolean removed = false;
+                for (StashKey<?> stashKey : stashKeys) {
+                    removed |= removeLocked(new TypedKey(type, stashKey.getKey()));
+                }
+                return removed;
+            }
+        }
+
+        @Override public int size() {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                return cache == null ? 0 : cache.keys.size();
+            }
+        }
+    }
+
+    private final class Worker<T> implements Stash.Worker<T> {
+        private final Class<T> type;
+        private final TypedKey typedKey;
+
+        private Worker(Class<T> type, Object key) {
+            this.type = type;
+            this.typedKey = new TypedKey(type, key);
+        }
+
+        @Override public Entry<T> get() throws Exception {
+            final Node node;
+            final byte[] bytes;
+            synchronized (lock) {
+                node = lru.get(typedKey);
+                if (node == null) {
+                    stats.recordGet(type, false);
+                    return null;
+                }
+                // touch the per type order too
+                types.get(type).keys.get(typedKey.getKey());
+                // copy out while the pages can't be reused, decode later outside of the lock
+                bytes = new byte[node.length];
+                allocator.read(node.pages, bytes, node.length);
+            }
+            stats.recordGet(type, true);
+            return new OffHeapEntry<T>(type, converter, node, bytes);
+        }
+
+        @Override public T put(@NonNull Entry<T> entry) throws Exception {
+            final T data = entry.getData();
+            final Metadata metadata = entry.getMetadata();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(allocator.pageSize());
+            converter.toFile(out, data);
+            final byte[] bytes = out.toByteArray();
+            stats.recordPut(type);
+
+            final boolean stored;
+            synchronized (lock) {
+                removeLocked(typedKey);
+                int[] pages = allocateLocked(bytes.length);
+                if (pages == null) {
+                    // larger than the whole off-heap budget
+                    stored = false;
+                } else {
+                    allocator.write(pages, bytes, bytes.length);
+                    Node node = new Node(metadata, pages, bytes.length);
+                    lru.put(typedKey, node);
+                    index.put(typedKey, node);
+                    TypeCache cache = getOrCreateCache(type);
+                    cache.keys.put(typedKey.getKey(), node);
+                    cache.trim();
+                    stored = lru.containsKey(typedKey);
+                }
+            }
+            if (stored) {
+                purger.schedule(typedKey, entry);
+                return data;
+            }
+            purger.cancel(typedKey);
+            return null;
+        }
+
+        @Override public boolean remove() throws Exception {
+            purger.cancel(typedKey);
+            synchronized (lock) {
+                return removeLocked(typedKey);
+            }
+        }
+    }
+}
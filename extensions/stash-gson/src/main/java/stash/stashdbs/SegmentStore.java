@@ -0,0 +1,1275 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import stash.internal.StashLog;
+
+/**
+ * An append-only, log-structured key value store. Values are appended as CRC-checked records to a sequence of segment
+ * files, and an in-memory index maps each key to its latest record. Removes and evictions append a tombstone, which is
+ * kept until no older segment holds a record of its key. Once a sealed segment is mostly dead, its live records are
+ * copied forward in the background and the file is deleted.
+ * <p>
+ * The index is kept in access order and the least recently used entries are dropped once the live size exceeds
+ * {@code maxSize}. Only reads through {@link #get(String)} and writes count as accesses; compaction and
+ * {@link Snapshot#isCurrent()} look entries up without reordering them. An optional {@link Grouper} maintains a second index from group to original keys alongside it, so
+ * listing or counting a group never scans the log.
+ * <p>
+ * Once writes pause after a segment is sealed, and on close, the index entries of sealed segments are written to a
+ * checkpoint. Opening the store restores the checkpoint and only replays the segments written after it, usually just
+ * the active one.
+ * <pre>
+ * segment: magic:int version:int record*
+ * record:  flags:byte keyLength:int metadataLength:int bodyLength:int key metadata body crc32:int
+ * </pre>
+ * The low four bits of {@code flags} hold the operation and the high four bits the id of the codec the body was
+ * encoded with. The store doesn't interpret bodies, it only keeps the id with them.
+ */
+final class SegmentStore implements Closeable {
+    private static final String TAG = SegmentStore.class.getSimpleName();
+    private static final int MAGIC = 0x53544153;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final String CHECKPOINT_NAME = "index.ckpt";
+    private static final int CHECKPOINT_MAGIC = 0x53544b50;
+    private static final Pattern LEGACY_NAME = Pattern.compile("journal(\\.tmp|\\.bkp)?|[a-f0-9]{32}\\.\\d+(\\.tmp)?");
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int OP_MASK = 0x0f;
+    private static final int CODEC_SHIFT = 4;
+    static final int MAX_CODEC = 0x0f;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final int CRC_SIZE = 4;
+    private static final int MIN_SEGMENT_SIZE = 4 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    // compact a sealed segment once less than half of it is live
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    // background work waits for a pause in appends this long, but gives up waiting after MAX_IDLE_WAITS tries
+    private static final long IDLE_MILLIS = 500;
+    private static final int MAX_IDLE_WAITS = 20;
+
+    private final File dir;
+    private final int version;
+    private final long maxSize;
+    private final long segmentSize;
+    private final Grouper grouper;
+    private final Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+    // insertion ordered, see touch()
+    private final LinkedHashMap<KeyHash, Location> index = new LinkedHashMap<KeyHash, Location>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private final Set<Segment> compacting = new HashSet<Segment>();
+    private final Scheduler.Worker compactor;
+    private final boolean ownsCompactor;
+    private final Object checkpointLock = new Object();
+    private final Action0 checkpointAction = new Action0() {
+        @Override public void call() {
+            try {
+                checkpoint();
+            } catch (Throwable e) {
+                StashLog.e(TAG, "error writing checkpoint in " + dir, e);
+            }
+        }
+    };
+    private Segment active;
+    private long size;
+    private long lastAppendNanos;
+    private boolean checkpointScheduled;
+    private int checkpointGeneration;
+    private int writtenGeneration;
+    private boolean closed;
+
+    /** Derives the group of an original key, or null if it doesn't belong to one. */
+    interface Grouper {
+        String group(String key);
+    }
+
+    private SegmentStore(File dir, int version, long maxSize, Grouper grouper, Scheduler.Worker compactor) {
+        this.dir = dir;
+        this.version = version;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, maxSize / 4));
+        this.grouper = grouper;
+        this.ownsCompactor = compactor == null;
+        this.compactor = ownsCompactor ? Schedulers.io().createWorker() : compactor;
+    }
+
+    static SegmentStore open(File dir, int version, long maxSize) throws IOException {
+        return open(dir, version, maxSize, null);
+    }
+
+    static SegmentStore open(File dir, int version, long maxSize, Grouper grouper) throws IOException {
+        return open(dir, version, maxSize, grouper, null);
+    }
+
+    /**
+     * Opens the store in {@code dir}, running its background work on {@code compactor}, which several stores can
+     * share and which closing the store leaves subscribed. A null {@code compactor} gives the store its own.
+     */
+    static SegmentStore open(File dir, int version, long maxSize, Grouper grouper, Scheduler.Worker compactor)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create dir: " + dir);
+        }
+        SegmentStore store = new SegmentStore(dir, version, maxSize, grouper, compactor);
+        synchronized (store) {
+            store.load();
+        }
+        return store;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    long maxSize() {
+        return maxSize;
+    }
+
+    File getDirectory() {
+        return dir;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /** Returns the number of live keys. */
+    synchronized int count() {
+        return index.size();
+    }
+
+    synchronized int count(String group) {
+        Set<String> keys = groups.get(group);
+        return keys == null ? 0 : keys.size();
+    }
+
+    /** Returns the original keys of every live record. */
+    synchronized List<String> keys() {
+        List<String> keys = new ArrayList<String>(index.size());
+        for (Location location : index.values()) {
+            keys.add(location.key);
+        }
+        return keys;
+    }
+
+    synchronized List<String> keys(String group) {
+        Set<String> keys = groups.get(group);
+        return keys == null ? new ArrayList<String>(0) : new ArrayList<String>(keys);
+    }
+
+    synchronized List<String> groups() {
+        return new ArrayList<String>(groups.keySet());
+    }
+
+    /**
+     * Returns a snapshot of the current record for {@code key}, which must be closed, or null if there is none.
+     */
+    Snapshot get(String key) throws IOException {
+        return get(key, KeyHash.of(key));
+    }
+
+    /**
+     * @param hash the {@link KeyHash} of {@code key}, for callers that look the same key up repeatedly
+     */
+    synchronized Snapshot get(String key, KeyHash hash) throws IOException {
+        checkNotClosed();
+        Location location = index.get(hash);
+        if (location == null || !location.key.equals(key)) {
+            return null;
+        }
+        touch(location);
+        location.segment.acquire();
+        return new Snapshot(location);
+    }
+
+    void put(String key, byte[] metadata, byte[] body) throws IOException {
+        put(key, KeyHash.of(key), metadata, body, 0);
+    }
+
+    /**
+     * @param codec id of the codec {@code body} is encoded with, from 0 to {@link #MAX_CODEC}
+     */
+    void put(String key, KeyHash hash, byte[] metadata, byte[] body, int codec) throws IOException {
+        putAll(Collections.singletonList(new Write(key, hash, metadata, body, codec)));
+    }
+
+    /**
+     * Appends the records of {@code writes} as one group, with a single write to the active segment, and indexes
+     * them in order.
+     */
+    synchronized void putAll(List<Write> writes) throws IOException {
+        checkNotClosed();
+        final int count = writes.size();
+        if (count == 0) {
+            return;
+        }
+        byte[][] records = new byte[count][];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            Write write = writes.get(i);
+            if (write.codec < 0 || write.codec > MAX_CODEC) {
+                throw new IllegalArgumentException("codec out of range: " + write.codec);
+            }
+            records[i] = encode((byte) (OP_PUT | write.codec << CODEC_SHIFT), write.key, write.metadata, write.body);
+            length += records[i].length;
+        }
+        ByteBuffer group = ByteBuffer.allocate(length);
+        for (byte[] record : records) {
+            group.put(record);
+        }
+        group.flip();
+        long position = append(group);
+        for (int i = 0; i < count; i++) {
+            Write write = writes.get(i);
+            Location location = new Location(active, position, write.key, write.hash, write.metadata.length,
+                    write.body.length, write.codec);
+            position += records[i].length;
+            // replaces the record of a colliding key too, which is then simply gone from the cache
+            kill(index.remove(write.hash));
+            touch(location);
+            link(location);
+            location.segment.live += location.length;
+            size += location.length;
+        }
+        trimToSize();
+    }
+
+    boolean remove(String key) throws IOException {
+        return remove(key, KeyHash.of(key));
+    }
+
+    synchronized boolean remove(String key, KeyHash hash) throws IOException {
+        checkNotClosed();
+        Location location = unindex(key, hash);
+        if (location == null) {
+            return false;
+        }
+        // tombstones are never live, they only shadow older records until those are compacted away
+        append(encode(OP_DELETE, key, new byte[0], new byte[0]), key, hash, 0, 0, 0);
+        kill(location);
+        return true;
+    }
+
+    /** Removes the record of {@code key} from the index, unless the hash belongs to a different key. */
+    private Location unindex(String key, KeyHash hash) {
+        Location location = index.get(hash);
+        if (location == null || !location.key.equals(key)) {
+            return null;
+        }
+        return index.remove(hash);
+    }
+
+    /**
+     * Drops every record. Segments are deleted once their last snapshot is closed, and appending continues in a new
+     * one.
+     */
+    synchronized void clear() throws IOException {
+        checkNotClosed();
+        final int next = active.id + 1;
+        for (Segment segment : segments.values()) {
+            segment.retire();
+        }
+        segments.clear();
+        compacting.clear();
+        index.clear();
+        groups.clear();
+        size = 0;
+        active = newSegment(next);
+        // it only refers to retired segments now
+        deleteQuietly(new File(dir, CHECKPOINT_NAME));
+    }
+
+    /** Returns whether {@code name} is one of the files a store keeps in its dir. */
+    static boolean isStoreFile(String name) {
+        return SEGMENT_NAME.matcher(name).matches() || name.equals(CHECKPOINT_NAME)
+                || name.equals(CHECKPOINT_NAME + ".tmp");
+    }
+
+    synchronized void flush() throws IOException {
+        checkNotClosed();
+        active.channel.force(false);
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (ownsCompactor) {
+            compactor.unsubscribe();
+        }
+        active.channel.force(false);
+        try {
+            writeCheckpoint(snapshotCheckpoint());
+        } catch (IOException e) {
+            StashLog.e(TAG, "error writing checkpoint in " + dir, e);
+        }
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.release();
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    /**
+     * Closes the store and deletes every file in its directory.
+     */
+    void delete() throws IOException {
+        close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("failed to delete file: " + file);
+                }
+            }
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("store is closed");
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                Matcher matcher = SEGMENT_NAME.matcher(name);
+                if (matcher.matches()) {
+                    int id = Integer.parseInt(matcher.group(1));
+                    segments.put(id, new Segment(id, file));
+                } else if (name.equals(CHECKPOINT_NAME + ".tmp")) {
+                    deleteQuietly(file);
+                } else if (LEGACY_NAME.matcher(name).matches()) {
+                    // left behind by DiskLruCache, which this store replaces
+                    StashLog.d(TAG, "deleting legacy cache file: %s", name);
+                    deleteQuietly(file);
+                }
+            }
+        }
+        long replayed = 0;
+        try {
+            Map<Integer, Long> restored = restoreCheckpoint();
+            for (Segment segment : segments.values()) {
+                Long from = restored.get(segment.id);
+                replayed += replay(segment, from == null ? SEGMENT_HEADER_SIZE : from);
+            }
+        } catch (VersionMismatchException e) {
+            StashLog.d(TAG, "%s, clearing cache in dir: %s", e.getMessage(), dir);
+            deleteQuietly(new File(dir, CHECKPOINT_NAME));
+            for (Segment segment : segments.values()) {
+                segment.release();
+                deleteQuietly(segment.file);
+            }
+            segments.clear();
+            index.clear();
+            groups.clear();
+            size = 0;
+        }
+        active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+        for (Segment segment : segments.values()) {
+            if (segment != active) {
+                segment.seal();
+            }
+        }
+        trimToSize();
+        // compaction checks wait until the first requests after opening are done
+        whenIdle(new Action0() {
+            @Override public void call() {
+                synchronized (SegmentStore.this) {
+                    for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                        maybeCompact(segment);
+                    }
+                }
+            }
+        });
+        if (replayed > segmentSize) {
+            scheduleCheckpoint();
+        }
+    }
+
+    /**
+     * Replays the records of {@code segment} from {@code from} on.
+     *
+     * @return the number of bytes replayed
+     */
+    private long replay(Segment segment, long from) throws IOException {
+        final long fileLength = segment.channel.size();
+        if (fileLength < SEGMENT_HEADER_SIZE) {
+            writeHeader(segment);
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        readFully(segment.channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new VersionMismatchException("unknown segment format: " + segment.file.getName());
+        }
+        int segmentVersion = header.getInt();
+        if (segmentVersion != version) {
+            throw new VersionMismatchException("version changed from " + segmentVersion + " to " + version);
+        }
+
+        long position = from;
+        while (position < fileLength) {
+            Record record = readRecord(segment.channel, position, fileLength);
+            if (record == null) {
+                // torn or corrupt tail, most likely an interrupted append; drop everything from here
+                StashLog.w(TAG, "truncating %s at %d", segment.file.getName(), position);
+                segment.channel.truncate(position);
+                break;
+            }
+            KeyHash hash = KeyHash.of(record.key);
+            if (record.op == OP_PUT) {
+                Location location = new Location(segment, position, record.key, hash, record.metadataLength,
+                        record.bodyLength, record.codec);
+                kill(index.remove(hash));
+                touch(location);
+                link(location);
+                segment.live += location.length;
+                size += location.length;
+            } else {
+                kill(unindex(record.key, hash));
+            }
+            position += record.length;
+        }
+        segment.length = position;
+        return position - from;
+    }
+
+    /**
+     * Restores the index entries of the checkpoint, if there is a usable one.
+     *
+     * @return the length of each segment the checkpoint covers, replaying can start there
+     */
+    private Map<Integer, Long> restoreCheckpoint() throws IOException {
+        final File file = new File(dir, CHECKPOINT_NAME);
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+        final Map<Integer, Long> covered = new HashMap<Integer, Long>();
+        final List<Location> locations = new ArrayList<Location>();
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != version) {
+                StashLog.d(TAG, "ignoring checkpoint of another format or version in %s", dir);
+                return Collections.emptyMap();
+            }
+            final int activeId = in.readInt();
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                int id = in.readInt();
+                long length = in.readLong();
+                Segment segment = segments.get(id);
+                if (segment != null) {
+                    if (segment.channel.size() != length) {
+                        StashLog.w(TAG, "%s changed since the checkpoint", segment.file.getName());
+                        return Collections.emptyMap();
+                    }
+                    covered.put(id, length);
+                }
+            }
+            for (Segment segment : segments.values()) {
+                if (!covered.containsKey(segment.id) && segment.id < activeId) {
+                    // it would be replayed after newer records
+                    StashLog.w(TAG, "%s is missing from the checkpoint", segment.file.getName());
+                    return Collections.emptyMap();
+                }
+            }
+            for (int i = 0, count = in.readInt(); i < count; i++) {
+                Segment segment = segments.get(in.readInt());
+                long position = in.readLong();
+                int codec = in.readUnsignedByte();
+                int metadataLength = in.readInt();
+                int bodyLength = in.readInt();
+                String key = in.readUTF();
+                if (segment != null) {
+                    // compacted since if missing, its live records were copied to a segment that is replayed
+                    locations.add(new Location(segment, position, key, KeyHash.of(key), metadataLength, bodyLength,
+                            codec));
+                }
+            }
+            final int crc = (int) checked.getChecksum().getValue();
+            if (in.readInt() != crc) {
+                StashLog.w(TAG, "corrupt checkpoint in %s", dir);
+                return Collections.emptyMap();
+            }
+        } catch (IOException e) {
+            // replaying everything still works
+            StashLog.e(TAG, "unreadable checkpoint in " + dir, e);
+            return Collections.emptyMap();
+        } finally {
+            in.close();
+        }
+        for (Location location : locations) {
+            kill(index.remove(location.hash));
+            touch(location);
+            link(location);
+            location.segment.live += location.length;
+            size += location.length;
+        }
+        for (Map.Entry<Integer, Long> entry : covered.entrySet()) {
+            segments.get(entry.getKey()).length = entry.getValue();
+        }
+        StashLog.d(TAG, "restored %d entries from the checkpoint in %s", locations.size(), dir);
+        return covered;
+    }
+
+    /**
+     * Copies what a checkpoint needs: sealed segments and the index entries that point into them, least recently
+     * used first. Sealed segments were forced to disk and never change, so the checkpoint stays valid for as long as
+     * they exist.
+     */
+    private Checkpoint snapshotCheckpoint() {
+        Map<Integer, Long> sealed = new LinkedHashMap<Integer, Long>();
+        for (Segment segment : segments.values()) {
+            if (segment != active) {
+                sealed.put(segment.id, segment.length);
+            }
+        }
+        List<Location> locations = new ArrayList<Location>();
+        for (Location location : index.values()) {
+            if (location.segment != active) {
+                locations.add(location);
+            }
+        }
+        return new Checkpoint(++checkpointGeneration, active.id, sealed, locations);
+    }
+
+    private void scheduleCheckpoint() {
+        if (!checkpointScheduled && !closed) {
+            checkpointScheduled = true;
+            whenIdle(checkpointAction);
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        final Checkpoint checkpoint;
+        synchronized (this) {
+            checkpointScheduled = false;
+            if (closed) {
+                return;
+            }
+            checkpoint = snapshotCheckpoint();
+        }
+        writeCheckpoint(checkpoint);
+    }
+
+    private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+        synchronized (checkpointLock) {
+            if (checkpoint.generation <= writtenGeneration) {
+                return;
+            }
+            final File file = new File(dir, CHECKPOINT_NAME);
+            final File tmp = new File(dir, CHECKPOINT_NAME + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            try {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(version);
+                out.writeInt(checkpoint.activeId);
+                out.writeInt(checkpoint.segments.size());
+                for (Map.Entry<Integer, Long> entry : checkpoint.segments.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+                out.writeInt(checkpoint.locations.size());
+                for (Location location : checkpoint.locations) {
+                    out.writeInt(location.segment.id);
+                    out.writeLong(location.position);
+                    out.writeByte(location.codec);
+                    out.writeInt(location.metadataLength);
+                    out.writeInt(location.bodyLength);
+                    out.writeUTF(location.key);
+                }
+                out.flush();
+                out.writeInt((int) checked.getChecksum().getValue());
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                deleteQuietly(tmp);
+                throw new IOException("unable to rename " + tmp);
+            }
+            writtenGeneration = checkpoint.generation;
+            StashLog.d(TAG, "wrote checkpoint of %d entries in %s", checkpoint.locations.size(), dir);
+        }
+    }
+
+    /**
+     * Runs {@code action} on the compactor once no record was appended for {@link #IDLE_MILLIS}.
+     */
+    private void whenIdle(final Action0 action) {
+        compactor.schedule(new Action0() {
+            private int waits;
+
+            @Override public void call() {
+                synchronized (SegmentStore.this) {
+                    if (closed) {
+                        return;
+                    }
+                    long idle = System.nanoTime() - lastAppendNanos;
+                    if (idle < TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS) && ++waits < MAX_IDLE_WAITS) {
+                        compactor.schedule(this, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+                action.call();
+            }
+        }, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, "segment-" + id + ".log"));
+        writeHeader(segment);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void writeHeader(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(version).flip();
+        segment.channel.truncate(0);
+        writeFully(segment.channel, header, 0);
+        segment.length = SEGMENT_HEADER_SIZE;
+    }
+
+    private Location append(byte[] record, String key, KeyHash hash, int metadataLength, int bodyLength, int codec)
+            throws IOException {
+        final long position = append(ByteBuffer.wrap(record));
+        return new Location(active, position, key, hash, metadataLength, bodyLength, codec);
+    }
+
+    /** Writes {@code records} to the end of the active segment, sealing it first if it is full. */
+    private long append(ByteBuffer records) throws IOException {
+        if (active.length >= segmentSize) {
+            Segment sealed = active;
+            sealed.channel.force(false);
+            sealed.seal();
+            active = newSegment(sealed.id + 1);
+            maybeCompact(sealed);
+            scheduleCheckpoint();
+        }
+        final long position = active.length;
+        final int length = records.remaining();
+        writeFully(active.channel, records, position);
+        active.length += length;
+        lastAppendNanos = System.nanoTime();
+        return position;
+    }
+
+    /**
+     * Makes {@code location} the most recently used entry. The index is insertion ordered, so lookups that aren't
+     * accesses, and replacing the location of a key in place, keep the order as it is.
+     */
+    private void touch(Location location) {
+        index.remove(location.hash);
+        index.put(location.hash, location);
+    }
+
+    /** Adds a record that was just put in the index to its group. */
+    private void link(Location location) {
+        String group = (grouper == null) ? null : grouper.group(location.key);
+        if (group != null) {
+            Set<String> keys = groups.get(group);
+            if (keys == null) {
+                keys = new LinkedHashSet<String>();
+                groups.put(group, keys);
+            }
+            keys.add(location.key);
+        }
+    }
+
+    /** Accounts for a record that is no longer reachable from the index. */
+    private void kill(Location location) {
+        if (location != null) {
+            String group = (grouper == null) ? null : grouper.group(location.key);
+            Set<String> keys = (group == null) ? null : groups.get(group);
+            if (keys != null && keys.remove(location.key) && keys.isEmpty()) {
+                groups.remove(group);
+            }
+            location.segment.live -= location.length;
+            size -= location.length;
+            maybeCompact(location.segment);
+        }
+    }
+
+    private void trimToSize() throws IOException {
+        List<byte[]> tombstones = null;
+        Iterator<Location> it = index.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Location eldest = it.next();
+            it.remove();
+            kill(eldest);
+            if (tombstones == null) {
+                tombstones = new ArrayList<byte[]>();
+            }
+            // without one, compaction could drop this record while an older one of the key survives a replay
+            tombstones.add(encode(OP_DELETE, eldest.key, new byte[0], new byte[0]));
+        }
+        if (tombstones != null) {
+            int length = 0;
+            for (byte[] tombstone : tombstones) {
+                length += tombstone.length;
+            }
+            ByteBuffer group = ByteBuffer.allocate(length);
+            for (byte[] tombstone : tombstones) {
+                group.put(tombstone);
+            }
+            group.flip();
+            append(group);
+        }
+    }
+
+    private void maybeCompact(final Segment segment) {
+        // active is null while replaying, load() checks every segment once it is done
+        if (active == null || segment == active || closed || compacting.contains(segment)
+                || segment.live > (segment.length - SEGMENT_HEADER_SIZE) * COMPACTION_THRESHOLD) {
+            return;
+        }
+        compacting.add(segment);
+        compactor.schedule(new Action0() {
+            @Override public void call() {
+                try {
+                    compact(segment);
+                } catch (Throwable e) {
+                    StashLog.e(TAG, "error compacting " + segment.file.getName(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the active one and deletes it. Runs on the compactor; the
+     * segment is read without holding the lock since sealed segments never change.
+     */
+    private void compact(Segment segment) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        final List<Segment> older;
+        synchronized (this) {
+            if (closed || !segments.containsValue(segment)) {
+                return;
+            }
+            segment.acquire();
+            older = new ArrayList<Segment>(segments.headMap(segment.id).values());
+            for (Segment o : older) {
+                o.acquire();
+            }
+        }
+        try {
+            for (Segment o : older) {
+                // scanned once per sealed segment, before the lock is taken below
+                o.putKeys();
+            }
+            long position = SEGMENT_HEADER_SIZE;
+            while (position < segment.length) {
+                Record record = readRecord(segment.channel, position, segment.length);
+                if (record == null) {
+                    break;
+                }
+                record.position = position;
+                records.add(record);
+                position += record.length;
+            }
+        } finally {
+            segment.release();
+            for (Segment o : older) {
+                o.release();
+            }
+        }
+
+        synchronized (this) {
+            if (closed || !segments.containsValue(segment)) {
+                // cleared while it was read
+                return;
+            }
+            for (Record record : records) {
+                KeyHash hash = KeyHash.of(record.key);
+                Location current = index.get(hash);
+                if (record.op == OP_PUT) {
+                    if (current != null && current.segment == segment && current.position == record.position) {
+                        Location moved = append(record.bytes, record.key, hash, record.metadataLength,
+                                record.bodyLength, record.codec);
+                        moved.segment.live += moved.length;
+                        segment.live -= current.length;
+                        // the key is already indexed, so this keeps its place in the eviction order
+                        index.put(hash, moved);
+                    }
+                } else if ((current == null || !current.key.equals(record.key))
+                        && isShadowing(hash, older)) {
+                    // an older segment still holds a put of the key, which would come back on replay
+                    append(record.bytes, record.key, hash, 0, 0, 0);
+                }
+            }
+            segments.remove(segment.id);
+            compacting.remove(segment);
+            segment.retire();
+            StashLog.d(TAG, "compacted %s, %d records", segment.file.getName(), records.size());
+        }
+    }
+
+    /** Returns true if one of the {@code older} segments still in the log holds a put of the key. */
+    private boolean isShadowing(KeyHash hash, List<Segment> older) throws IOException {
+        for (Segment segment : older) {
+            if (segments.get(segment.id) == segment && segment.putKeys().contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] encode(byte op, String key, byte[] metadata, byte[] body) {
+        byte[] keyBytes = utf8(key);
+        int length = RECORD_HEADER_SIZE + keyBytes.length + metadata.length + body.length + CRC_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(op)
+                .putInt(keyBytes.length)
+                .putInt(metadata.length)
+                .putInt(body.length)
+                .put(keyBytes)
+                .put(metadata)
+                .put(body);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, length - CRC_SIZE);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Reads and verifies the record at {@code position}, or returns null if it is truncated or corrupt.
+     */
+    private static Record readRecord(FileChannel channel, long position, long limit) throws IOException {
+        if (limit - position < RECORD_HEADER_SIZE + CRC_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, position);
+        header.flip();
+        int flags = header.get() & 0xff;
+        byte op = (byte) (flags & OP_MASK);
+        int keyLength = header.getInt();
+        int metadataLength = header.getInt();
+        int bodyLength = header.getInt();
+        if ((op != OP_PUT && op != OP_DELETE) || keyLength < 0 || metadataLength < 0 || bodyLength < 0) {
+            return null;
+        }
+        long length = (long) RECORD_HEADER_SIZE + keyLength + metadataLength + bodyLength + CRC_SIZE;
+        if (length > limit - position || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) length);
+        readFully(channel, bytes, position);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, (int) length - CRC_SIZE);
+        bytes.position((int) length - CRC_SIZE);
+        if (bytes.getInt() != (int) crc.getValue()) {
+            return null;
+        }
+        String key = new String(bytes.array(), RECORD_HEADER_SIZE, keyLength, "UTF-8");
+        return new Record(op, flags >>> CODEC_SHIFT, key, metadataLength, bodyLength, bytes.array());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (!file.delete() && file.exists()) {
+            StashLog.w(TAG, "failed to delete file: %s", file);
+        }
+    }
+
+    private static final class Checkpoint {
+        private final int generation;
+        private final int activeId;
+        private final Map<Integer, Long> segments;
+        private final List<Location> locations;
+
+        private Checkpoint(int generation, int activeId, Map<Integer, Long> segments, List<Location> locations) {
+            this.generation = generation;
+            this.activeId = activeId;
+            this.segments = segments;
+            this.locations = locations;
+        }
+    }
+
+    private static final class VersionMismatchException extends IOException {
+        private VersionMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A segment file. The store holds one reference while the segment is part of the log, and each open snapshot
+     * holds another, so compaction never deletes a file that is still being read.
+     */
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long length;
+        private long live;
+        private int refCount = 1;
+        private boolean deleteOnRelease;
+        private boolean sealed;
+        private MappedByteBuffer mapped;
+        private Set<KeyHash> putKeys;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        private synchronized void acquire() {
+            refCount++;
+        }
+
+        /** Marks the segment as complete, it is never appended to again. */
+        private synchronized void seal() {
+            sealed = true;
+        }
+
+        /**
+         * Returns a read-only view of {@code [position, position + length)} backed by a mapping of the file, or null
+         * if the segment is still being appended to. A sealed segment never changes, so it is mapped once.
+         */
+        private synchronized ByteBuffer map(long position, int length) throws IOException {
+            if (!sealed) {
+                return null;
+            }
+            if (mapped == null) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            long end = position + length;
+            ByteBuffer region = mapped.duplicate();
+            region.limit((int) end).position((int) position);
+            return region.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the hashes of every key this sealed segment holds a put of, dead or alive. Scanned from the record
+         * headers the first time, the segment never changes after that.
+         */
+        private synchronized Set<KeyHash> putKeys() throws IOException {
+            if (putKeys == null) {
+                Set<KeyHash> keys = new HashSet<KeyHash>();
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                long position = SEGMENT_HEADER_SIZE;
+                while (length - position >= RECORD_HEADER_SIZE + CRC_SIZE) {
+                    header.clear();
+                    readFully(channel, header, position);
+                    header.flip();
+                    byte op = (byte) (header.get() & OP_MASK);
+                    int keyLength = header.getInt();
+                    int metadataLength = header.getInt();
+                    int bodyLength = header.getInt();
+                    if (op == OP_PUT) {
+                        ByteBuffer key = ByteBuffer.allocate(keyLength);
+                        readFully(channel, key, position + RECORD_HEADER_SIZE);
+                        keys.add(KeyHash.of(new String(key.array(), "UTF-8")));
+                    }
+                    position += (long) RECORD_HEADER_SIZE + keyLength + metadataLength + bodyLength + CRC_SIZE;
+                }
+                putKeys = keys;
+            }
+            return putKeys;
+        }
+
+        /** Drops the store's reference, deleting the file once the last reader is done. */
+        private synchronized void retire() {
+            deleteOnRelease = true;
+            release();
+        }
+
+        private synchronized void release() {
+            if (--refCount == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    StashLog.e(TAG, "error closing " + file.getName(), e);
+                }
+                if (deleteOnRelease) {
+                    deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    /** One record of a {@link #putAll(List) group}. */
+    static final class Write {
+        private final String key;
+        private final KeyHash hash;
+        private final byte[] metadata;
+        private final byte[] body;
+        private final int codec;
+
+        Write(String key, KeyHash hash, byte[] metadata, byte[] body, int codec) {
+            this.key = key;
+            this.hash = hash;
+            this.metadata = metadata;
+            this.body = body;
+            this.codec = codec;
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final long position;
+        private final String key;
+        private final KeyHash hash;
+        private final int keyLength;
+        private final int metadataLength;
+        private final int bodyLength;
+        private final int codec;
+        private final int length;
+
+        private Location(Segment segment, long position, String key, KeyHash hash, int metadataLength,
+                int bodyLength, int codec) {
+            this.segment = segment;
+            this.position = position;
+            this.key = key;
+            this.hash = hash;
+            this.keyLength = utf8(key).length;
+            this.metadataLength = metadataLength;
+            this.bodyLength = bodyLength;
+            this.codec = codec;
+            this.length = RECORD_HEADER_SIZE + keyLength + metadataLength + bodyLength + CRC_SIZE;
+        }
+
+        private long metadataPosition() {
+            return position + RECORD_HEADER_SIZE + keyLength;
+        }
+
+        private long bodyPosition() {
+            return metadataPosition() + metadataLength;
+        }
+    }
+
+    private static final class Record {
+        private final byte op;
+        private final int codec;
+        private final String key;
+        private final int metadataLength;
+        private final int bodyLength;
+        private final byte[] bytes;
+        private final int length;
+        private long position;
+
+        private Record(byte op, int codec, String key, int metadataLength, int bodyLength, byte[] bytes) {
+            this.op = op;
+            this.codec = codec;
+            this.key = key;
+            this.metadataLength = metadataLength;
+            this.bodyLength = bodyLength;
+            this.bytes = bytes;
+            this.length = bytes.length;
+        }
+    }
+
+    /**
+     * A view of one record at the time it was read. Sections are streamed straight from the segment file.
+     */
+    final class Snapshot implements Closeable {
+        private final Location location;
+        private boolean closed;
+
+        private Snapshot(Location location) {
+            this.location = location;
+        }
+
+        String getKey() {
+            return location.key;
+        }
+
+        KeyHash getKeyHash() {
+            return location.hash;
+        }
+
+        InputStream getMetadata() {
+            return new RegionInputStream(location.segment.channel, location.metadataPosition(),
+                    location.metadataLength);
+        }
+
+        InputStream getBody() {
+            return new RegionInputStream(location.segment.channel, location.bodyPosition(), location.bodyLength);
+        }
+
+        int getBodyLength() {
+            return location.bodyLength;
+        }
+
+        /** Returns the id of the codec the body was stored with, 0 if it is stored as is. */
+        int getCodec() {
+            return location.codec;
+        }
+
+        /**
+         * Returns the body as a read-only buffer mapped from the segment file, without copying it to the heap, or
+         * null if the record is in the active segment, which keeps growing. The buffer stays readable after the
+         * snapshot is closed.
+         */
+        ByteBuffer mapBody() throws IOException {
+            return location.segment.map(location.bodyPosition(), location.bodyLength);
+        }
+
+        /**
+         * Returns true if this is still the latest record for its key.
+         */
+        boolean isCurrent() {
+            synchronized (SegmentStore.this) {
+                return !SegmentStore.this.closed
+                        && index.get(location.hash) == location;
+            }
+        }
+
+        @Override public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            location.segment.release();
+        }
+    }
+
+    private static final class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+        private long remaining;
+
+        private RegionInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+            this.buffer = ByteBuffer.allocate((int) Math.min(8192, Math.max(1, length)));
+            buffer.limit(0);
+        }
+
+        @Override public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + remaining);
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (remaining == 0) {
+                return false;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            readFully(channel, buffer, position);
+            buffer.flip();
+            position += buffer.limit();
+            remaining -= buffer.limit();
+            return true;
+        }
+    }
+}
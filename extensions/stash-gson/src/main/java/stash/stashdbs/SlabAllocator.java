@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands out fixed size pages carved from direct {@link ByteBuffer} slabs. A value is stored in as many pages as it
+ * needs, which don't have to be contiguous, so there is no external fragmentation. Slabs are allocated lazily up to
+ * the configured maximum.
+ * <p>
+ * Not thread safe, callers must synchronize.
+ */
+final class SlabAllocator {
+    private final int pageSize;
+    private final int pagesPerSlab;
+    private final ByteBuffer[] slabs;
+    private int[] freePages;
+    private int freeCount;
+    private int slabCount;
+
+    SlabAllocator(int slabSize, int pageSize, int maxSlabs) {
+        if (pageSize <= 0 || slabSize < pageSize || maxSlabs <= 0) {
+            throw new IllegalArgumentException("invalid slab configuration");
+        }
+        this.pageSize = pageSize;
+        this.pagesPerSlab = slabSize / pageSize;
+        this.slabs = new ByteBuffer[maxSlabs];
+        this.freePages = new int[pagesPerSlab];
+    }
+
+    int pageSize() {
+        return pageSize;
+    }
+
+    int pagesFor(int length) {
+        return Math.max(1, (length + pageSize - 1) / pageSize);
+    }
+
+    int capacityPages() {
+        return pagesPerSlab * slabs.length;
+    }
+
+    int freePages() {
+        return freeCount + (slabs.length - slabCount) * pagesPerSlab;
+    }
+
+    long allocatedBytes() {
+        return (long) slabCount * pagesPerSlab * pageSize;
+    }
+
+    /**
+     * @return the allocated page numbers, or null if there aren't enough free pages
+     */
+    int[] allocate(int length) {
+        final int count = pagesFor(length);
+        if (count > freePages()) {
+            return null;
+        }
+        while (freeCount < count) {
+            addSlab();
+        }
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            pages[i] = freePages[--freeCount];
+        }
+        return pages;
+    }
+
+    void free(int[] pages) {
+        for (int page : pages) {
+            freePages[freeCount++] = page;
+        }
+    }
+
+    void write(int[] pages, byte[] src, int length) {
+        int offset = 0;
+        for (int page : pages) {
+            int count = Math.min(pageSize, length - offset);
+            ByteBuffer slab = position(page);
+            slab.put(src, offset, count);
+            offset += count;
+        }
+    }
+
+    void read(int[] pages, byte[] dst, int length) {
+        int offset = 0;
+        for (int page : pages) {
+            int count = Math.min(pageSize, length - offset);
+            ByteBuffer slab = position(page);
+            slab.get(dst, offset, count);
+            offset += count;
+        }
+    }
+
+    private ByteBuffer position(int page) {
+        ByteBuffer slab = slabs[page / pagesPerSlab];
+        slab.clear();
+        slab.position((page % pagesPerSlab) * pageSize);
+        return slab;
+    }
+
+    private void addSlab() {
+        final int slab = slabCount++;
+        slabs[slab] = ByteBuffer.allocateDirect(pagesPerSlab * pageSize);
+        // every allocated page may be free at once
+        final int total = slabCount * pagesPerSlab;
+        if (freePages.length < total) {
+            int[] pages = new int[total];
+            System.arraycopy(freePages, 0, pages, 0, freeCount);
+            freePages = pages;
+        }
+        // push in reverse so pages are handed out in address order
+        for (int i = pagesPerSlab - 1; i >= 0; i--) {
+            freePages[freeCount++] = slab * pagesPerSlab + i;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import stash.ElementReader;
+import stash.annotations.Tag;
+import stash.internal.Util;
+import stash.stashdbs.FileDb;
+
+/**
+ * Stores types that have a generated {@link BinarySchema} in the tagged binary format, and everything else with the
+ * fallback converter. Binary bodies start with a zero byte, which no JSON text does, so a type can gain a schema
+ * while its old JSON records are still on disk: they are read by the fallback until they are next written.
+ * <pre>
+ * 0:byte version:byte object
+ * </pre>
+ */
+public final class BinaryConverter implements FileDb.BufferConverter, FileDb.StreamingConverter {
+    private static final int MAGIC = 0;
+    private static final int VERSION = 1;
+
+    private final FileDb.BufferConverter fallback;
+
+    public BinaryConverter(FileDb.BufferConverter fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override public <T> T fromFile(Class<T> clazz, InputStream in) throws IOException {
+        BinarySchema<T> schema = BinarySchemas.get(clazz);
+        if (schema == null) {
+            return fallback.fromFile(clazz, in);
+        }
+        PushbackInputStream source = new PushbackInputStream(in, 1);
+        int first = source.read();
+        if (first != MAGIC) {
+            if (first != -1) {
+                source.unread(first);
+            }
+            return fallback.fromFile(clazz, source);
+        }
+        return read(schema, readFully(source));
+    }
+
+    @Override public <T> T fromBuffer(Class<T> clazz, ByteBuffer buffer) throws IOException {
+        BinarySchema<T> schema = BinarySchemas.get(clazz);
+        if (schema == null || !buffer.hasRemaining() || buffer.get(buffer.position()) != MAGIC) {
+            return fallback.fromBuffer(clazz, buffer);
+        }
+        buffer.get();
+        return read(schema, buffer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public <T> void toFile(OutputStream out, T data) throws IOException {
+        BinarySchema<T> schema = (data == null) ? null : BinarySchemas.get((Class<T>) data.getClass());
+        if (schema == null) {
+            fallback.toFile(out, data);
+            return;
+        }
+        BinaryWriter writer = new BinaryWriter(out);
+        try {
+            writer.varint(MAGIC);
+            writer.varint(VERSION);
+            schema.write(writer, data);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Streams the elements of the list field stored under {@code field}'s {@link Tag}, decoding each as its bytes are
+     * read from {@code in}. JSON bodies are streamed by the fallback, if it can.
+     */
+    @Override public <E> ElementReader<E> openElements(Class<?> clazz, @Nullable String field, Class<E> elementType,
+            InputStream in) throws IOException {
+        PushbackInputStream source = new PushbackInputStream(in, 1);
+        int first = source.read();
+        if (first != MAGIC) {
+            if (first != -1) {
+                source.unread(first);
+            }
+            if (fallback instanceof FileDb.StreamingConverter) {
+                return ((FileDb.StreamingConverter) fallback).openElements(clazz, field, elementType, source);
+            }
+            source.close();
+            return null;
+        }
+        if (field == null) {
+            // binary bodies are always objects
+            source.close();
+            throw new IllegalStateException(clazz.getName() + " is not a collection");
+        }
+        Tag tag = Util.collectionField(clazz, field).getAnnotation(Tag.class);
+        BinarySchema<E> schema = BinarySchemas.elementSchema(elementType);
+        if (tag == null || schema == null) {
+            source.close();
+            throw new IOException("no binary schema for " + clazz.getName() + "." + field);
+        }
+        BinaryReader reader = new BinaryReader(source);
+        try {
+            return new ListReader<E>(begin(reader), schema, tag.value());
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /** Reads the rest of a body after the magic byte. */
+    private static <T> T read(BinarySchema<T> schema, ByteBuffer buffer) throws IOException {
+        return schema.read(begin(new BinaryReader(buffer)));
+    }
+
+    private static BinaryReader begin(BinaryReader reader) throws IOException {
+        long version = reader.varint();
+        if (version != VERSION) {
+            throw new IOException("unsupported binary format version " + version);
+        }
+        return reader;
+    }
+
+    /**
+     * Reads the rest of a body straight into the array the reader decodes from. Bodies of the file cache report their
+     * exact size, so they are copied once; the array only grows for streams that don't.
+     */
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        try {
+            byte[] bytes = new byte[Math.max(32, in.available())];
+            int size = 0;
+            int count;
+            while ((count = in.read(bytes, size, bytes.length - size)) != -1) {
+                size += count;
+                if (size == bytes.length) {
+                    int next = in.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                    bytes[size++] = (byte) next;
+                }
+            }
+            return ByteBuffer.wrap(bytes, 0, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class ListReader<E> implements ElementReader<E> {
+        private final BinaryReader reader;
+        private final BinarySchema<E> schema;
+        private int remaining;
+
+        private ListReader(BinaryReader reader, BinarySchema<E> schema, int tag) throws IOException {
+            this.reader = reader;
+            this.schema = schema;
+            int key;
+            while ((key = reader.readKey()) != WireType.END) {
+                if (WireType.tag(key) == tag && WireType.wireType(key) == WireType.LIST) {
+                    remaining = reader.beginList(key);
+                    return;
+                }
+                reader.skip(key);
+            }
+        }
+
+        @Override public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override public E next() throws IOException {
+            remaining--;
+            return reader.readElement(schema);
+        }
+
+        @Override public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
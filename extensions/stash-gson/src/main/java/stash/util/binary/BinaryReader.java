@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the tagged binary format described in {@link WireType} from a buffer, or from a stream through a buffer that
+ * is refilled as it is read, so values are decoded as their bytes arrive. The tagged methods take the key returned by
+ * {@link #readKey()} and fail if its wire type doesn't match, which only happens when a tag was reused for a field of
+ * another type.
+ */
+public final class BinaryReader implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int STREAM_BUFFER_SIZE = 8192;
+    // the longest varint
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private final InputStream in;
+    private ByteBuffer buffer;
+
+    public BinaryReader(ByteBuffer buffer) {
+        this.in = null;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads from {@code in}, which {@link #close()} closes. The buffer only grows past its initial size for a string
+     * or skipped payload that doesn't fit.
+     */
+    public BinaryReader(InputStream in) {
+        this.in = in;
+        this.buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        buffer.limit(0);
+    }
+
+    /** @return the next field's key, or 0 at the end of an object */
+    public int readKey() throws IOException {
+        long key = varint();
+        if (key < 0 || key > Integer.MAX_VALUE) {
+            throw new IOException("malformed key " + key);
+        }
+        return (int) key;
+    }
+
+    public long readVarint(int key) throws IOException {
+        expect(key, WireType.VARINT);
+        return zigzag();
+    }
+
+    public boolean readBoolean(int key) throws IOException {
+        expect(key, WireType.VARINT);
+        return varint() != 0;
+    }
+
+    public double readDouble(int key) throws IOException {
+        expect(key, WireType.FIXED64);
+        return Double.longBitsToDouble(fixed64());
+    }
+
+    public float readFloat(int key) throws IOException {
+        expect(key, WireType.FIXED32);
+        return Float.intBitsToFloat(fixed32());
+    }
+
+    public String readString(int key) throws IOException {
+        expect(key, WireType.BYTES);
+        return string();
+    }
+
+    public <T> T read(int key, BinarySchema<T> schema) throws IOException {
+        expect(key, schema.wireType());
+        return schema.read(this);
+    }
+
+    public <T> List<T> readList(int key, BinarySchema<T> schema) throws IOException {
+        int size = beginList(key);
+        List<T> list = new ArrayList<T>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readElement(schema));
+        }
+        return list;
+    }
+
+    /**
+     * Starts reading a list field element by element, with {@link #readElement(BinarySchema)}.
+     *
+     * @return the number of elements
+     */
+    public int beginList(int key) throws IOException {
+        expect(key, WireType.LIST);
+        return length();
+    }
+
+    public <T> T readElement(BinarySchema<T> schema) throws IOException {
+        int wireType = (int) varint();
+        if (wireType == WireType.NULL) {
+            return null;
+        } else if (wireType != schema.wireType()) {
+            throw new IOException("list element has wire type " + wireType + ", expected " + schema.wireType());
+        }
+        return schema.read(this);
+    }
+
+    /** Skips the payload of a field this reader doesn't know. */
+    public void skip(int key) throws IOException {
+        skipPayload(WireType.wireType(key));
+    }
+
+    public long varint() throws IOException {
+        fill(MAX_VARINT_SIZE);
+        try {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated varint");
+        }
+        throw new IOException("malformed varint");
+    }
+
+    public long zigzag() throws IOException {
+        long value = varint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long fixed64() throws IOException {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value |= (long) (buffer.get() & 0xff) << (i * 8);
+        }
+        return value;
+    }
+
+    public int fixed32() throws IOException {
+        require(4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (buffer.get() & 0xff) << (i * 8);
+        }
+        return value;
+    }
+
+    public String string() throws IOException {
+        final int length = length();
+        require(length);
+        final String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        return value;
+    }
+
+    @Override public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    private int length() throws IOException {
+        long length = varint();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("malformed length " + length);
+        } else if (in == null && length > buffer.remaining()) {
+            // a stream's remaining size isn't known, require() catches truncated payloads there
+            throw new IOException("length " + length + " exceeds the " + buffer.remaining() + " remaining bytes");
+        }
+        return (int) length;
+    }
+
+    private void skipPayload(int wireType) throws IOException {
+        switch (wireType) {
+            case WireType.VARINT:
+                varint();
+                break;
+            case WireType.FIXED64:
+                skipBytes(8);
+                break;
+            case WireType.FIXED32:
+                skipBytes(4);
+                break;
+            case WireType.BYTES:
+                skipBytes(length());
+                break;
+            case WireType.OBJECT:
+                int key;
+                while ((key = readKey()) != WireType.END) {
+                    skip(key);
+                }
+                break;
+            case WireType.LIST:
+                for (int i = 0, size = length(); i < size; i++) {
+                    skipPayload((int) varint());
+                }
+                break;
+            case WireType.NULL:
+                break;
+            default:
+                throw new IOException("unknown wire type " + wireType);
+        }
+    }
+
+    private void expect(int key, int wireType) throws IOException {
+        if (WireType.wireType(key) != wireType) {
+            throw new IOException("tag " + WireType.tag(key) + " has wire type " + WireType.wireType(key)
+                    + ", expected " + wireType);
+        }
+    }
+
+    private void skipBytes(int bytes) throws IOException {
+        require(bytes);
+        buffer.position(buffer.position() + bytes);
+    }
+
+    private void require(int bytes) throws IOException {
+        fill(bytes);
+        if (buffer.remaining() < bytes) {
+            throw new IOException("truncated payload, needs " + bytes + " bytes");
+        }
+    }
+
+    /**
+     * Reads from the stream, if there is one, until at least {@code bytes} are buffered or it ends. Reads as much as
+     * fits at once, so most values are decoded without touching the stream.
+     */
+    private void fill(int bytes) throws IOException {
+        if (in == null || buffer.remaining() >= bytes) {
+            return;
+        }
+        if (buffer.capacity() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes, buffer.capacity() * 2));
+            grown.put(buffer);
+            buffer = grown;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < bytes) {
+            int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (count == -1) {
+                break;
+            }
+            buffer.position(buffer.position() + count);
+        }
+        buffer.flip();
+    }
+}
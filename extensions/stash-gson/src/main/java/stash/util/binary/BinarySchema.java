@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes one type in the tagged binary format. Implementations for model classes are generated by
+ * stash-compiler for {@code @GenerateBinarySchema} types and found with {@link BinarySchemas#get(Class)}; the schemas
+ * for strings, boxed primitives, dates and enums live in {@link BinarySchemas}.
+ */
+public interface BinarySchema<T> {
+    Class<T> type();
+
+    /** @return the {@link WireType} of the payload */
+    int wireType();
+
+    /** Writes the payload of a non-null value, without a key. */
+    void write(BinaryWriter out, T value) throws IOException;
+
+    /** Reads a payload written by {@link #write(BinaryWriter, Object)}. */
+    T read(BinaryReader in) throws IOException;
+}
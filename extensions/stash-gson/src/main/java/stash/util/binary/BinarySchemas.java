@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import stash.internal.StashLog;
+
+/**
+ * The schemas for value types, which generated schemas use for fields and list elements, and the registry of
+ * generated {@link BinarySchema} services on the classpath.
+ */
+public final class BinarySchemas {
+    private static final String TAG = BinarySchemas.class.getSimpleName();
+
+    public static final BinarySchema<String> STRING = new Schema<String>(String.class, WireType.BYTES) {
+        @Override public void write(BinaryWriter out, String value) throws IOException {
+            out.string(value);
+        }
+
+        @Override public String read(BinaryReader in) throws IOException {
+            return in.string();
+        }
+    };
+
+    public static final BinarySchema<Boolean> BOOLEAN = new Schema<Boolean>(Boolean.class, WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Boolean value) throws IOException {
+            out.varint(value ? 1 : 0);
+        }
+
+        @Override public Boolean read(BinaryReader in) throws IOException {
+            return in.varint() != 0;
+        }
+    };
+
+    public static final BinarySchema<Byte> BYTE = new Schema<Byte>(Byte.class, WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Byte value) throws IOException {
+            out.zigzag(value);
+        }
+
+        @Override public Byte read(BinaryReader in) throws IOException {
+            return (byte) in.zigzag();
+        }
+    };
+
+    public static final BinarySchema<Short> SHORT = new Schema<Short>(Short.class, WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Short value) throws IOException {
+            out.zigzag(value);
+        }
+
+        @Override public Short read(BinaryReader in) throws IOException {
+            return (short) in.zigzag();
+        }
+    };
+
+    public static final BinarySchema<Character> CHARACTER = new Schema<Character>(Character.class,
+            WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Character value) throws IOException {
+            out.zigzag(value);
+        }
+
+        @Override public Character read(BinaryReader in) throws IOException {
+            return (char) in.zigzag();
+        }
+    };
+
+    public static final BinarySchema<Integer> INTEGER = new Schema<Integer>(Integer.class, WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Integer value) throws IOException {
+            out.zigzag(value);
+        }
+
+        @Override public Integer read(BinaryReader in) throws IOException {
+            return (int) in.zigzag();
+        }
+    };
+
+    public static final BinarySchema<Long> LONG = new Schema<Long>(Long.class, WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Long value) throws IOException {
+            out.zigzag(value);
+        }
+
+        @Override public Long read(BinaryReader in) throws IOException {
+            return in.zigzag();
+        }
+    };
+
+    public static final BinarySchema<Float> FLOAT = new Schema<Float>(Float.class, WireType.FIXED32) {
+        @Override public void write(BinaryWriter out, Float value) throws IOException {
+            out.fixed32(Float.floatToIntBits(value));
+        }
+
+        @Override public Float read(BinaryReader in) throws IOException {
+            return Float.intBitsToFloat(in.fixed32());
+        }
+    };
+
+    public static final BinarySchema<Double> DOUBLE = new Schema<Double>(Double.class, WireType.FIXED64) {
+        @Override public void write(BinaryWriter out, Double value) throws IOException {
+            out.fixed64(Double.doubleToLongBits(value));
+        }
+
+        @Override public Double read(BinaryReader in) throws IOException {
+            return Double.longBitsToDouble(in.fixed64());
+        }
+    };
+
+    /** Dates are stored as epoch milliseconds, so unlike JSON they don't depend on the default locale. */
+    public static final BinarySchema<Date> DATE = new Schema<Date>(Date.class, WireType.VARINT) {
+        @Override public void write(BinaryWriter out, Date value) throws IOException {
+            out.zigzag(value.getTime());
+        }
+
+        @Override public Date read(BinaryReader in) throws IOException {
+            return new Date(in.zigzag());
+        }
+    };
+
+    private static final Map<Class<?>, BinarySchema<?>> VALUE_SCHEMAS = new HashMap<Class<?>, BinarySchema<?>>();
+
+    static {
+        for (BinarySchema<?> schema : Arrays.<BinarySchema<?>>asList(STRING, BOOLEAN, BYTE, SHORT, CHARACTER,
+                INTEGER, LONG, FLOAT, DOUBLE, DATE)) {
+            VALUE_SCHEMAS.put(schema.type(), schema);
+        }
+    }
+
+    private BinarySchemas() { throw new AssertionError("no instances"); }
+
+    /**
+     * @return a schema storing constants by name, so reordering them is safe; an unknown name reads as null
+     */
+    public static <E extends Enum<E>> BinarySchema<E> forEnum(final Class<E> type) {
+        return new Schema<E>(type, WireType.BYTES) {
+            @Override public void write(BinaryWriter out, E value) throws IOException {
+                out.string(value.name());
+            }
+
+            @Override public E read(BinaryReader in) throws IOException {
+                String name = in.string();
+                try {
+                    return Enum.valueOf(type, name);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /** @return the generated schema for exactly this class, or null if it has none */
+    @SuppressWarnings("unchecked")
+    public static <T> BinarySchema<T> get(Class<T> type) {
+        return (BinarySchema<T>) Holder.SCHEMAS.get(type);
+    }
+
+    /** @return the schema for list elements of this class, including value types, or null if it has none */
+    @SuppressWarnings("unchecked")
+    static <T> BinarySchema<T> elementSchema(Class<T> type) {
+        BinarySchema<?> schema = VALUE_SCHEMAS.get(type);
+        if (schema == null && type.isEnum()) {
+            schema = forEnum(type.asSubclass(Enum.class));
+        }
+        return (schema == null) ? get(type) : (BinarySchema<T>) schema;
+    }
+
+    private static Map<Class<?>, BinarySchema<?>> load() {
+        Map<Class<?>, BinarySchema<?>> schemas = new HashMap<Class<?>, BinarySchema<?>>();
+        Iterator<BinarySchema> it = ServiceLoader.load(BinarySchema.class,
+                BinarySchemas.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!it.hasNext()) {
+                    break;
+                }
+                BinarySchema<?> schema = it.next();
+                schemas.put(schema.type(), schema);
+            } catch (ServiceConfigurationError e) {
+                // a stale or stripped entry only sends that type back to JSON
+                StashLog.w(TAG, "skipping BinarySchema service", e);
+            }
+        }
+        StashLog.d(TAG, "loaded %d BinarySchema services", schemas.size());
+        return Collections.unmodifiableMap(schemas);
+    }
+
+    private static final class Holder {
+        private static final Map<Class<?>, BinarySchema<?>> SCHEMAS = load();
+    }
+
+    private static abstract class Schema<T> implements BinarySchema<T> {
+        private final Class<T> type;
+        private final int wireType;
+
+        private Schema(Class<T> type, int wireType) {
+            this.type = type;
+            this.wireType = wireType;
+        }
+
+        @Override public Class<T> type() {
+            return type;
+        }
+
+        @Override public int wireType() {
+            return wireType;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Writes the tagged binary format described in {@link WireType}. The tagged methods write a key and a payload and
+ * skip null values; the untagged ones write a bare payload, for {@link BinarySchema} implementations.
+ */
+public final class BinaryWriter implements Closeable, Flushable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    public BinaryWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void writeVarint(int tag, long value) throws IOException {
+        key(tag, WireType.VARINT);
+        zigzag(value);
+    }
+
+    public void writeBoolean(int tag, boolean value) throws IOException {
+        key(tag, WireType.VARINT);
+        varint(value ? 1 : 0);
+    }
+
+    public void writeDouble(int tag, double value) throws IOException {
+        key(tag, WireType.FIXED64);
+        fixed64(Double.doubleToLongBits(value));
+    }
+
+    public void writeFloat(int tag, float value) throws IOException {
+        key(tag, WireType.FIXED32);
+        fixed32(Float.floatToIntBits(value));
+    }
+
+    public void writeString(int tag, String value) throws IOException {
+        if (value != null) {
+            key(tag, WireType.BYTES);
+            string(value);
+        }
+    }
+
+    public <T> void write(int tag, T value, BinarySchema<T> schema) throws IOException {
+        if (value != null) {
+            key(tag, schema.wireType());
+            schema.write(this, value);
+        }
+    }
+
+    public <T> void writeList(int tag, List<? extends T> list, BinarySchema<T> schema) throws IOException {
+        if (list == null) {
+            return;
+        }
+        key(tag, WireType.LIST);
+        varint(list.size());
+        for (int i = 0, size = list.size(); i < size; i++) {
+            T value = list.get(i);
+            if (value == null) {
+                varint(WireType.NULL);
+            } else {
+                varint(schema.wireType());
+                schema.write(this, value);
+            }
+        }
+    }
+
+    /** Ends the fields of an {@link WireType#OBJECT} payload. */
+    public void endObject() throws IOException {
+        varint(WireType.END);
+    }
+
+    public void varint(long value) throws IOException {
+        require(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[count++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[count++] = (byte) value;
+    }
+
+    public void zigzag(long value) throws IOException {
+        varint((value << 1) ^ (value >> 63));
+    }
+
+    public void fixed64(long value) throws IOException {
+        require(8);
+        for (int i = 0; i < 8; i++) {
+            buffer[count++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    public void fixed32(int value) throws IOException {
+        require(4);
+        for (int i = 0; i < 4; i++) {
+            buffer[count++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    public void string(String value) throws IOException {
+        bytes(value.getBytes(UTF_8));
+    }
+
+    public void bytes(byte[] value) throws IOException {
+        varint(value.length);
+        if (value.length > buffer.length - count) {
+            flushBuffer();
+            if (value.length > buffer.length) {
+                out.write(value);
+                return;
+            }
+        }
+        System.arraycopy(value, 0, buffer, count, value.length);
+        count += value.length;
+    }
+
+    @Override public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void key(int tag, int wireType) throws IOException {
+        varint(WireType.key(tag, wireType));
+    }
+
+    private void require(int bytes) throws IOException {
+        if (buffer.length - count < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+/**
+ * How a value is laid out in the tagged binary format. Each field is written as a varint key,
+ * {@code tag << 3 | wireType}, followed by its payload:
+ * <pre>
+ * VARINT   zigzag varint
+ * FIXED64  8 bytes, little endian
+ * BYTES    length:varint bytes
+ * OBJECT   fields, then a 0 key
+ * LIST     count:varint (wireType:varint payload)*
+ * NULL     nothing, only used for list elements
+ * FIXED32  4 bytes, little endian
+ * </pre>
+ * Since every payload can be skipped knowing only its wire type, readers ignore tags they don't know.
+ */
+public final class WireType {
+    public static final int VARINT = 0;
+    public static final int FIXED64 = 1;
+    public static final int BYTES = 2;
+    public static final int OBJECT = 3;
+    public static final int LIST = 4;
+    public static final int NULL = 5;
+    public static final int FIXED32 = 6;
+
+    static final int END = 0;
+    private static final int TYPE_BITS = 3;
+    private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+    private WireType() { throw new AssertionError("no instances"); }
+
+    static int key(int tag, int wireType) {
+        return (tag << TYPE_BITS) | wireType;
+    }
+
+    public static int tag(int key) {
+        return key >>> TYPE_BITS;
+    }
+
+    static int wireType(int key) {
+        return key & TYPE_MASK;
+    }
+}
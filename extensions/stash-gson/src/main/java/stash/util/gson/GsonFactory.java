@@ -20,13 +20,17 @@
 import com.google.gson.GsonBuilder;
 
 public interface GsonFactory {
+    /**
+     * Builds plain Gson instances with the adapters stash-compiler generates for {@code @GenerateTypeAdapter} classes
+     * registered, so they replace reflection for those types.
+     */
     GsonFactory DEFAULT = new GsonFactory() {
         @Override public Gson gson() {
-            return new Gson();
+            return newGsonBuilder().create();
         }
 
         @Override public GsonBuilder newGsonBuilder() {
-            return new GsonBuilder();
+            return TypeAdapterFactories.register(new GsonBuilder());
         }
     };
 
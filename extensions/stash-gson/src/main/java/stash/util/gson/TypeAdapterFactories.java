@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.gson;
+
+import com.google.gson.GsonBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import stash.internal.StashLog;
+
+/**
+ * The {@link GeneratedTypeAdapterFactory} services on the classpath, the streaming factories stash-compiler generates
+ * for {@code @GenerateTypeAdapter} classes. They are looked up once, the first time a builder needs them.
+ */
+final class TypeAdapterFactories {
+    private static final String TAG = TypeAdapterFactories.class.getSimpleName();
+
+    private TypeAdapterFactories() { throw new AssertionError("no instances"); }
+
+    static GsonBuilder register(GsonBuilder builder) {
+        for (GeneratedTypeAdapterFactory factory : Holder.FACTORIES) {
+            builder.registerTypeAdapterFactory(factory);
+        }
+        return builder;
+    }
+
+    private static List<GeneratedTypeAdapterFactory> load() {
+        List<GeneratedTypeAdapterFactory> factories = new ArrayList<GeneratedTypeAdapterFactory>();
+        Iterator<GeneratedTypeAdapterFactory> it = ServiceLoader.load(GeneratedTypeAdapterFactory.class,
+                TypeAdapterFactories.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!it.hasNext()) {
+                    break;
+                }
+                factories.add(it.next());
+            } catch (ServiceConfigurationError e) {
+                // a stale or stripped entry only costs that type its generated adapter
+                StashLog.w(TAG, "skipping GeneratedTypeAdapterFactory service", e);
+            }
+        }
+        StashLog.d(TAG, "loaded %d GeneratedTypeAdapterFactory services", factories.size());
+        return Collections.unmodifiableList(factories);
+    }
+
+    private static final class Holder {
+        private static final List<GeneratedTypeAdapterFactory> FACTORIES = load();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import rx.functions.Func0;
+import stash.Stash;
+import stash.StashDb;
+import stash.stashdbs.TestKeys.StringKey;
+
+public class AsyncDbTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldSkipDbUntilOpen() throws Exception {
+        final File dir = folder.newFolder("db");
+        final FutureTask<FileDb> opening = new FutureTask<FileDb>(new Callable<FileDb>() {
+            @Override public FileDb call() throws Exception {
+                return GsonDb.open(new GsonDb.Config(GsonDb.defaultGson(), dir, 1, 1024 * 1024));
+            }
+        });
+        StashDb<String> db = StashDb.create(new AsyncDb<String>(new Func0<Future<FileDb>>() {
+            @Override public Future<FileDb> call() {
+                return opening;
+            }
+        }, 10));
+        Stash<String> stash = db.getStash(String.class, new StringKey("key"));
+
+        // misses while the db is opening, the put is deferred
+        Assert.assertNull(stash.getData().asCallable().call());
+        Assert.assertEquals("value", stash.put("value").asCallable().call());
+
+        opening.run();
+        try {
+            // the deferred put lands before the first read of the open db
+            Assert.assertEquals("value", stash.getData().asCallable().call());
+            Assert.assertEquals("other", stash.put("other").asCallable().call());
+            Assert.assertEquals("other", stash.getData().asCallable().call());
+            Assert.assertEquals(1, (int) db.getStashCollection(String.class).size().asCallable().call());
+            Assert.assertTrue(stash.remove().asCallable().call());
+        } finally {
+            opening.get().close();
+        }
+    }
+
+    @Test
+    public void shouldWaitForOpenToRemove() throws Exception {
+        final GsonDb.Config config = new GsonDb.Config(GsonDb.defaultGson(), folder.newFolder("db"), 1, 1024 * 1024);
+        FileDb fileDb = GsonDb.open(config);
+        try {
+            fileDb.getStash(String.class, new StringKey("key")).put("value").asCallable().call();
+        } finally {
+            fileDb.close();
+        }
+
+        final FutureTask<FileDb> opening = new FutureTask<FileDb>(new Callable<FileDb>() {
+            @Override public FileDb call() throws Exception {
+                return GsonDb.open(config);
+            }
+        });
+        StashDb<String> db = StashDb.create(new AsyncDb<String>(new Func0<Future<FileDb>>() {
+            @Override public Future<FileDb> call() {
+                return opening;
+            }
+        }, 10));
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                opening.run();
+            }
+        });
+        thread.start();
+        try {
+            // the remove outlasts the timeout instead of leaving the record on disk
+            Assert.assertTrue(db.getStash(String.class, new StringKey("key")).remove().asCallable().call());
+            Assert.assertNull(db.getStash(String.class, new StringKey("key")).getData().asCallable().call());
+        } finally {
+            thread.join();
+            opening.get().close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import stash.ConsoleLogger;
+import stash.internal.StashLog;
+
+/**
+ * Compares the size savings and CPU cost of the body codecs on a JSON list. Not part of the default test run, run it
+ * with {@code -Pbenchmarks}. Results are printed to the console, the size savings are asserted.
+ */
+public class CodecBenchmark {
+    private static final String TAG = CodecBenchmark.class.getSimpleName();
+    private static final int ITEMS = 2000;
+    private static final int ITERATIONS = 50;
+
+    @BeforeClass
+    public static void setUpLogger() {
+        StashLog.setLogger(new ConsoleLogger());
+    }
+
+    @AfterClass
+    public static void tearDownLogger() {
+        StashLog.setLogger(null);
+    }
+
+    @Test
+    public void compareCodecs() throws Exception {
+        byte[] json = CodecTest.json(ITEMS);
+        Codec[] codecs = {new Lz4Codec(), new DeflateCodec(1), new DeflateCodec()};
+        for (Codec codec : codecs) {
+            // warm up before measuring
+            run(codec, json);
+        }
+        int[] sizes = new int[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            Codec codec = codecs[i];
+            byte[] encoded = codec.encode(json);
+            Assert.assertTrue(Arrays.equals(json, codec.decode(encoded)));
+            Assert.assertTrue(encoded.length < json.length);
+            sizes[i] = encoded.length;
+            long[] nanos = run(codec, json);
+            StashLog.d(TAG, "%s: %d -> %d bytes (%.1f%%), encode %d us, decode %d us",
+                    codec.getClass().getSimpleName(), json.length, encoded.length,
+                    100.0 * encoded.length / json.length,
+                    TimeUnit.NANOSECONDS.toMicros(nanos[0] / ITERATIONS),
+                    TimeUnit.NANOSECONDS.toMicros(nanos[1] / ITERATIONS));
+        }
+        // the default deflate level compresses at least as well as the fastest one
+        Assert.assertTrue(sizes[2] <= sizes[1]);
+    }
+
+    private static long[] run(Codec codec, byte[] data) throws Exception {
+        byte[] encoded = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoded = codec.encode(data);
+        }
+        long encodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.decode(encoded);
+        }
+        return new long[]{encodeNanos, System.nanoTime() - start};
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CodecTest {
+    private static final Codec[] CODECS = {new DeflateCodec(), new Lz4Codec()};
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        Random random = new Random(42);
+        byte[] noise = new byte[10000];
+        random.nextBytes(noise);
+        byte[] run = new byte[70000];
+        Arrays.fill(run, (byte) 'a');
+
+        for (Codec codec : CODECS) {
+            assertRoundTrip(codec, new byte[0]);
+            assertRoundTrip(codec, "short".getBytes("UTF-8"));
+            assertRoundTrip(codec, json(500));
+            assertRoundTrip(codec, noise);
+            // a single long overlapping match
+            assertRoundTrip(codec, run);
+        }
+    }
+
+    @Test
+    public void shouldCompressJson() throws Exception {
+        byte[] json = json(500);
+        for (Codec codec : CODECS) {
+            int encoded = codec.encode(json).length;
+            Assert.assertTrue(codec.getClass().getSimpleName() + ": " + encoded, encoded < json.length / 2);
+        }
+    }
+
+    @Test
+    public void shouldRejectCorruptInput() throws Exception {
+        for (Codec codec : CODECS) {
+            byte[] encoded = codec.encode(json(50));
+            try {
+                codec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+                Assert.fail(codec.getClass().getSimpleName() + " decoded a truncated body");
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadEntriesWrittenWithOtherCodecs() throws Exception {
+        File dir = folder.newFolder("cache");
+        byte[] json = json(100);
+
+        FileCache cache = FileCache.open(config(dir, new DeflateCodec()));
+        write(cache, "deflated", json);
+        write(cache, "small", "tiny".getBytes("UTF-8"));
+        cache.close();
+
+        cache = FileCache.open(config(dir, new Lz4Codec()));
+        write(cache, "lz4", json);
+        Assert.assertTrue(Arrays.equals(json, read(cache, "deflated")));
+        Assert.assertTrue(Arrays.equals(json, read(cache, "lz4")));
+        Assert.assertTrue(Arrays.equals("tiny".getBytes("UTF-8"), read(cache, "small")));
+        // compressed on disk
+        Assert.assertTrue(cache.getSize() < json.length);
+        cache.close();
+    }
+
+    @Test
+    public void shouldStoreBodiesAsIsByDefault() throws Exception {
+        File dir = folder.newFolder("cache");
+        byte[] json = json(500);
+
+        // 16 KB segments, the second write seals the one holding the large body
+        FileCache cache = FileCache.open(new FileCache.Config(dir, 1, 64 * 1024, true));
+        write(cache, "large", json);
+        write(cache, "small", "tiny".getBytes("UTF-8"));
+        Assert.assertTrue(cache.getSize() > json.length);
+
+        FileCache.Entry entry = cache.get("large");
+        try {
+            Assert.assertFalse(entry.getBody() instanceof ByteArrayInputStream);
+            ByteBuffer mapped = entry.mapBody();
+            Assert.assertNotNull(mapped);
+            byte[] body = new byte[mapped.remaining()];
+            mapped.get(body);
+            Assert.assertTrue(Arrays.equals(json, body));
+        } finally {
+            entry.close();
+        }
+        Assert.assertTrue(Arrays.equals(json, read(cache, "large")));
+        cache.close();
+    }
+
+    private static FileCache.Config config(File dir, Codec codec) {
+        return new FileCache.Config.Builder(dir, 1, 1024 * 1024)
+                .setCodec(codec, 64)
+                .build();
+    }
+
+    private static void write(FileCache cache, String key, byte[] body) throws IOException {
+        FileCache.Editor editor = cache.edit(key);
+        editor.newMetadata().close();
+        OutputStream out = editor.newBody();
+        out.write(body);
+        out.close();
+        editor.commit();
+    }
+
+    private static byte[] read(FileCache cache, String key) throws IOException {
+        FileCache.Entry entry = cache.get(key);
+        try {
+            InputStream in = entry.getBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            entry.close();
+        }
+    }
+
+    private static void assertRoundTrip(Codec codec, byte[] data) throws IOException {
+        byte[] decoded = codec.decode(codec.encode(data));
+        Assert.assertTrue(codec.getClass().getSimpleName() + " length " + data.length, Arrays.equals(data, decoded));
+    }
+
+    static byte[] json(int items) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i)
+                    .append(",\"name\":\"item ").append(i)
+                    .append("\",\"tags\":[\"cached\",\"json\"],\"updated\":").append(1450000000000L + i * 7919L)
+                    .append('}');
+        }
+        return json.append(']').toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DictionariesTest {
+    private static final String NAME = "com.example.Product";
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldCompressSmallBodiesBetterThanDeflate() throws Exception {
+        Dictionaries dictionaries = new Dictionaries(folder.newFolder("dir"), 4, 1000);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(dictionaries.encode(NAME, product(i)));
+        }
+        byte[] body = product(3);
+        byte[] encoded = dictionaries.encode(NAME, body);
+        Assert.assertNotNull(encoded);
+        Assert.assertEquals(1, dictionaries.version(NAME));
+        Assert.assertTrue(Arrays.equals(body, dictionaries.decode(encoded)));
+
+        byte[] next = product(4);
+        int withDictionary = dictionaries.encode(NAME, next).length;
+        int withoutDictionary = new DeflateCodec().encode(next).length;
+        Assert.assertTrue(withDictionary + " >= " + withoutDictionary, withDictionary < withoutDictionary);
+    }
+
+    @Test
+    public void shouldDecodeEntriesOfEveryVersion() throws Exception {
+        File dir = folder.newFolder("dir");
+        Dictionaries dictionaries = new Dictionaries(dir, 2, 3);
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        List<byte[]> encoded = new ArrayList<byte[]>();
+        for (int i = 0; dictionaries.version(NAME) < 2; i++) {
+            byte[] body = product(i);
+            byte[] bytes = dictionaries.encode(NAME, body);
+            if (bytes != null) {
+                bodies.add(body);
+                encoded.add(bytes);
+            }
+        }
+
+        Dictionaries reopened = new Dictionaries(dir, 2, 3);
+        Assert.assertEquals(2, reopened.version(NAME));
+        for (int i = 0; i < bodies.size(); i++) {
+            Assert.assertTrue(Arrays.equals(bodies.get(i), reopened.decode(encoded.get(i))));
+        }
+    }
+
+    @Test
+    public void shouldDecodeWithTheDictionaryOfTheEntrysName() throws Exception {
+        File dir = folder.newFolder("dir");
+        Dictionaries dictionaries = new Dictionaries(dir, 1, 1);
+        byte[] body = product(0);
+        Assert.assertNotNull(dictionaries.encode("other", product(1)));
+        byte[] encoded = dictionaries.encode(NAME, body);
+        Assert.assertNotNull(encoded);
+        Assert.assertTrue(new File(dir, "dict-other-1.bin").delete());
+        Assert.assertTrue(Arrays.equals(body, new Dictionaries(dir, 1, 1).decode(encoded)));
+
+        Assert.assertTrue(new File(dir, "dict-" + NAME + "-1.bin").delete());
+        try {
+            new Dictionaries(dir, 1, 1).decode(encoded);
+            Assert.fail("decoded without the dictionary");
+        } catch (IOException expected) {
+            // the other name's dictionary isn't tried
+        }
+    }
+
+    @Test
+    public void shouldSkipBodiesThatAreNotJson() throws Exception {
+        Dictionaries dictionaries = new Dictionaries(folder.newFolder("dir"), 1, 1);
+        // a binary codec body starts with a zero byte
+        Assert.assertNull(dictionaries.encode(NAME, new byte[]{0, 1, 8, 'a', 'b'}));
+        Assert.assertNull(dictionaries.encode(NAME, new byte[0]));
+        Assert.assertEquals(0, dictionaries.version(NAME));
+
+        Assert.assertNotNull(dictionaries.encode(NAME, product(0)));
+        Assert.assertEquals(1, dictionaries.version(NAME));
+        Assert.assertNull(dictionaries.encode(NAME, new byte[]{0, 1, 8, 'a', 'b'}));
+    }
+
+    @Test
+    public void shouldStopAtMaxVersions() throws Exception {
+        Dictionaries dictionaries = new Dictionaries(folder.newFolder("dir"), 1, 1);
+        for (int i = 0; i < 20; i++) {
+            dictionaries.encode(NAME, product(i));
+        }
+        Assert.assertEquals(Dictionaries.MAX_VERSIONS, dictionaries.version(NAME));
+    }
+
+    @Test
+    public void fileCacheShouldReadDictionaryEntries() throws Exception {
+        File dir = folder.newFolder("cache");
+        FileCache.Config config = new FileCache.Config.Builder(dir, 1, 1024 * 1024)
+                .setDictionaries(true)
+                .build();
+        FileCache cache = FileCache.open(config);
+        for (int i = 0; i < 40; i++) {
+            FileCache.Editor editor = cache.edit("key" + i).setDictionary(NAME);
+            editor.newMetadata().close();
+            OutputStream out = editor.newBody();
+            out.write(product(i));
+            out.close();
+            editor.commit();
+        }
+        cache.close();
+
+        cache = FileCache.open(config);
+        try {
+            for (int i = 0; i < 40; i++) {
+                FileCache.Entry entry = cache.get("key" + i);
+                try {
+                    Assert.assertTrue(Arrays.equals(product(i), readFully(entry.getBody())));
+                } finally {
+                    entry.close();
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static byte[] product(int i) throws IOException {
+        String json = "{\"id\":" + i
+                + ",\"name\":\"Product " + i + "\""
+                + ",\"availability\":\"" + (i % 2 == 0 ? "IN_STOCK" : "BACKORDERED") + "\""
+                + ",\"currency\":\"USD\",\"price\":" + (100 + i * 13)
+                + ",\"variants\":[{\"sku\":\"SKU-" + i + "-A\",\"color\":\"BLACK\",\"size\":\"MEDIUM\"}]}";
+        return json.getBytes("UTF-8");
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
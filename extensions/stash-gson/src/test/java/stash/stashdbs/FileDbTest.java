@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import stash.Entry;
+import stash.ExpiringMetadata;
+import stash.LazyEntry;
+import stash.Stash;
+import stash.StashCollection;
+import stash.StashKey;
+import stash.internal.ExpiryPurger;
+import stash.stashdbs.TestKeys.StringKey;
+
+public class FileDbTest {
+    private static final FileDb.Converter CONVERTER = new FileDb.Converter() {
+        @Override public <T> T fromFile(Class<T> clazz, InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return clazz.cast(out.toString("UTF-8"));
+        }
+
+        @Override public <T> void toFile(OutputStream out, T data) throws IOException {
+            out.write(((String) data).getBytes("UTF-8"));
+        }
+    };
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private FileDb db;
+
+    @Before
+    public void setup() throws Exception {
+        dir = folder.newFolder("db");
+        db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), CONVERTER);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldPersistMetadata() throws Exception {
+        Entry<String> entry = new Entry.Builder<String>()
+                .setMetadata(1234L, Arrays.asList("one", "twö"))
+                .setExpiresAt(5678L)
+                .setData("value")
+                .build();
+        stash("key").put(entry).asCallable().call();
+
+        db.close();
+        db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), CONVERTER);
+
+        Entry<String> stored = stash("key").get().asCallable().call();
+        Assert.assertNotNull(stored);
+        stash.Metadata metadata = stored.getMetadata();
+        Assert.assertEquals(1234L, metadata.getLastUpdated());
+        Assert.assertEquals(5678L, ExpiryPurger.getExpiresAt(metadata));
+        Assert.assertEquals(Arrays.asList("one", "twö"), metadata.getData());
+        Assert.assertEquals("value", stored.getData());
+
+        // the stash hands out a copy, read the raw record for the content hash
+        FileCache cache = FileCache.open(new FileCache.Config(dir, 1, 1024 * 1024));
+        FileCache.Entry raw = cache.get(FileCache.key(String.class.getName(), "key"));
+        try {
+            CRC32 crc = new CRC32();
+            crc.update("value".getBytes("UTF-8"));
+            Assert.assertEquals(crc.getValue(), FileDb.Metadata.create(raw.getMetadata()).getContentHash());
+        } finally {
+            raw.close();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void shouldReadTextMetadata() throws Exception {
+        byte[] text = "1234\n2\none\ntwo\n".getBytes("UTF-8");
+        FileDb.Metadata metadata = FileDb.Metadata.create(new ByteArrayInputStream(text));
+        Assert.assertEquals(1234L, metadata.getLastUpdated());
+        Assert.assertEquals(ExpiringMetadata.NO_EXPIRATION, metadata.getExpiresAt());
+        Assert.assertEquals(FileDb.Metadata.NO_CONTENT_HASH, metadata.getContentHash());
+        Assert.assertEquals(Arrays.asList("one", "two"), metadata.getData());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectUnknownBinaryFormat() throws Exception {
+        FileDb.Metadata.create(new ByteArrayInputStream(new byte[]{(byte) 0xb2, 0, 0, 0}));
+    }
+
+    @Test
+    public void shouldIndexKeysByType() throws Exception {
+        stash("one").put("1").asCallable().call();
+        stash("two").put("2").asCallable().call();
+        db.getStash(CharSequence.class, new StringKey("one")).put((CharSequence) "1").asCallable().call();
+
+        db.close();
+        db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), CONVERTER);
+
+        StashCollection<String, String> strings = db.getCollection(String.class);
+        Assert.assertEquals(2, (int) strings.size().asCallable().call());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("one", "two")), toSet(strings.keys().asObservable().toList().toBlocking().single()));
+        Assert.assertEquals(1, (int) db.getCollection(CharSequence.class).size().asCallable().call());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("one", "two")), toSet(db.keys()));
+
+        Assert.assertTrue(db.removeAll(Collections.<StashKey<? extends String>>singletonList(new StringKey("one"))));
+        Assert.assertEquals(1, (int) strings.size().asCallable().call());
+        Assert.assertEquals(0, (int) db.getCollection(CharSequence.class).size().asCallable().call());
+
+        Assert.assertTrue(strings.removeAll().asCallable().call());
+        Assert.assertEquals(0, (int) strings.size().asCallable().call());
+        Assert.assertNull(stash("two").getData().asCallable().call());
+
+        stash("three").put("3").asCallable().call();
+        Assert.assertTrue(db.removeAll());
+        Assert.assertEquals(0, (int) strings.size().asCallable().call());
+        Assert.assertFalse(db.keys().iterator().hasNext());
+    }
+
+    @Test
+    public void shouldShardKeys() throws Exception {
+        db.close();
+        File external = folder.newFolder("external");
+        FileCache.Config config = new FileCache.Config.Builder(dir, 1, 1024 * 1024)
+                .setShardDirs(new File(dir, "internal"), external)
+                .build();
+        db = FileDb.open(config, CONVERTER);
+        for (int i = 0; i < 32; i++) {
+            stash("key" + i).put("value" + i).asCallable().call();
+        }
+        Assert.assertTrue(stash("key0").remove().asCallable().call());
+
+        db.close();
+        db = FileDb.open(config, CONVERTER);
+
+        Assert.assertEquals(31, (int) db.getCollection(String.class).size().asCallable().call());
+        for (int i = 1; i < 32; i++) {
+            Assert.assertEquals("value" + i, stash("key" + i).getData().asCallable().call());
+        }
+        Assert.assertNull(stash("key0").getData().asCallable().call());
+        Assert.assertTrue(new File(dir, "internal").list().length > 0);
+        Assert.assertTrue(external.list().length > 0);
+    }
+
+    @Test
+    public void shouldDeleteStaleShardsOnOpen() throws Exception {
+        stash("one").put("1").asCallable().call();
+        db.close();
+
+        db = FileDb.open(new FileCache.Config.Builder(dir, 1, 1024 * 1024).setShards(4).build(), CONVERTER);
+        Assert.assertNull(stash("one").getData().asCallable().call());
+        Assert.assertFalse(new File(dir, "index.ckpt").exists());
+        Assert.assertFalse(new File(dir, "segment-0.log").exists());
+        stash("two").put("2").asCallable().call();
+        db.close();
+
+        db = FileDb.open(new FileCache.Config.Builder(dir, 1, 1024 * 1024).setShards(2).build(), CONVERTER);
+        Assert.assertTrue(new File(dir, "shard-1").isDirectory());
+        Assert.assertFalse(new File(dir, "shard-2").exists());
+        Assert.assertFalse(new File(dir, "shard-3").exists());
+        db.close();
+
+        db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), CONVERTER);
+        Assert.assertFalse(new File(dir, "shard-0").exists());
+        Assert.assertFalse(new File(dir, "shard-1").exists());
+        stash("three").put("3").asCallable().call();
+        Assert.assertEquals("3", stash("three").getData().asCallable().call());
+    }
+
+    @Test
+    public void shouldReturnExpiredEntriesWithoutReadingBody() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        db.close();
+        db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), new FileDb.Converter() {
+            @Override public <T> T fromFile(Class<T> clazz, InputStream in) throws IOException {
+                reads.incrementAndGet();
+                return CONVERTER.fromFile(clazz, in);
+            }
+
+            @Override public <T> void toFile(OutputStream out, T data) throws IOException {
+                CONVERTER.toFile(out, data);
+            }
+        });
+        final long expiresAt = System.currentTimeMillis() - 1;
+        stash("dead").put(new Entry.Builder<String>().setExpiresAt(expiresAt).setData("2").build())
+                .asCallable().call();
+
+        // expired entries still reach the caller's predicate, which may serve them while the source refreshes
+        LazyEntry<String> entry = stash("dead").getLazy().asCallable().call();
+        Assert.assertNotNull(entry);
+        try {
+            Assert.assertEquals(expiresAt, ExpiryPurger.getExpiresAt(entry.getMetadata()));
+            Assert.assertEquals(0, reads.get());
+            Assert.assertEquals("2", entry.getData());
+            Assert.assertEquals(1, reads.get());
+        } finally {
+            entry.closeQuietly();
+        }
+    }
+
+    @Test
+    public void shouldReadPendingPuts() throws Exception {
+        db.close();
+        db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), CONVERTER, 60 * 1000);
+        FileCache cache = FileCache.open(new FileCache.Config(dir, 1, 1024 * 1024));
+        try {
+            stash("one").put("1").asCallable().call();
+            stash("one").put("2").asCallable().call();
+            stash("two").put("3").asCallable().call();
+            Assert.assertNull(cache.get(FileCache.key(String.class.getName(), "one")));
+            Assert.assertEquals("2", stash("one").getData().asCallable().call());
+
+            Assert.assertTrue(stash("two").remove().asCallable().call());
+            Assert.assertNull(stash("two").getData().asCallable().call());
+
+            db.flush();
+            Assert.assertEquals(1, cache.count(String.class.getName()));
+            FileCache.Entry raw = cache.get(FileCache.key(String.class.getName(), "one"));
+            Assert.assertNotNull(raw);
+            raw.close();
+
+            // pending puts are written on close
+            stash("three").put("4").asCallable().call();
+            db.close();
+            db = FileDb.open(new FileCache.Config(dir, 1, 1024 * 1024), CONVERTER);
+            Assert.assertEquals("2", stash("one").getData().asCallable().call());
+            Assert.assertEquals("4", stash("three").getData().asCallable().call());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static Set<String> toSet(Iterable<? extends String> keys) {
+        Set<String> set = new HashSet<String>();
+        for (String key : keys) {
+            set.add(key);
+        }
+        return set;
+    }
+
+    private Stash<String> stash(final String key) {
+        return db.getStash(String.class, new StringKey(key));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import rx.functions.Func1;
+import stash.PagedStash;
+import stash.Stash;
+import stash.StashDb;
+import stash.stashdbs.TestKeys.StringKey;
+
+public class GsonDbTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldKeepNewlinesInStrings() throws Exception {
+        FileDb db = open(folder.newFolder("db"), false);
+        try {
+            Stash<Item> stash = db.getStash(Item.class, new StringKey("item"));
+            stash.put(new Item("line one\nline two", null)).asCallable().call();
+            Assert.assertEquals("line one\nline two", stash.getData().asCallable().call().name);
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void shouldWriteUtf8() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            builder.append("a\u00e9\u20ac\ud83d\ude00");
+        }
+        String[] values = {builder.toString(), "unpaired \ud83d and \ude00", "ends unpaired \ud83d"};
+        Gson gson = GsonDb.defaultGson();
+        FileDb.Converter converter = GsonDb.converter(gson);
+        for (String value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            converter.toFile(out, value);
+            Assert.assertTrue(Arrays.equals(gson.toJson(value).getBytes("UTF-8"), out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void shouldRethrowWriteFailures() throws Exception {
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(Item.class, new TypeAdapter<Item>() {
+                    @Override public void write(JsonWriter out, Item value) throws IOException {
+                        out.beginObject().name("name").value(value.name);
+                        throw new IllegalStateException("boom");
+                    }
+
+                    @Override public Item read(JsonReader in) throws IOException {
+                        throw new UnsupportedOperationException();
+                    }
+                })
+                .create();
+        try {
+            GsonDb.converter(gson).toFile(new ByteArrayOutputStream(), new Item("item", null));
+            Assert.fail("expected the adapter's exception");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldReadMappedBodies() throws Exception {
+        List<String> tags = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            tags.add("tâg " + i);
+        }
+        File dir = folder.newFolder("mapped");
+        FileDb db = open(dir, true);
+        try {
+            Stash<Item> stash = db.getStash(Item.class, new StringKey("item"));
+            stash.put(new Item("big", tags)).asCallable().call();
+            Item item = stash.getData().asCallable().call();
+            Assert.assertEquals("big", item.name);
+            Assert.assertEquals(tags, item.tags);
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void shouldStreamArrayElements() throws Exception {
+        List<String> tags = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            tags.add("tag " + i);
+        }
+        FileDb db = open(folder.newFolder("stream"), false);
+        try {
+            Stash<Item> stash = db.getStash(Item.class, new StringKey("item"));
+            stash.put(new Item("streamed", tags)).asCallable().call();
+            Assert.assertEquals(tags.subList(0, 3), stash.streamData("tags", String.class).asObservable()
+                    .take(3).toList().toBlocking().single());
+            Assert.assertEquals(tags, stash.streamData("tags", String.class).asObservable()
+                    .toList().toBlocking().single());
+
+            Stash<Item> missing = db.getStash(Item.class, new StringKey("missing"));
+            Assert.assertTrue(missing.streamData("tags", String.class).asObservable()
+                    .toList().toBlocking().single().isEmpty());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void shouldStorePagedLists() throws Exception {
+        FileDb db = open(folder.newFolder("paged"), false);
+        try {
+            PagedStash<Tags, String> stash = new PagedStash.Builder<Tags, String>(new Func1<List<String>, Tags>() {
+                @Override public Tags call(List<String> tags) {
+                    return new Tags(tags);
+                }
+            }).pageSize(10).build(StashDb.create(db), Tags.class, new StringKey("tags"));
+            Tags tags = new Tags(new ArrayList<String>());
+            for (int i = 0; i < 25; i++) {
+                tags.add("tag " + i);
+            }
+            stash.put(tags).asCallable().call();
+            Assert.assertEquals(tags, stash.getData().asCallable().call());
+            Assert.assertEquals(tags.subList(20, 25), stash.getPage(2).asCallable().call());
+        } finally {
+            db.close();
+        }
+    }
+
+    private static FileDb open(File dir, boolean mapReads) throws Exception {
+        FileCache.Config config = new FileCache.Config(dir, 1, 1024 * 1024, mapReads);
+        return GsonDb.open(new GsonDb.Config(GsonDb.defaultGson(), config));
+    }
+
+    private static final class Item {
+        private final String name;
+        private final List<String> tags;
+
+        private Item(String name, List<String> tags) {
+            this.name = name;
+            this.tags = tags;
+        }
+    }
+
+    private static final class Tags extends ArrayList<String> {
+        private Tags(List<String> tags) {
+            super(tags);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class KeyHashTest {
+    @Test
+    public void shouldMatchMurmur3Of128BitOverUtf16() {
+        // reference values from Guava's Hashing.murmur3_128().hashUnencodedChars
+        assertHash("", 0L, 0L);
+        assertHash("a", 0x96a698500b4e98bdL, 0xb278c9bfc754677dL);
+        assertHash("abcd", 0x548cfc581a584f48L, 0x076f42dc4bbe30dfL);
+        assertHash("abcde", 0xef8464c206cb30ecL, 0xcc827c3e934dfa4bL);
+        assertHash("java.lang.String/some-key-123", 0x32a7151b93f32f15L, 0xe4970bca927dade0L);
+    }
+
+    @Test
+    public void shouldBeCaseSensitive() {
+        Assert.assertFalse(KeyHash.of("key").equals(KeyHash.of("KEY")));
+        Assert.assertEquals(KeyHash.of("key"), KeyHash.of(new String("key")));
+    }
+
+    @Test
+    public void fileCacheKeysShouldCompareByValue() throws Exception {
+        FileCache.Key key = FileCache.Key.of("group/key");
+        Assert.assertEquals(FileCache.Key.of("group/key"), key);
+        Assert.assertFalse(FileCache.Key.of("GROUP/Key").equals(key));
+        Assert.assertEquals("group/key", key.toString());
+    }
+
+    private static void assertHash(String key, long h1, long h2) {
+        KeyHash hash = KeyHash.of(key);
+        Assert.assertEquals(h1, hash.h1);
+        Assert.assertEquals(h2, hash.h2);
+    }
+}
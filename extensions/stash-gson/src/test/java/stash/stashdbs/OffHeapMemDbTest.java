@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import stash.StashCollection;
+import stash.stashdbs.TestKeys.IntKey;
+
+public class OffHeapMemDbTest {
+    private static final int PAGE_SIZE = 64;
+    private static final int SLAB_SIZE = 4 * PAGE_SIZE;
+
+    @Test
+    public void shouldRoundTripValues() throws Exception {
+        MemDb memDb = MemDb.create(new OffHeapMemDb(GsonDb.converter(GsonDb.defaultGson()), 2 * SLAB_SIZE,
+                SLAB_SIZE, PAGE_SIZE));
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+        String large = repeat('x', 3 * PAGE_SIZE);
+
+        strings.getStash(new IntKey(1)).put("small").asCallable().call();
+        strings.getStash(new IntKey(2)).put(large).asCallable().call();
+        Assert.assertEquals("small", strings.getData(new IntKey(1)).asCallable().call());
+        // spans several pages
+        Assert.assertEquals(large, strings.getData(new IntKey(2)).asCallable().call());
+        Assert.assertNull(strings.getData(new IntKey(3)).asCallable().call());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedAtBudget() throws Exception {
+        OffHeapMemDb worker = new OffHeapMemDb(GsonDb.converter(GsonDb.defaultGson()), SLAB_SIZE, SLAB_SIZE,
+                PAGE_SIZE);
+        MemDb memDb = MemDb.create(worker);
+        memDb.registerMaxSize(String.class, 100);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+        // each value needs two pages, so the one slab holds two
+        String value = repeat('x', PAGE_SIZE + 1);
+
+        strings.getStash(new IntKey(1)).put(value).asCallable().call();
+        strings.getStash(new IntKey(2)).put(value).asCallable().call();
+        Assert.assertEquals(value, strings.getData(new IntKey(1)).asCallable().call());
+        strings.getStash(new IntKey(3)).put(value).asCallable().call();
+
+        Assert.assertEquals(value, strings.getData(new IntKey(1)).asCallable().call());
+        Assert.assertNull(strings.getData(new IntKey(2)).asCallable().call());
+        Assert.assertEquals(value, strings.getData(new IntKey(3)).asCallable().call());
+        Assert.assertEquals(SLAB_SIZE, worker.allocatedBytes());
+        Assert.assertEquals(SLAB_SIZE, worker.size());
+
+        // larger than the whole budget
+        Assert.assertNull(strings.getStash(new IntKey(4)).put(repeat('x', 2 * SLAB_SIZE)).asCallable().call());
+        Assert.assertNull(strings.getData(new IntKey(4)).asCallable().call());
+    }
+
+    @Test
+    public void shouldReuseSlabsAfterRemove() throws Exception {
+        OffHeapMemDb worker = new OffHeapMemDb(GsonDb.converter(GsonDb.defaultGson()), 2 * SLAB_SIZE, SLAB_SIZE,
+                PAGE_SIZE);
+        MemDb memDb = MemDb.create(worker);
+        memDb.registerMaxSize(String.class, 100);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+        String value = repeat('x', 3 * PAGE_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            strings.getStash(new IntKey(i)).put(value).asCallable().call();
+            Assert.assertTrue(strings.getStash(new IntKey(i)).remove().asCallable().call());
+        }
+        Assert.assertEquals(0, worker.size());
+        // freed pages are handed out again before a second slab is allocated
+        Assert.assertEquals(SLAB_SIZE, worker.allocatedBytes());
+    }
+
+    @Test
+    public void registerMaxSizeShouldCapEntriesPerType() throws Exception {
+        MemDb memDb = MemDb.create(new OffHeapMemDb(GsonDb.converter(GsonDb.defaultGson()), SLAB_SIZE, SLAB_SIZE,
+                PAGE_SIZE));
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+        for (int i = 0; i < 3; i++) {
+            strings.getStash(new IntKey(i)).put("value" + i).asCallable().call();
+        }
+
+        memDb.registerMaxSize(String.class, 2);
+        Assert.assertEquals(2, (int) strings.size().asCallable().call());
+        Assert.assertNull(strings.getData(new IntKey(0)).asCallable().call());
+        Assert.assertEquals("value2", strings.getData(new IntKey(2)).asCallable().call());
+        // other types keep their own cap
+        memDb.getStash(Integer.class, new IntKey(0)).put(0).asCallable().call();
+        Assert.assertEquals(2, (int) strings.size().asCallable().call());
+
+        try {
+            memDb.registerMaxSize(String.class, 0);
+            Assert.fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
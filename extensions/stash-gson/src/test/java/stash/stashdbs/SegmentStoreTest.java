@@ -0,0 +1,393 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class SegmentStoreTest {
+    private static final SegmentStore.Grouper GROUPER = new SegmentStore.Grouper() {
+        @Override public String group(String key) {
+            int index = key.indexOf('/');
+            return index < 0 ? null : key.substring(0, index);
+        }
+    };
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private SegmentStore store;
+
+    @Before
+    public void setup() throws Exception {
+        dir = folder.newFolder("store");
+        store = SegmentStore.open(dir, 1, 1024 * 1024);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void shouldReplayAfterReopen() throws Exception {
+        store.put("one", bytes("meta1"), bytes("body1"));
+        store.put("two", bytes("meta2"), bytes("body2"));
+        store.put("one", bytes("meta3"), bytes("body3"));
+        Assert.assertTrue(store.remove("two"));
+
+        reopen(1);
+
+        assertRecord("one", "meta3", "body3");
+        Assert.assertNull(store.get("two"));
+    }
+
+    @Test
+    public void shouldAppendGroups() throws Exception {
+        store.put("one", bytes("meta0"), bytes("body0"));
+        store.putAll(Arrays.asList(
+                new SegmentStore.Write("one", KeyHash.of("one"), bytes("meta1"), bytes("body1"), 0),
+                new SegmentStore.Write("two", KeyHash.of("two"), bytes("meta2"), bytes("body2"), 0)));
+        assertRecord("one", "meta1", "body1");
+        assertRecord("two", "meta2", "body2");
+
+        reopen(1);
+
+        Assert.assertEquals(2, store.count());
+        assertRecord("one", "meta1", "body1");
+        assertRecord("two", "meta2", "body2");
+    }
+
+    @Test
+    public void shouldRestoreCheckpoint() throws Exception {
+        store.close();
+        store = SegmentStore.open(dir, 1, 128 * 1024);
+        byte[] body = new byte[512];
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, bytes("meta" + i), body);
+        }
+        Assert.assertTrue(store.remove("key0"));
+        store.close();
+        Assert.assertTrue(segmentFiles().length > 1);
+        Assert.assertTrue(new File(dir, "index.ckpt").exists());
+
+        store = SegmentStore.open(dir, 1, 128 * 1024);
+        Assert.assertEquals(99, store.count());
+        Assert.assertNull(store.get("key0"));
+        assertRecord("key1", "meta1", null);
+        assertRecord("key99", "meta99", null);
+
+        // a sealed segment that changed since invalidates the checkpoint, everything is replayed
+        store.close();
+        RandomAccessFile sealed = new RandomAccessFile(new File(dir, "segment-0.log"), "rw");
+        sealed.seek(sealed.length());
+        sealed.write(new byte[]{1, 0, 0, 0, 3, 0, 0});
+        sealed.close();
+        store = SegmentStore.open(dir, 1, 128 * 1024);
+        Assert.assertEquals(99, store.count());
+        assertRecord("key1", "meta1", null);
+    }
+
+    @Test
+    public void shouldDropTornTail() throws Exception {
+        store.put("one", bytes("meta1"), bytes("body1"));
+        store.close();
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "segment-0.log"), "rw");
+        file.seek(file.length());
+        file.write(new byte[]{1, 0, 0, 0, 3, 0, 0});
+        file.close();
+
+        reopen(1);
+        assertRecord("one", "meta1", "body1");
+
+        // appending after the truncated tail must work as well
+        store.put("two", bytes("meta2"), bytes("body2"));
+        reopen(1);
+        assertRecord("two", "meta2", "body2");
+    }
+
+    @Test
+    public void shouldDropCorruptRecords() throws Exception {
+        store.put("one", bytes("meta1"), bytes("body1"));
+        store.close();
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "segment-0.log"), "rw");
+        // flip the last body byte, just before the crc
+        file.seek(file.length() - 5);
+        file.write('X');
+        file.close();
+
+        reopen(1);
+        Assert.assertNull(store.get("one"));
+    }
+
+    @Test
+    public void shouldClearOnVersionChange() throws Exception {
+        store.put("one", bytes("meta1"), bytes("body1"));
+        reopen(2);
+        Assert.assertNull(store.get("one"));
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void shouldDeleteLegacyFiles() throws Exception {
+        store.close();
+        File journal = new File(dir, "journal");
+        File value = new File(dir, "0123456789abcdef0123456789abcdef.1");
+        Assert.assertTrue(journal.createNewFile());
+        Assert.assertTrue(value.createNewFile());
+
+        reopen(1);
+        Assert.assertFalse(journal.exists());
+        Assert.assertFalse(value.exists());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws Exception {
+        store.close();
+        // each record is about 50 bytes, room for two
+        store = SegmentStore.open(dir, 1, 120);
+        store.put("one", new byte[10], new byte[20]);
+        store.put("two", new byte[10], new byte[20]);
+        // touch "one" so "two" is evicted first
+        store.get("one").close();
+        store.put("three", new byte[10], new byte[20]);
+
+        assertRecord("one", null, null);
+        Assert.assertNull(store.get("two"));
+        assertRecord("three", null, null);
+        Assert.assertTrue(store.size() <= 120);
+    }
+
+    @Test
+    public void shouldKeepEvictionOrderWhenCompacting() throws Exception {
+        store.close();
+        // 4 KB segments, a record is 17 bytes plus its key and body
+        store = SegmentStore.open(dir, 1, 16 * 1024);
+        store.put("a", new byte[0], new byte[100]);
+        store.put("b", new byte[0], new byte[100]);
+        store.put("dead", new byte[0], new byte[3900]);
+        // seals segment 0
+        store.put("c", new byte[0], new byte[100]);
+        // segment 0 is mostly dead now, "a" and "b" are copied forward
+        Assert.assertTrue(store.remove("dead"));
+        File compacted = new File(dir, "segment-0.log");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (compacted.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(compacted.exists());
+
+        // one byte over the budget evicts the least recently used key only
+        store.put("big", new byte[0], new byte[16 * 1024 - 3 * 118 - 20 + 1]);
+        Assert.assertNull(store.get("a"));
+        assertRecord("b", null, null);
+        assertRecord("c", null, null);
+        assertRecord("big", null, null);
+    }
+
+    @Test
+    public void shouldCompactOverwrittenSegments() throws Exception {
+        store.close();
+        store = SegmentStore.open(dir, 1, 16 * 1024);
+        byte[] body = new byte[512];
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + (i % 4), bytes("meta" + i), body);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.segmentCount() > 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("segments: " + store.segmentCount(), store.segmentCount() <= 3);
+        Assert.assertTrue(segmentFiles().length <= 3);
+        assertRecord("key3", "meta999", null);
+
+        reopen(1);
+        assertRecord("key0", "meta996", null);
+        assertRecord("key3", "meta999", null);
+    }
+
+    @Test
+    public void shouldMapBodies() throws Exception {
+        store.close();
+        // 4 KB segments
+        store = SegmentStore.open(dir, 1, 16 * 1024);
+        store.put("one", bytes("meta1"), bytes("body1"));
+        SegmentStore.Snapshot first = store.get("one");
+        // the active segment keeps growing, it isn't mapped
+        Assert.assertNull(first.mapBody());
+        first.close();
+
+        store.put("filler", new byte[0], new byte[4096]);
+        store.put("two", bytes("meta2"), bytes("body2"));
+        first = store.get("one");
+        ByteBuffer body = first.mapBody();
+        first.close();
+        Assert.assertTrue(body.isReadOnly());
+        Assert.assertEquals("body1", string(body));
+    }
+
+    @Test
+    public void shouldNotResurrectEvictedKeysOnReplay() throws Exception {
+        store.close();
+        // 4 KB segments, a record is 17 bytes plus its key and body
+        store = SegmentStore.open(dir, 1, 16 * 1024);
+        store.put("k", new byte[0], new byte[100]);
+        store.put("pin", new byte[0], new byte[4000]);
+        // seals segment 0, which still holds the first put of "k"
+        store.put("k", new byte[0], new byte[100]);
+        store.get("pin").close();
+        // evicts "k" from segment 1
+        store.put("x", new byte[0], new byte[12300]);
+        Assert.assertNull(store.get("k"));
+        // segment 1 is all dead now and gets compacted
+        store.put("x", new byte[0], new byte[10]);
+        File compacted = new File(dir, "segment-1.log");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (compacted.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(compacted.exists());
+
+        // replay everything
+        store.close();
+        Assert.assertTrue(new File(dir, "index.ckpt").delete());
+        store = SegmentStore.open(dir, 1, 16 * 1024);
+        Assert.assertNull(store.get("k"));
+        Assert.assertNotNull(store.get("pin"));
+    }
+
+    @Test
+    public void shouldDropTombstonesNothingOlderShadows() throws Exception {
+        store.close();
+        store = SegmentStore.open(dir, 1, 16 * 1024);
+        store.put("pin", new byte[0], new byte[4096]);
+        // segment 1: a put and its tombstone, then filler that dies
+        store.put("k", new byte[0], new byte[10]);
+        Assert.assertTrue(store.remove("k"));
+        store.put("f", new byte[0], new byte[4096]);
+        store.put("f", new byte[0], new byte[10]);
+        File compacted = new File(dir, "segment-1.log");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (compacted.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(compacted.exists());
+        // only the segment header and the last put of "f", the tombstone of "k" wasn't copied
+        Assert.assertEquals(8 + 17 + 1 + 10, new File(dir, "segment-2.log").length());
+    }
+
+    @Test
+    public void shouldMatchKeysExactly() throws Exception {
+        store.put("Key", bytes("meta"), bytes("body"));
+        Assert.assertNull(store.get("KEY"));
+        store.put("KEY", bytes("meta2"), bytes("body2"));
+        Assert.assertEquals(2, store.count());
+        Assert.assertFalse(store.remove("key"));
+        assertRecord("Key", "meta", "body");
+        assertRecord("KEY", "meta2", "body2");
+    }
+
+    @Test
+    public void shouldIndexGroups() throws Exception {
+        store.close();
+        store = SegmentStore.open(dir, 1, 1024 * 1024, GROUPER);
+        store.put("a/one", bytes("meta"), bytes("body"));
+        store.put("a/two", bytes("meta"), bytes("body"));
+        store.put("b/one", bytes("meta"), bytes("body"));
+        store.put("ungrouped", bytes("meta"), bytes("body"));
+        Assert.assertTrue(store.remove("a/two"));
+
+        store.close();
+        store = SegmentStore.open(dir, 1, 1024 * 1024, GROUPER);
+        Assert.assertEquals(1, store.count("a"));
+        Assert.assertEquals(Arrays.asList("a/one"), store.keys("a"));
+        Assert.assertEquals(1, store.count("b"));
+        Assert.assertEquals(3, store.count());
+
+        store.clear();
+        Assert.assertEquals(0, store.count());
+        Assert.assertEquals(0, store.count("a"));
+        Assert.assertNull(store.get("b/one"));
+        store.put("a/three", bytes("meta"), bytes("body"));
+
+        reopen(1);
+        Assert.assertEquals(Arrays.asList("a/three"), store.keys());
+    }
+
+    private File[] segmentFiles() {
+        return dir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.startsWith("segment-");
+            }
+        });
+    }
+
+    private void reopen(int version) throws IOException {
+        store.close();
+        store = SegmentStore.open(dir, version, 1024 * 1024);
+    }
+
+    private void assertRecord(String key, String metadata, String body) throws IOException {
+        SegmentStore.Snapshot snapshot = store.get(key);
+        Assert.assertNotNull(snapshot);
+        try {
+            Assert.assertEquals(key, snapshot.getKey());
+            if (metadata != null) {
+                Assert.assertEquals(metadata, string(snapshot.getMetadata()));
+            }
+            if (body != null) {
+                Assert.assertEquals(body, string(snapshot.getBody()));
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes("UTF-8");
+    }
+
+    private static String string(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String string(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import com.google.gson.Gson;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import stash.ConsoleLogger;
+import stash.internal.StashLog;
+import stash.stashdbs.FileDb;
+import stash.stashdbs.GsonDb;
+import stash.util.gson.Models;
+
+/**
+ * Compares the stored size and read cost of a large cached list as JSON and in the binary format. Not part of the
+ * default test run, run it with {@code -Pbenchmarks}. Results are printed to the console, the size savings are
+ * asserted.
+ */
+public class BinaryConverterBenchmark {
+    private static final String TAG = BinaryConverterBenchmark.class.getSimpleName();
+    private static final int ITEMS = 2000;
+    private static final int ITERATIONS = 20;
+
+    @BeforeClass
+    public static void setUpLogger() {
+        StashLog.setLogger(new ConsoleLogger());
+    }
+
+    @AfterClass
+    public static void tearDownLogger() {
+        StashLog.setLogger(null);
+    }
+
+    @Test
+    public void compareConverters() throws Exception {
+        Gson gson = GsonDb.defaultGson();
+        Models.AppVersions versions = Models.appVersions(ITEMS);
+        byte[] json = gson.toJson(versions).getBytes("UTF-8");
+        FileDb.BufferConverter converter = GsonDb.converter(gson);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.toFile(out, versions);
+        byte[] binary = out.toByteArray();
+        Assert.assertTrue(binary.length < json.length);
+        Assert.assertEquals(new String(json, "UTF-8"),
+                gson.toJson(converter.fromBuffer(Models.AppVersions.class, ByteBuffer.wrap(binary))));
+
+        // warm up before measuring
+        read(converter, json);
+        read(converter, binary);
+        long jsonNanos = read(converter, json);
+        long binaryNanos = read(converter, binary);
+        StashLog.d(TAG, "json: %d bytes, read %d us", json.length,
+                TimeUnit.NANOSECONDS.toMicros(jsonNanos / ITERATIONS));
+        StashLog.d(TAG, "binary: %d bytes (%.1f%%), read %d us", binary.length,
+                100.0 * binary.length / json.length, TimeUnit.NANOSECONDS.toMicros(binaryNanos / ITERATIONS));
+    }
+
+    private static long read(FileDb.BufferConverter converter, byte[] body) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            converter.fromBuffer(Models.AppVersions.class, ByteBuffer.wrap(body));
+        }
+        return System.nanoTime() - start;
+    }
+}
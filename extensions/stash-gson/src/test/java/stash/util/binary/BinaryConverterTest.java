@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.binary;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.annotations.SerializedName;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import stash.ElementReader;
+import stash.annotations.GenerateBinarySchema;
+import stash.annotations.Tag;
+import stash.stashdbs.FileDb;
+import stash.stashdbs.GsonDb;
+import stash.util.gson.Models;
+
+public class BinaryConverterTest {
+    private final Gson gson = GsonDb.defaultGson();
+    private final FileDb.BufferConverter converter = GsonDb.converter(gson);
+
+    @Test
+    public void shouldRoundTripTaggedTypes() throws Exception {
+        Models.AppVersions versions = Models.appVersions(20);
+        byte[] bytes = toBytes(converter, versions);
+        Assert.assertEquals(0, bytes[0]);
+
+        String json = gson.toJson(versions);
+        Assert.assertEquals(json, gson.toJson(converter.fromFile(Models.AppVersions.class,
+                new ByteArrayInputStream(bytes))));
+        Assert.assertEquals(json, gson.toJson(converter.fromBuffer(Models.AppVersions.class,
+                ByteBuffer.wrap(bytes))));
+    }
+
+    @Test
+    public void shouldReadStreamsOfUnknownSize() throws Exception {
+        Models.AppVersions versions = Models.appVersions(20);
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(toBytes(converter, versions))) {
+            @Override public int available() {
+                return 0;
+            }
+        };
+        Assert.assertEquals(gson.toJson(versions), gson.toJson(converter.fromFile(Models.AppVersions.class, in)));
+    }
+
+    @Test
+    public void shouldReadJsonWrittenBeforeSchema() throws Exception {
+        Models.AppVersions versions = Models.appVersions(5);
+        byte[] json = gson.toJson(versions).getBytes("UTF-8");
+
+        Models.AppVersions read = converter.fromFile(Models.AppVersions.class, new ByteArrayInputStream(json));
+        Assert.assertEquals(gson.toJson(versions), gson.toJson(read));
+        read = converter.fromBuffer(Models.AppVersions.class, ByteBuffer.wrap(json));
+        Assert.assertEquals(gson.toJson(versions), gson.toJson(read));
+    }
+
+    @Test
+    public void shouldFallBackToJsonForUntaggedTypes() throws Exception {
+        List<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+        byte[] bytes = toBytes(converter, list);
+        Assert.assertEquals("[\"a\",\"b\"]", new String(bytes, "UTF-8"));
+        Assert.assertEquals(list, converter.fromFile(ArrayList.class, new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void shouldSkipUnknownTags() throws Exception {
+        V1 v1 = new V1();
+        v1.name = "name";
+        v1.count = 3;
+        v1.ids = Arrays.asList(1L, null, -1L);
+        v1.child = new V1();
+        v1.child.count = -7;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryWriter writer = new BinaryWriter(out);
+        BinaryConverterTest_V1BinarySchema.INSTANCE.write(writer, v1);
+        writer.close();
+
+        BinaryReader reader = new BinaryReader(ByteBuffer.wrap(out.toByteArray()));
+        V2 v2 = BinaryConverterTest_V2BinarySchema.INSTANCE.read(reader);
+        Assert.assertEquals("name", v2.title);
+        Assert.assertEquals(v1.ids, v2.ids);
+        Assert.assertEquals(Color.GREEN, v2.color);
+        Assert.assertNull(v2.boxed);
+    }
+
+    @Test
+    public void shouldStreamListElements() throws Exception {
+        Models.AppVersions versions = Models.appVersions(20);
+        JsonArray expected = gson.toJsonTree(versions).getAsJsonObject().getAsJsonArray("app_versions");
+        byte[] binary = toBytes(converter, versions);
+        byte[] json = gson.toJson(versions).getBytes("UTF-8");
+
+        for (byte[] bytes : Arrays.asList(binary, json)) {
+            ElementReader<Models.AppVersion> reader = ((FileDb.StreamingConverter) converter)
+                    .openElements(Models.AppVersions.class, "appVersions", Models.AppVersion.class,
+                            new ByteArrayInputStream(bytes));
+            JsonArray read = new JsonArray();
+            try {
+                while (reader.hasNext()) {
+                    read.add(gson.toJsonTree(reader.next()));
+                }
+            } finally {
+                reader.close();
+            }
+            Assert.assertEquals(expected, read);
+        }
+    }
+
+    @Test
+    public void shouldReadBinaryElementsIncrementally() throws Exception {
+        Models.AppVersions versions = Models.appVersions(1000);
+        JsonArray expected = gson.toJsonTree(versions).getAsJsonObject().getAsJsonArray("app_versions");
+        byte[] bytes = toBytes(converter, versions);
+        final int[] consumed = new int[1];
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    consumed[0]++;
+                }
+                return b;
+            }
+
+            @Override public int read(byte[] buffer, int off, int len) throws IOException {
+                int count = super.read(buffer, off, len);
+                if (count > 0) {
+                    consumed[0] += count;
+                }
+                return count;
+            }
+        };
+
+        ElementReader<Models.AppVersion> reader = ((FileDb.StreamingConverter) converter)
+                .openElements(Models.AppVersions.class, "appVersions", Models.AppVersion.class, in);
+        try {
+            Assert.assertTrue(reader.hasNext());
+            Assert.assertEquals(expected.get(0), gson.toJsonTree(reader.next()));
+            // only the first buffer of the body was read so far
+            Assert.assertTrue("read " + consumed[0] + " of " + bytes.length, consumed[0] < bytes.length / 4);
+            Assert.assertEquals(999, readAll(reader).size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void shouldStreamTheNamedList() throws Exception {
+        Lists lists = new Lists();
+        lists.first = Arrays.asList("a", "b");
+        lists.second = Arrays.asList("c", "d", "e");
+        byte[] binary = toBytes(converter, lists);
+        byte[] json = gson.toJson(lists).getBytes("UTF-8");
+
+        for (byte[] bytes : Arrays.asList(binary, json)) {
+            Assert.assertEquals(lists.second, readAll(((FileDb.StreamingConverter) converter)
+                    .openElements(Lists.class, "second", String.class, new ByteArrayInputStream(bytes))));
+            Assert.assertEquals(lists.first, readAll(((FileDb.StreamingConverter) converter)
+                    .openElements(Lists.class, "first", String.class, new ByteArrayInputStream(bytes))));
+        }
+    }
+
+    private static <E> List<E> readAll(ElementReader<E> reader) throws Exception {
+        List<E> elements = new ArrayList<E>();
+        try {
+            while (reader.hasNext()) {
+                elements.add(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+        return elements;
+    }
+
+    private static byte[] toBytes(FileDb.Converter converter, Object data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        converter.toFile(out, data);
+        return out.toByteArray();
+    }
+
+    enum Color {
+        RED, GREEN
+    }
+
+    @GenerateBinarySchema
+    static final class V1 {
+        @Tag(1) String name;
+        @Tag(2) int count;
+        @Tag(3) List<Long> ids;
+        @Tag(6) V1 child;
+    }
+
+    @GenerateBinarySchema
+    static final class Lists {
+        @Tag(1) List<String> first;
+        @Tag(2) @SerializedName("second_list") List<String> second;
+    }
+
+    @GenerateBinarySchema
+    static final class V2 {
+        // renamed, same tag
+        @Tag(1) String title;
+        @Tag(3) List<Long> ids;
+        // added after V1 was written
+        @Tag(4) Color color = Color.GREEN;
+        @Tag(5) Integer boxed;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import stash.stashdbs.GsonDb;
+
+public class GeneratedTypeAdapterTest {
+    private final Gson reflective = new GsonBuilder().create();
+    private final Gson generated = GsonFactory.DEFAULT.gson();
+
+    @Test
+    public void shouldRegisterGeneratedAdapters() throws Exception {
+        Assert.assertEquals(Models_AppTypeAdapterFactory.class, factoryOf(generated, Models.App.class));
+        Assert.assertEquals(Models_AppVersionsTypeAdapterFactory.class,
+                factoryOf(generated, Models.AppVersions.class));
+        Assert.assertFalse(Models_AppVersionsTypeAdapterFactory.class
+                .equals(factoryOf(reflective, Models.AppVersions.class)));
+        Assert.assertEquals(Models_AppVersionsTypeAdapterFactory.class,
+                factoryOf(GsonDb.defaultGson(), Models.AppVersions.class));
+    }
+
+    @Test
+    public void shouldMatchReflectiveJson() throws Exception {
+        Models.AppVersions versions = Models.appVersions(10);
+        String json = reflective.toJson(versions);
+        Assert.assertEquals(json, generated.toJson(versions));
+        Assert.assertEquals(json, generated.toJson(generated.fromJson(json, Models.AppVersions.class)));
+    }
+
+    @Test
+    public void shouldSkipUnknownAndNullValues() throws Exception {
+        String json = "{\"title\":null,\"status\":null,\"release_type\":3,\"unknown\":{\"a\":[1,2]},"
+                + "\"platform\":\"Android\"}";
+        Models.App app = generated.fromJson(json, Models.App.class);
+        Assert.assertNull(app.title);
+        Assert.assertEquals(0, app.status);
+        Assert.assertEquals(3, app.releaseType);
+        Assert.assertEquals("Android", app.platform);
+        Assert.assertNull(generated.fromJson("null", Models.App.class));
+    }
+
+    private static Class<?> factoryOf(Gson gson, Class<?> type) {
+        return gson.getAdapter(type).getClass().getEnclosingClass();
+    }
+}
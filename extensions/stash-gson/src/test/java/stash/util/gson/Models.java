@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.gson;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import stash.annotations.GenerateBinarySchema;
+import stash.annotations.GenerateTypeAdapter;
+import stash.annotations.Tag;
+
+/**
+ * Plain field copies of the hockeyloader models, so the generated adapters and binary schemas can be compared with
+ * reflective Gson.
+ */
+public final class Models {
+    private Models() { throw new AssertionError("no instances"); }
+
+    public static AppVersions appVersions(int count) {
+        AppVersions versions = new AppVersions();
+        versions.appVersions = new ArrayList<AppVersion>(count);
+        versions.status = "success";
+        for (int i = 0; i < count; i++) {
+            AppVersion version = new AppVersion();
+            version.version = String.valueOf(100 + i);
+            version.shortVersion = "1.0." + i;
+            version.title = "Hockey Loader";
+            version.timestamp = 1453000000L + i;
+            version.appsize = 4096L * i;
+            version.notes = "<p>Release notes for build " + i + "</p>";
+            version.mandatory = i % 10 == 0;
+            version.external = false;
+            version.deviceFamily = i % 2 == 0 ? null : "phone";
+            version.id = i;
+            version.appId = 42;
+            version.configUrl = "https://rink.hockeyapp.net/manage/apps/42/app_versions/" + i;
+            version.restrictedToTags = false;
+            version.status = 2;
+            version.tags = new ArrayList<String>();
+            version.tags.add("beta");
+            version.createdAt = new Date(1453000000000L + i);
+            version.updatedAt = version.createdAt;
+            versions.appVersions.add(version);
+        }
+        return versions;
+    }
+
+    @GenerateTypeAdapter
+    @GenerateBinarySchema
+    public static final class App {
+        @Tag(1) @SerializedName("title") String title;
+        @Tag(2) @SerializedName("bundle_identifier") String bundleIdentifier;
+        @Tag(3) @SerializedName("public_identifier") String publicIdentifier;
+        @Tag(4) @SerializedName("device_family") String deviceFamily;
+        @Tag(5) @SerializedName("minimum_os_version") String minimumOsVersion;
+        @Tag(6) @SerializedName("release_type") int releaseType;
+        @Tag(7) @SerializedName("status") int status;
+        @Tag(8) @SerializedName("platform") String platform;
+    }
+
+    @GenerateTypeAdapter
+    @GenerateBinarySchema
+    public static final class Apps {
+        @Tag(1) @SerializedName("apps") List<App> apps;
+        @Tag(2) @SerializedName("status") String status;
+    }
+
+    @GenerateTypeAdapter
+    @GenerateBinarySchema
+    public static final class AppVersion {
+        @Tag(1) @SerializedName("version") String version;
+        @Tag(2) @SerializedName("shortversion") String shortVersion;
+        @Tag(3) @SerializedName("title") String title;
+        @Tag(4) @SerializedName("timestamp") long timestamp;
+        @Tag(5) @SerializedName("appsize") long appsize;
+        @Tag(6) @SerializedName("notes") String notes;
+        @Tag(7) @SerializedName("mandatory") boolean mandatory;
+        @Tag(8) @SerializedName("external") boolean external;
+        @Tag(9) @SerializedName("device_family") String deviceFamily;
+        @Tag(10) @SerializedName("id") int id;
+        @Tag(11) @SerializedName("app_id") int appId;
+        @Tag(12) @SerializedName("minimum_os_version") String minimumOsVersion;
+        @Tag(13) @SerializedName("download_url") String downloadUrl;
+        @Tag(14) @SerializedName("config_url") String configUrl;
+        @Tag(15) @SerializedName("restricted_to_tags") boolean restrictedToTags;
+        @Tag(16) @SerializedName("status") int status;
+        @Tag(17) @SerializedName("tags") List<String> tags;
+        @Tag(18) @SerializedName("created_at") Date createdAt;
+        @Tag(19) @SerializedName("updated_at") Date updatedAt;
+    }
+
+    @GenerateTypeAdapter
+    @GenerateBinarySchema
+    public static final class AppVersions {
+        @Tag(1) @SerializedName("app_versions") List<AppVersion> appVersions;
+        @Tag(2) @SerializedName("status") String status;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.util.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import stash.ConsoleLogger;
+import stash.internal.StashLog;
+
+/**
+ * Compares the generated adapters with reflective Gson on the hockeyloader models, including the cost of building
+ * the first adapter. Not part of the default test run, run it with {@code -Pbenchmarks}. Results are printed to the
+ * console.
+ */
+public class TypeAdapterBenchmark {
+    private static final String TAG = TypeAdapterBenchmark.class.getSimpleName();
+    private static final int ITEMS = 500;
+    private static final int ITERATIONS = 50;
+
+    @BeforeClass
+    public static void setUpLogger() {
+        StashLog.setLogger(new ConsoleLogger());
+    }
+
+    @AfterClass
+    public static void tearDownLogger() {
+        StashLog.setLogger(null);
+    }
+
+    @Test
+    public void compareAdapters() throws Exception {
+        Models.AppVersions versions = Models.appVersions(ITEMS);
+        String json = new Gson().toJson(versions);
+        compare("reflective", new GsonBuilder().create(), json);
+        compare("generated", GsonFactory.DEFAULT.gson(), json);
+    }
+
+    private static void compare(String name, Gson gson, String json) {
+        long start = System.nanoTime();
+        gson.getAdapter(Models.AppVersions.class);
+        long adapterNanos = System.nanoTime() - start;
+
+        // warm up before measuring
+        run(gson, json);
+        long[] nanos = run(gson, json);
+        StashLog.d(TAG, "%s: first adapter %d us, write %d us, read %d us", name,
+                TimeUnit.NANOSECONDS.toMicros(adapterNanos),
+                TimeUnit.NANOSECONDS.toMicros(nanos[0] / ITERATIONS),
+                TimeUnit.NANOSECONDS.toMicros(nanos[1] / ITERATIONS));
+    }
+
+    private static long[] run(Gson gson, String json) {
+        Models.AppVersions versions = gson.fromJson(json, Models.AppVersions.class);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            gson.toJson(versions);
+        }
+        long writeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            gson.fromJson(json, Models.AppVersions.class);
+        }
+        return new long[]{writeNanos, System.nanoTime() - start};
+    }
+}
@@ -16,9 +16,19 @@
 
 package stash.shopify;
 
+import android.support.annotation.NonNull;
+
+import com.shopify.buy.dataprovider.BuyClient;
+import com.shopify.buy.model.Image;
+import com.shopify.buy.model.Product;
+import com.shopify.buy.model.ProductVariant;
+
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import rx.functions.Func1;
+import stash.Entry;
+import stash.PagedStash;
 import stash.SimpleStashableApi;
 import stash.SimpleStashableApiBuilder;
 import stash.Stashable;
@@ -26,14 +36,60 @@
 import stash.internal.StashesImpl;
 import stash.params.SimpleStashableParams;
 import stash.shopify.model.ProductList;
+import stash.shopify.util.Util;
+import stash.stashdbs.MemDb;
 
 final class ProductsApi {
     private ProductsApi() { throw new AssertionError("no instances"); }
 
+    // estimated bytes, the description html usually dominates
+    private static final MemDb.Weigher<ProductList> WEIGHER = new MemDb.Weigher<ProductList>() {
+        @Override public int weigh(@NonNull Object key, @NonNull Entry<ProductList> entry) {
+            long weight = 16;
+            for (Product product : entry.getData()) {
+                weight += 4 + 120 + weigh(product.getProductId()) + weigh(product.getChannelId())
+                        + weigh(product.getTitle()) + weigh(product.getHandle()) + weigh(product.getBodyHtml())
+                        + weigh(product.getPublishedAt()) + weigh(product.getCreatedAt())
+                        + weigh(product.getUpdatedAt()) + weigh(product.getVendor())
+                        + weigh(product.getProductType());
+                for (ProductVariant variant : Util.nullSafe(product.getVariants())) {
+                    weight += 4 + 120 + weigh(variant.getTitle()) + weigh(variant.getPrice())
+                            + weigh(variant.getCompareAtPrice()) + weigh(variant.getSku())
+                            + weigh(variant.getCreatedAt()) + weigh(variant.getUpdatedAt());
+                }
+                for (Image image : Util.nullSafe(product.getImages())) {
+                    weight += 4 + 64 + weigh(image.getSrc()) + weigh(image.getCreatedAt())
+                            + weigh(image.getUpdatedAt());
+                }
+            }
+            return (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+
+        private int weigh(String s) {
+            return s == null ? 0 : 40 + 2 * s.length();
+        }
+    };
+
     static {
-        StashesImpl.getInstance().memDb().registerMaxSize(ProductList.class, 1);
+        StashesImpl.getInstance().memDb()
+                .registerWeigher(ProductList.class, WEIGHER)
+                .registerMaxSize(ProductList.class, 1);
     }
 
+    // one stash page per Shopify page, so a changed product only rewrites its own page on disk
+    private static final PagedStash.Builder<ProductList, Product> PAGES
+            = new PagedStash.Builder<ProductList, Product>(new Func1<List<Product>, ProductList>() {
+                @Override public ProductList call(List<Product> products) {
+                    return new ProductList(products);
+                }
+            })
+            .pageSize(BuyClient.MAX_PAGE_SIZE)
+            .version(new Func1<Product, String>() {
+                @Override public String call(Product product) {
+                    return product.getId() + "@" + product.getUpdatedAt();
+                }
+            });
+
     static final SimpleStashableApi<ProductList> INSTANCE = new SimpleStashableApiBuilder<ProductList>()
             .source(StoreClient.getInstance().getAllProducts())
             .requiresNetwork()
@@ -41,7 +97,7 @@ final class ProductsApi {
                 @Override public Stashable<ProductList> call(SimpleStashableParams params) {
                     return new Stashable.Builder<ProductList, String>(ProductList.class, params)
                             .primary(StashesImpl.getInstance().memDb())
-                            .secondary(GsonStashesImpl.getInstance().gsonDb())
+                            .secondary(PAGES.stashFunction(GsonStashesImpl.getInstance().gsonDb()))
                             .maxAge(TimeUnit.HOURS, 2)
                             .build();
                 }
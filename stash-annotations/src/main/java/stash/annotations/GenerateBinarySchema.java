@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a {@code <Type>BinarySchema} for the annotated class, and lists it in
+ * {@code META-INF/services/stash.util.binary.BinarySchema} so the binary converter stores the class in the compact
+ * tagged format instead of JSON.
+ * <p>
+ * Every serialized field needs a {@link Tag}. Fields may be strings, primitives and their boxes, enums, dates, other
+ * {@code @GenerateBinarySchema} classes, or lists of those. The class shape rules are the same as for
+ * {@link GenerateTypeAdapter}.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.TYPE})
+public @interface GenerateBinarySchema {}
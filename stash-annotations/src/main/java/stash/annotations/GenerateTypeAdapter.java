@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a streaming Gson {@code TypeAdapterFactory} named {@code <Type>TypeAdapterFactory} for the annotated
+ * class, and lists it in {@code META-INF/services/stash.util.gson.GeneratedTypeAdapterFactory} so
+ * {@code GsonFactory.DEFAULT} and {@code GsonDb.defaultGson()} register it without reflection on the fields.
+ * <p>
+ * The class needs a non-private no-arg constructor, and every serialized field (non-static, non-transient, including
+ * inherited ones) must be non-final and visible from the class's package. {@code @SerializedName} is honored; field
+ * naming policies and exclusion strategies set on the {@code GsonBuilder} are not.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE})
+public @interface GenerateTypeAdapter {}
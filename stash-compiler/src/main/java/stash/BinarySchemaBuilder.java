@@ -0,0 +1,317 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+import stash.annotations.GenerateBinarySchema;
+import stash.annotations.Tag;
+import stash.internal.StashLog;
+
+import static stash.Constants.BinaryReader;
+import static stash.Constants.BinarySchema;
+import static stash.Constants.BinarySchemas;
+import static stash.Constants.BinaryWriter;
+import static stash.Constants.Override;
+import static stash.Constants.WireType;
+
+/**
+ * Writes a {@code BinarySchema} for a {@link GenerateBinarySchema} class, storing each field under its {@link Tag}.
+ * Field types are resolved here, at compile time, so the generated code never looks up schemas while it runs.
+ */
+final class BinarySchemaBuilder {
+    private static final String TAG = BinarySchemaBuilder.class.getSimpleName();
+    private static final int MAX_TAG = Integer.MAX_VALUE >>> 3;
+    private static final Map<String, String> VALUE_SCHEMAS = new HashMap<>();
+
+    static {
+        VALUE_SCHEMAS.put(String.class.getName(), "STRING");
+        VALUE_SCHEMAS.put(Boolean.class.getName(), "BOOLEAN");
+        VALUE_SCHEMAS.put(Byte.class.getName(), "BYTE");
+        VALUE_SCHEMAS.put(Short.class.getName(), "SHORT");
+        VALUE_SCHEMAS.put(Character.class.getName(), "CHARACTER");
+        VALUE_SCHEMAS.put(Integer.class.getName(), "INTEGER");
+        VALUE_SCHEMAS.put(Long.class.getName(), "LONG");
+        VALUE_SCHEMAS.put(Float.class.getName(), "FLOAT");
+        VALUE_SCHEMAS.put(Double.class.getName(), "DOUBLE");
+        VALUE_SCHEMAS.put(java.util.Date.class.getName(), "DATE");
+    }
+
+    private final ModelType model;
+    private final Types typeUtils;
+    private final ClassName className;
+    final ClassName schemaClassName;
+
+    // enum schemas are created once per generated class
+    private final Map<TypeName, FieldSpec> enumSchemas = new LinkedHashMap<>();
+
+    BinarySchemaBuilder(TypeElement type, Types typeUtils) {
+        this.model = new ModelType(type, typeUtils);
+        this.typeUtils = typeUtils;
+        this.className = model.className;
+        this.schemaClassName = ModelType.generatedName(className, "BinarySchema");
+    }
+
+    void writeTo(Filer filer) throws IOException {
+        JavaFile javaFile = build();
+//        javaFile.writeTo(System.out);
+        javaFile.writeTo(filer);
+    }
+
+    private JavaFile build() {
+        StashLog.d(TAG, "GenerateBinarySchema element: %s", model.type.getQualifiedName());
+        model.check();
+        List<Field> fields = parseFields();
+
+        ParameterSpec out = ParameterSpec.builder(BinaryWriter, "out")
+                .build();
+        ParameterSpec in = ParameterSpec.builder(BinaryReader, "in")
+                .build();
+        ParameterSpec value = ParameterSpec.builder(className, "value")
+                .build();
+
+        MethodSpec.Builder write = MethodSpec.methodBuilder("write")
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .addException(IOException.class)
+                .addParameter(out)
+                .addParameter(value);
+        MethodSpec.Builder read = MethodSpec.methodBuilder("read")
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .addException(IOException.class)
+                .returns(className)
+                .addParameter(in)
+                .addStatement("$T $N = new $T()", className, value, className)
+                .addStatement("int key")
+                .beginControlFlow("while ((key = $N.readKey()) != 0)", in)
+                .beginControlFlow("switch ($T.tag(key))", WireType);
+        for (Field field : fields) {
+            write.addStatement("$N.$L", out, field.write(value));
+            read.addCode("case $L:\n$>", field.tag)
+                    .addStatement("$N.$N = $L", value, field.name, field.read(in))
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        write.addStatement("$N.endObject()", out);
+        read.addCode("default:\n$>")
+                .addStatement("$N.skip(key)", in)
+                .addCode("$<")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("return $N", value);
+
+        FieldSpec instance = FieldSpec.builder(schemaClassName, "INSTANCE", Modifier.PUBLIC, Modifier.STATIC,
+                Modifier.FINAL)
+                .initializer("new $T()", schemaClassName)
+                .build();
+        MethodSpec type = MethodSpec.methodBuilder("type")
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(ParameterizedTypeName.get(ClassName.get(Class.class), className))
+                .addStatement("return $T.class", className)
+                .build();
+        MethodSpec wireType = MethodSpec.methodBuilder("wireType")
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(TypeName.INT)
+                .addStatement("return $T.OBJECT", WireType)
+                .build();
+
+        TypeSpec schema = TypeSpec.classBuilder(schemaClassName.simpleName())
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addSuperinterface(ParameterizedTypeName.get(BinarySchema, className))
+                .addField(instance)
+                .addFields(enumSchemas.values())
+                .addMethod(type)
+                .addMethod(wireType)
+                .addMethod(write.build())
+                .addMethod(read.build())
+                .build();
+
+        return JavaFile.builder(schemaClassName.packageName(), schema)
+                .build();
+    }
+
+    private List<Field> parseFields() {
+        List<Field> fields = new ArrayList<>();
+        Map<Integer, String> tags = new HashMap<>();
+        for (VariableElement element : model.fields()) {
+            String name = element.getSimpleName().toString();
+            Tag tag = element.getAnnotation(Tag.class);
+            if (tag == null) {
+                throw new IllegalArgumentException(model.type.getQualifiedName() + "." + name
+                        + " needs a @Tag, or must be transient");
+            }
+            if (tag.value() <= 0 || tag.value() > MAX_TAG) {
+                throw new IllegalArgumentException(model.type.getQualifiedName() + "." + name
+                        + " has tag " + tag.value() + ", tags must be between 1 and " + MAX_TAG);
+            }
+            String previous = tags.put(tag.value(), name);
+            if (previous != null) {
+                throw new IllegalArgumentException(model.type.getQualifiedName() + "." + name
+                        + " reuses tag " + tag.value() + " of " + previous);
+            }
+            fields.add(new Field(element, tag.value()));
+        }
+        return fields;
+    }
+
+    /** @return an expression for the schema of a field or list element type */
+    private CodeBlock schemaFor(TypeMirror type, String fieldName) {
+        if (type.getKind() == TypeKind.DECLARED) {
+            TypeElement element = (TypeElement) typeUtils.asElement(type);
+            String valueSchema = VALUE_SCHEMAS.get(element.getQualifiedName().toString());
+            if (valueSchema != null) {
+                return CodeBlock.of("$T.$L", BinarySchemas, valueSchema);
+            }
+            if (element.getKind() == ElementKind.ENUM) {
+                TypeName enumType = TypeName.get(type);
+                FieldSpec schema = enumSchemas.get(enumType);
+                if (schema == null) {
+                    schema = FieldSpec.builder(ParameterizedTypeName.get(BinarySchema, enumType),
+                            ModelType.generatedName(ClassName.get(element), "_SCHEMA").simpleName().toUpperCase(),
+                            Modifier.PRIVATE,
+                            Modifier.STATIC, Modifier.FINAL)
+                            .initializer("$T.forEnum($T.class)", BinarySchemas, enumType)
+                            .build();
+                    enumSchemas.put(enumType, schema);
+                }
+                return CodeBlock.of("$N", schema);
+            }
+            if (element.getAnnotation(GenerateBinarySchema.class) != null) {
+                return CodeBlock.of("$T.INSTANCE", ModelType.generatedName(ClassName.get(element), "BinarySchema"));
+            }
+        }
+        throw new IllegalArgumentException(model.type.getQualifiedName() + "." + fieldName + " has type " + type
+                + ", which has no binary schema");
+    }
+
+    private boolean isList(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) typeUtils.asElement(type)).getQualifiedName().contentEquals("java.util.List");
+    }
+
+    private final class Field {
+        private final String name;
+        private final int tag;
+        private final TypeKind kind;
+        private final TypeName typeName;
+        private final boolean string;
+        private final boolean list;
+        private final CodeBlock schema;
+
+        private Field(VariableElement element, int tag) {
+            this.name = element.getSimpleName().toString();
+            this.tag = tag;
+            TypeMirror type = element.asType();
+            this.kind = type.getKind();
+            this.typeName = TypeName.get(type);
+            this.string = kind == TypeKind.DECLARED
+                    && ((TypeElement) typeUtils.asElement(type)).getQualifiedName().contentEquals("java.lang.String");
+            this.list = isList(type);
+            if (kind.isPrimitive() || string) {
+                this.schema = null;
+            } else if (list) {
+                List<? extends TypeMirror> args = ((DeclaredType) type).getTypeArguments();
+                if (args.size() != 1 || isList(args.get(0))) {
+                    throw new IllegalArgumentException(model.type.getQualifiedName() + "." + name
+                            + " must be a List of a type with a binary schema");
+                }
+                this.schema = schemaFor(args.get(0), name);
+            } else {
+                this.schema = schemaFor(type, name);
+            }
+        }
+
+        private CodeBlock write(ParameterSpec value) {
+            switch (kind) {
+                case BOOLEAN:
+                    return CodeBlock.of("writeBoolean($L, $N.$N)", tag, value, name);
+                case FLOAT:
+                    return CodeBlock.of("writeFloat($L, $N.$N)", tag, value, name);
+                case DOUBLE:
+                    return CodeBlock.of("writeDouble($L, $N.$N)", tag, value, name);
+                case BYTE:
+                case SHORT:
+                case CHAR:
+                case INT:
+                case LONG:
+                    return CodeBlock.of("writeVarint($L, $N.$N)", tag, value, name);
+                default:
+                    if (string) {
+                        return CodeBlock.of("writeString($L, $N.$N)", tag, value, name);
+                    }
+                    if (list) {
+                        return CodeBlock.of("writeList($L, $N.$N, $L)", tag, value, name, schema);
+                    }
+                    return CodeBlock.of("write($L, $N.$N, $L)", tag, value, name, schema);
+            }
+        }
+
+        private CodeBlock read(ParameterSpec in) {
+            switch (kind) {
+                case BOOLEAN:
+                    return CodeBlock.of("$N.readBoolean(key)", in);
+                case FLOAT:
+                    return CodeBlock.of("$N.readFloat(key)", in);
+                case DOUBLE:
+                    return CodeBlock.of("$N.readDouble(key)", in);
+                case LONG:
+                    return CodeBlock.of("$N.readVarint(key)", in);
+                case BYTE:
+                case SHORT:
+                case CHAR:
+                case INT:
+                    return CodeBlock.of("($T) $N.readVarint(key)", typeName, in);
+                default:
+                    if (string) {
+                        return CodeBlock.of("$N.readString(key)", in);
+                    }
+                    if (list) {
+                        return CodeBlock.of("$N.readList(key, $L)", in, schema);
+                    }
+                    return CodeBlock.of("$N.read(key, $L)", in, schema);
+            }
+        }
+    }
+}
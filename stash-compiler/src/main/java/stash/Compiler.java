@@ -19,7 +19,11 @@
 import com.google.auto.service.AutoService;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
@@ -31,13 +35,23 @@
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 
 import stash.annotations.GenerateApiBuilder;
+import stash.annotations.GenerateBinarySchema;
+import stash.annotations.GenerateTypeAdapter;
 
 import static javax.tools.Diagnostic.Kind.ERROR;
 
 @AutoService(Processor.class)
 public class Compiler extends AbstractProcessor {
+    // not com.google.gson.TypeAdapterFactory, other processors such as Immutables write that file too
+    private static final String TYPE_ADAPTER_FACTORY_SERVICE = "stash.util.gson.GeneratedTypeAdapterFactory";
+    private static final String BINARY_SCHEMA_SERVICE = "stash.util.binary.BinarySchema";
+
+    // generated classes by the service they implement, listed in META-INF/services once the last round is over
+    private final Map<String, Set<String>> services = new TreeMap<>();
 
     private Types typeUtils;
     private Filer filer;
@@ -49,6 +63,10 @@ public class Compiler extends AbstractProcessor {
     }
 
     @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        if (env.processingOver()) {
+            writeServices();
+            return false;
+        }
         boolean processed = false;
         for (Kind kind : Kind.values()) {
             for (Element element : env.getElementsAnnotatedWith(kind.annotationType)) {
@@ -69,6 +87,30 @@ public class Compiler extends AbstractProcessor {
                         error("exception %s", e);
                         return true;
                     }
+                } else if (kind.annotationType == GenerateTypeAdapter.class) {
+                    try {
+                        TypeAdapterBuilder builder = new TypeAdapterBuilder(typeElement, typeUtils);
+                        builder.writeTo(filer);
+                        addService(TYPE_ADAPTER_FACTORY_SERVICE, builder.factoryClassName.toString());
+                    } catch (IllegalArgumentException e) {
+                        error(element, e.getMessage());
+                        return true;
+                    } catch (IOException e) {
+                        error("exception %s", e);
+                        return true;
+                    }
+                } else if (kind.annotationType == GenerateBinarySchema.class) {
+                    try {
+                        BinarySchemaBuilder builder = new BinarySchemaBuilder(typeElement, typeUtils);
+                        builder.writeTo(filer);
+                        addService(BINARY_SCHEMA_SERVICE, builder.schemaClassName.toString());
+                    } catch (IllegalArgumentException e) {
+                        error(element, e.getMessage());
+                        return true;
+                    } catch (IOException e) {
+                        error("exception %s", e);
+                        return true;
+                    }
                 }
             }
         }
@@ -83,6 +125,32 @@ public class Compiler extends AbstractProcessor {
         return SourceVersion.latestSupported();
     }
 
+    private void addService(String service, String implementation) {
+        Set<String> implementations = services.get(service);
+        if (implementations == null) {
+            implementations = new TreeSet<>();
+            services.put(service, implementations);
+        }
+        implementations.add(implementation);
+    }
+
+    private void writeServices() {
+        for (Map.Entry<String, Set<String>> service : services.entrySet()) {
+            try {
+                FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "",
+                        "META-INF/services/" + service.getKey());
+                try (Writer writer = file.openWriter()) {
+                    for (String implementation : service.getValue()) {
+                        writer.write(implementation);
+                        writer.write('\n');
+                    }
+                }
+            } catch (IOException e) {
+                error("exception %s", e);
+            }
+        }
+    }
+
     private void error(Element element, String message, Object... args) {
         if (args.length > 0) {
             message = String.format(message, args);
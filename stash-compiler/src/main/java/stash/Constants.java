@@ -35,6 +35,20 @@ final class Constants {
     static final ClassName RequestProcessorBuilder = ClassName.get(RequestProcessor.packageName(),
             RequestProcessor.simpleName(), "Builder");
     static final ClassName List = ClassName.get(List.class);
+    static final ClassName Gson = ClassName.get("com.google.gson", "Gson");
+    static final ClassName TypeAdapter = ClassName.get("com.google.gson", "TypeAdapter");
+    static final ClassName GeneratedTypeAdapterFactory =
+            ClassName.get("stash.util.gson", "GeneratedTypeAdapterFactory");
+    static final ClassName TypeToken = ClassName.get("com.google.gson.reflect", "TypeToken");
+    static final ClassName JsonReader = ClassName.get("com.google.gson.stream", "JsonReader");
+    static final ClassName JsonWriter = ClassName.get("com.google.gson.stream", "JsonWriter");
+    static final ClassName JsonToken = ClassName.get("com.google.gson.stream", "JsonToken");
+    static final String SerializedName = "com.google.gson.annotations.SerializedName";
+    static final ClassName BinarySchema = ClassName.get("stash.util.binary", "BinarySchema");
+    static final ClassName BinarySchemas = ClassName.get("stash.util.binary", "BinarySchemas");
+    static final ClassName BinaryReader = ClassName.get("stash.util.binary", "BinaryReader");
+    static final ClassName BinaryWriter = ClassName.get("stash.util.binary", "BinaryWriter");
+    static final ClassName WireType = ClassName.get("stash.util.binary", "WireType");
 
     private Constants() { throw new AssertionError("no instances"); }
 }
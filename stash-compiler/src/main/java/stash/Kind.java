@@ -21,7 +21,9 @@
 import java.util.Set;
 
 enum Kind {
-    ApiBuilder(stash.annotations.GenerateApiBuilder.class);
+    ApiBuilder(stash.annotations.GenerateApiBuilder.class),
+    TypeAdapter(stash.annotations.GenerateTypeAdapter.class),
+    BinarySchema(stash.annotations.GenerateBinarySchema.class);
 
     final Class<? extends Annotation> annotationType;
 
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+import com.squareup.javapoet.ClassName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+/**
+ * A model class whose fields generated code reads and writes directly, from a class in the same package. Shape
+ * problems are reported as {@link IllegalArgumentException}s, which the {@link Compiler} turns into errors on the
+ * element.
+ */
+final class ModelType {
+    final TypeElement type;
+    final ClassName className;
+    private final Types typeUtils;
+
+    ModelType(TypeElement type, Types typeUtils) {
+        this.type = type;
+        this.className = ClassName.get(type);
+        this.typeUtils = typeUtils;
+    }
+
+    /** @return a top level class name in the model's package, e.g. {@code Outer_InnerSuffix} */
+    static ClassName generatedName(ClassName className, String suffix) {
+        StringBuilder name = new StringBuilder();
+        for (String simpleName : className.simpleNames()) {
+            if (name.length() > 0) {
+                name.append('_');
+            }
+            name.append(simpleName);
+        }
+        return ClassName.get(className.packageName(), name.append(suffix).toString());
+    }
+
+    void check() {
+        Set<Modifier> modifiers = type.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT) || modifiers.contains(Modifier.PRIVATE)) {
+            throw new IllegalArgumentException(type.getQualifiedName() + " must be a concrete, non-private class");
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)) {
+            throw new IllegalArgumentException(type.getQualifiedName() + " must be a static nested class");
+        }
+        if (!type.getTypeParameters().isEmpty()) {
+            throw new IllegalArgumentException(type.getQualifiedName() + " must not declare type parameters");
+        }
+        for (Element element : type.getEnclosedElements()) {
+            if (element.getKind() == ElementKind.CONSTRUCTOR
+                    && ((ExecutableElement) element).getParameters().isEmpty()
+                    && !element.getModifiers().contains(Modifier.PRIVATE)) {
+                return;
+            }
+        }
+        throw new IllegalArgumentException(type.getQualifiedName() + " needs a non-private no-arg constructor");
+    }
+
+    /** @return the serialized fields, declared fields first and then each superclass's, like Gson orders them */
+    List<VariableElement> fields() {
+        final PackageElement pkg = packageOf(type);
+        List<VariableElement> fields = new ArrayList<>();
+        Set<String> fieldNames = new HashSet<>();
+        for (TypeElement t = type; t != null; t = superclass(t)) {
+            if (t != type && !t.getTypeParameters().isEmpty()) {
+                throw new IllegalArgumentException(type.getQualifiedName() + " must not extend generic class "
+                        + t.getQualifiedName());
+            }
+            for (Element element : t.getEnclosedElements()) {
+                if (element.getKind() != ElementKind.FIELD) {
+                    continue;
+                }
+                Set<Modifier> modifiers = element.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+                String name = t.getQualifiedName() + "." + element.getSimpleName();
+                if (modifiers.contains(Modifier.FINAL)) {
+                    throw new IllegalArgumentException(name + " must not be final");
+                }
+                if (modifiers.contains(Modifier.PRIVATE)
+                        || (!modifiers.contains(Modifier.PUBLIC) && !packageOf(t).equals(pkg))) {
+                    throw new IllegalArgumentException(name + " is not visible from " + pkg.getQualifiedName());
+                }
+                if (!fieldNames.add(element.getSimpleName().toString())) {
+                    throw new IllegalArgumentException(name + " shadows a field of the same name");
+                }
+                fields.add((VariableElement) element);
+            }
+        }
+        return Collections.unmodifiableList(fields);
+    }
+
+    private TypeElement superclass(TypeElement t) {
+        TypeMirror superclass = t.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        TypeElement element = (TypeElement) typeUtils.asElement(superclass);
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private static PackageElement packageOf(Element element) {
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.TypeVariableName;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.Types;
+
+import stash.internal.StashLog;
+
+import static stash.Constants.GeneratedTypeAdapterFactory;
+import static stash.Constants.Gson;
+import static stash.Constants.JsonReader;
+import static stash.Constants.JsonToken;
+import static stash.Constants.JsonWriter;
+import static stash.Constants.Override;
+import static stash.Constants.SerializedName;
+import static stash.Constants.TypeAdapter;
+import static stash.Constants.TypeToken;
+
+/**
+ * Writes a {@code TypeAdapterFactory} for a {@link stash.annotations.GenerateTypeAdapter} class. The nested adapter
+ * reads and writes the fields directly with {@code JsonReader}/{@code JsonWriter}; primitives and strings are inlined,
+ * every other field type is delegated to the adapter {@code Gson} returns for it.
+ */
+final class TypeAdapterBuilder {
+    private static final String TAG = TypeAdapterBuilder.class.getSimpleName();
+
+    private final ModelType model;
+    private final ClassName className;
+    final ClassName factoryClassName;
+
+    TypeAdapterBuilder(TypeElement type, Types typeUtils) {
+        this.model = new ModelType(type, typeUtils);
+        this.className = model.className;
+        this.factoryClassName = ModelType.generatedName(className, "TypeAdapterFactory");
+    }
+
+    void writeTo(Filer filer) throws IOException {
+        JavaFile javaFile = build();
+//        javaFile.writeTo(System.out);
+        javaFile.writeTo(filer);
+    }
+
+    private JavaFile build() {
+        StashLog.d(TAG, "GenerateTypeAdapter element: %s", model.type.getQualifiedName());
+        model.check();
+        List<Property> properties = parseProperties();
+
+        ClassName adapterClassName = factoryClassName.nestedClass("Adapter");
+        ParameterSpec gson = ParameterSpec.builder(Gson, "gson")
+                .build();
+
+        // Delegate adapters, one per distinct field type
+        Map<TypeName, FieldSpec> delegates = new LinkedHashMap<>();
+        MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PRIVATE)
+                .addParameter(gson);
+        for (Property property : properties) {
+            if (property.isInline() || delegates.containsKey(property.typeName)) {
+                continue;
+            }
+            FieldSpec field = FieldSpec.builder(ParameterizedTypeName.get(TypeAdapter, property.typeName.box()),
+                    property.fieldName + "Adapter", Modifier.PRIVATE, Modifier.FINAL)
+                    .build();
+            delegates.put(property.typeName, field);
+            if (property.typeName instanceof ParameterizedTypeName) {
+                constructor.addStatement("this.$N = $N.getAdapter(new $T<$T>() {})", field, gson, TypeToken,
+                        property.typeName);
+            } else {
+                constructor.addStatement("this.$N = $N.getAdapter($T.class)", field, gson, property.typeName);
+            }
+        }
+
+        // Write method
+        ParameterSpec out = ParameterSpec.builder(JsonWriter, "out")
+                .build();
+        ParameterSpec value = ParameterSpec.builder(className, "value")
+                .build();
+        MethodSpec.Builder write = MethodSpec.methodBuilder("write")
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .addException(IOException.class)
+                .addParameter(out)
+                .addParameter(value)
+                .beginControlFlow("if ($N == null)", value)
+                .addStatement("$N.nullValue()", out)
+                .addStatement("return")
+                .endControlFlow()
+                .addStatement("$N.beginObject()", out);
+        for (Property property : properties) {
+            write.addStatement("$N.name($S)", out, property.jsonName);
+            write.addStatement("$L", property.writeValue(out, value, delegates.get(property.typeName)));
+        }
+        write.addStatement("$N.endObject()", out);
+
+        // Read method
+        ParameterSpec in = ParameterSpec.builder(JsonReader, "in")
+                .build();
+        MethodSpec.Builder read = MethodSpec.methodBuilder("read")
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .addException(IOException.class)
+                .returns(className)
+                .addParameter(in)
+                .beginControlFlow("if ($N.peek() == $T.NULL)", in, JsonToken)
+                .addStatement("$N.nextNull()", in)
+                .addStatement("return null")
+                .endControlFlow()
+                .addStatement("$T $N = new $T()", className, value, className)
+                .addStatement("$N.beginObject()", in)
+                .beginControlFlow("while ($N.hasNext())", in)
+                .beginControlFlow("switch ($N.nextName())", in);
+        for (Property property : properties) {
+            read.addCode("case $S:\n$>", property.jsonName);
+            property.readValue(read, in, value, delegates.get(property.typeName));
+            read.addStatement("break")
+                    .addCode("$<");
+        }
+        read.addCode("default:\n$>")
+                .addStatement("$N.skipValue()", in)
+                .addCode("$<")
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("$N.endObject()", in)
+                .addStatement("return $N", value);
+
+        TypeSpec adapter = TypeSpec.classBuilder(adapterClassName.simpleName())
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .superclass(ParameterizedTypeName.get(TypeAdapter, className))
+                .addFields(delegates.values())
+                .addMethod(constructor.build())
+                .addMethod(write.build())
+                .addMethod(read.build())
+                .build();
+
+        // Factory method
+        TypeVariableName t = TypeVariableName.get("T");
+        ParameterSpec typeToken = ParameterSpec.builder(ParameterizedTypeName.get(TypeToken, t), "type")
+                .build();
+        MethodSpec create = MethodSpec.methodBuilder("create")
+                .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+                        .addMember("value", "$S", "unchecked")
+                        .build())
+                .addAnnotation(Override)
+                .addModifiers(Modifier.PUBLIC)
+                .addTypeVariable(t)
+                .returns(ParameterizedTypeName.get(TypeAdapter, t))
+                .addParameter(gson)
+                .addParameter(typeToken)
+                .beginControlFlow("if ($N.getRawType() == $T.class)", typeToken, className)
+                .addStatement("return ($T) new $T($N)", ParameterizedTypeName.get(TypeAdapter, t), adapterClassName,
+                        gson)
+                .endControlFlow()
+                .addStatement("return null")
+                .build();
+
+        TypeSpec factory = TypeSpec.classBuilder(factoryClassName.simpleName())
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addSuperinterface(GeneratedTypeAdapterFactory)
+                .addMethod(create)
+                .addType(adapter)
+                .build();
+
+        return JavaFile.builder(factoryClassName.packageName(), factory)
+                .build();
+    }
+
+    private List<Property> parseProperties() {
+        List<Property> properties = new ArrayList<>();
+        Set<String> jsonNames = new HashSet<>();
+        for (VariableElement field : model.fields()) {
+            Property property = new Property(field);
+            if (!jsonNames.add(property.jsonName)) {
+                throw new IllegalArgumentException(model.type.getQualifiedName()
+                        + " declares multiple JSON fields named " + property.jsonName);
+            }
+            properties.add(property);
+        }
+        return properties;
+    }
+
+    private static String serializedName(VariableElement field) {
+        for (AnnotationMirror am : field.getAnnotationMirrors()) {
+            TypeElement te = (TypeElement) am.getAnnotationType().asElement();
+            if (te.getQualifiedName().contentEquals(SerializedName)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                        : am.getElementValues().entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("value")) {
+                        return (String) entry.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final class Property {
+        private final String fieldName;
+        private final String jsonName;
+        private final TypeKind kind;
+        private final TypeName typeName;
+
+        private Property(VariableElement field) {
+            this.fieldName = field.getSimpleName().toString();
+            String serializedName = serializedName(field);
+            this.jsonName = serializedName == null ? fieldName : serializedName;
+            this.kind = field.asType().getKind();
+            this.typeName = TypeName.get(field.asType());
+        }
+
+        private boolean isString() {
+            return ClassName.get(String.class).equals(typeName);
+        }
+
+        /** @return whether the value is read and written without a delegate adapter */
+        private boolean isInline() {
+            return kind.isPrimitive() || isString();
+        }
+
+        private CodeBlock writeValue(ParameterSpec out, ParameterSpec value, FieldSpec delegate) {
+            switch (kind) {
+                case FLOAT:
+                    // written as a Number so it is formatted like Gson's float adapter, not widened to double
+                    return CodeBlock.of("$N.value((Number) $N.$N)", out, value, fieldName);
+                case CHAR:
+                    return CodeBlock.of("$N.value(String.valueOf($N.$N))", out, value, fieldName);
+                default:
+                    if (isInline()) {
+                        return CodeBlock.of("$N.value($N.$N)", out, value, fieldName);
+                    }
+                    return CodeBlock.of("$N.write($N, $N.$N)", delegate, out, value, fieldName);
+            }
+        }
+
+        private void readValue(MethodSpec.Builder read, ParameterSpec in, ParameterSpec value,
+                FieldSpec delegate) {
+            if (!isInline()) {
+                read.addStatement("$N.$N = $N.read($N)", value, fieldName, delegate, in);
+                return;
+            }
+            read.beginControlFlow("if ($N.peek() == $T.NULL)", in, JsonToken)
+                    .addStatement("$N.nextNull()", in);
+            if (isString()) {
+                // like Gson, a null clears a reference field but leaves a primitive at its default
+                read.addStatement("$N.$N = null", value, fieldName);
+            }
+            read.nextControlFlow("else")
+                    .addStatement("$N.$N = $L", value, fieldName, nextValue(in))
+                    .endControlFlow();
+        }
+
+        private CodeBlock nextValue(ParameterSpec in) {
+            switch (kind) {
+                case BOOLEAN:
+                    return CodeBlock.of("$N.nextBoolean()", in);
+                case BYTE:
+                    return CodeBlock.of("(byte) $N.nextInt()", in);
+                case SHORT:
+                    return CodeBlock.of("(short) $N.nextInt()", in);
+                case INT:
+                    return CodeBlock.of("$N.nextInt()", in);
+                case LONG:
+                    return CodeBlock.of("$N.nextLong()", in);
+                case FLOAT:
+                    return CodeBlock.of("(float) $N.nextDouble()", in);
+                case DOUBLE:
+                    return CodeBlock.of("$N.nextDouble()", in);
+                case CHAR:
+                    return CodeBlock.of("$N.nextString().charAt(0)", in);
+                default:
+                    return CodeBlock.of("$N.nextString()", in);
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@
 
 import stash.util.Logger;
 
+/**
+ * Format overloads skip formatting while logging is off, so callers on hot paths don't pay for it.
+ */
 public final class StashLog {
     private static volatile Logger sLogger = Logger.NONE;
 
@@ -36,7 +39,10 @@ public static void v(final String tag, final String msg) {
     }
 
     public static void v(final String tag, final String format, final Object... args) {
-        sLogger.v(tag, String.format(format, args));
+        final Logger logger = sLogger;
+        if (logger != Logger.NONE) {
+            logger.v(tag, String.format(format, args));
+        }
     }
 
     public static void v(final String tag, final String msg, final Throwable tr) {
@@ -48,7 +54,10 @@ public static void d(final String tag, final String msg) {
     }
 
     public static void d(final String tag, final String format, final Object... args) {
-        sLogger.d(tag, String.format(format, args));
+        final Logger logger = sLogger;
+        if (logger != Logger.NONE) {
+            logger.d(tag, String.format(format, args));
+        }
     }
 
     public static void d(final String tag, final String msg, final Throwable tr) {
@@ -60,7 +69,10 @@ public static void i(final String tag, final String msg) {
     }
 
     public static void i(final String tag, final String format, final Object... args) {
-        sLogger.i(tag, String.format(format, args));
+        final Logger logger = sLogger;
+        if (logger != Logger.NONE) {
+            logger.i(tag, String.format(format, args));
+        }
     }
 
     public static void i(final String tag, final String msg, final Throwable tr) {
@@ -72,7 +84,10 @@ public static void w(final String tag, final String msg) {
     }
 
     public static void w(final String tag, final String format, final Object... args) {
-        sLogger.w(tag, String.format(format, args));
+        final Logger logger = sLogger;
+        if (logger != Logger.NONE) {
+            logger.w(tag, String.format(format, args));
+        }
     }
 
     public static void w(final String tag, final String msg, final Throwable tr) {
@@ -84,7 +99,10 @@ public static void e(final String tag, final String msg) {
     }
 
     public static void e(final String tag, final String format, final Object... args) {
-        sLogger.e(tag, String.format(format, args));
+        final Logger logger = sLogger;
+        if (logger != Logger.NONE) {
+            logger.e(tag, String.format(format, args));
+        }
     }
 
     public static void e(final String tag, final String msg, final Throwable tr) {
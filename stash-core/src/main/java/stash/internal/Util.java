@@ -18,6 +18,7 @@
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -47,6 +48,25 @@ public static <T> Set<T> nullSafe(Set<T> set) {
                 : Arrays.asList(t);
     }
 
+    /**
+     * Finds the collection valued field named {@code name}, declared by {@code type} or one of its superclasses.
+     *
+     * @throws IllegalArgumentException if there is no such field, or it doesn't hold an {@link Iterable}
+     */
+    public static Field collectionField(Class<?> type, String name) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                if (!Iterable.class.isAssignableFrom(field.getType())) {
+                    throw new IllegalArgumentException(type.getName() + "." + name + " is not a collection");
+                }
+                return field;
+            } catch (NoSuchFieldException ignored) {
+            }
+        }
+        throw new IllegalArgumentException(type.getName() + " has no field named " + name);
+    }
+
     public static void close(Object object) throws IOException {
         if (object instanceof Closeable) {
             ((Closeable) object).close();
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the elements of a stored collection one at a time, so they can be used before the rest is decoded. See
+ * {@link Stash#streamData(Class)}.
+ */
+public interface ElementReader<E> extends Closeable {
+    boolean hasNext() throws IOException;
+
+    E next() throws IOException;
+}
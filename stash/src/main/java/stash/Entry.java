@@ -21,6 +21,7 @@
 
 import java.util.List;
 
+import stash.internal.ExpiryPurger;
 import stash.internal.Util;
 
 public interface Entry<T> {
@@ -28,6 +29,12 @@
 
     @Nullable T getData();
 
+    /**
+     * Marks an entry that is fully materialized, holds no resources and never changes, so readers may share it
+     * instead of copying. Entries created by {@link Builder#build()} are immutable.
+     */
+    interface Immutable<T> extends Entry<T> {}
+
     final class Builder<T> implements stash.Builder<Entry<T>> {
         private final Metadata.Builder metadata = new Metadata.Builder();
         private T data;
@@ -43,7 +50,15 @@ public Builder(Entry<T> entry) {
             }
         }
 
+        /**
+         * Returns a fully read, immutable copy of {@code entry}, or {@code entry} itself if it already is
+         * {@link Immutable}.
+         */
         public static <T> Entry<T> copy(Entry<T> entry) {
+            Entry<T> unwrapped = LazyEntry.unwrap(entry);
+            if (unwrapped instanceof Immutable) {
+                return unwrapped;
+            }
             return new Builder<T>(entry).build();
         }
 
@@ -65,9 +80,15 @@ public Builder<T> setMetadata(long lastUpdated, List<String> metadata) {
 
         public Builder<T> setMetadata(Metadata metadata) {
             if (metadata == null) { return this; }
+            this.metadata.setExpiresAt(ExpiryPurger.getExpiresAt(metadata));
             return setMetadata(metadata.getLastUpdated(), metadata.getData());
         }
 
+        public Builder<T> setExpiresAt(long expiresAt) {
+            metadata.setExpiresAt(expiresAt);
+            return this;
+        }
+
         public Builder<T> setData(T data) {
             this.data = data;
             return this;
@@ -77,7 +98,7 @@ public Builder<T> setData(T data) {
             return new EntryImpl<T>(this);
         }
 
-        private static final class EntryImpl<T> implements Entry<T> {
+        private static final class EntryImpl<T> implements Immutable<T> {
             private final Metadata metadata;
             private final T data;
 
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+/**
+ * {@link Metadata} that also carries the time its entry expires, so stashes can purge it proactively. Metadata built
+ * with {@link Metadata.Builder} implements it; other implementations simply never expire on their own.
+ */
+public interface ExpiringMetadata extends Metadata {
+    long NO_EXPIRATION = 0;
+
+    /**
+     * Absolute time in milliseconds after which the entry is dead, or {@link #NO_EXPIRATION}.
+     */
+    long getExpiresAt();
+}
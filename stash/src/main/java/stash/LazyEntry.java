@@ -21,8 +21,18 @@
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+import rx.Observable;
+import rx.Observer;
+import rx.exceptions.Exceptions;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func2;
+import rx.observables.SyncOnSubscribe;
 import stash.annotations.Keep;
 import stash.internal.StashLog;
 import stash.internal.Util;
@@ -51,12 +61,37 @@ protected LazyEntry() {}
         return null;
     }
 
+    /**
+     * Returns the entry wrapped by {@link #cast(Entry)}, or {@code entry} itself if it isn't a wrapper.
+     */
+    @Nullable static <T> Entry<T> unwrap(@Nullable Entry<T> entry) {
+        if (entry instanceof LazyEntryWrapper) {
+            return ((LazyEntryWrapper<T>) entry).entry;
+        }
+        return entry;
+    }
+
+    /**
+     * Loads the metadata alone. Expiry predicates only ever need this, so the data shouldn't be opened or read here,
+     * that is left to {@link #loadData()}.
+     */
     @NonNull protected abstract Metadata loadMetadata();
 
     @Nullable protected abstract T loadData();
 
     protected abstract void closeInternal() throws IOException;
 
+    /**
+     * Opens a reader over the elements of the stored collection, without loading the data. The collection is the data
+     * itself if {@code field} is null, otherwise the data's field with that name.
+     *
+     * @return null if this entry can't stream its elements, then {@link #getData()} is loaded and iterated instead
+     */
+    @Nullable protected <E> ElementReader<E> openElements(@Nullable String field, @NonNull Class<E> elementType)
+            throws IOException {
+        return null;
+    }
+
     @NonNull @Override public final Metadata getMetadata() {
         if (!metadataLoaded) {
             synchronized (metaLock) {
@@ -105,12 +140,88 @@ public final void closeQuietly() {
         Util.closeQuietly(this);
     }
 
+    /**
+     * Emits the elements as they are read, as fast as they are requested. The entry is closed once the stream
+     * completes or is unsubscribed.
+     */
+    @NonNull final <E> Observable<E> streamData(@Nullable final String field, @NonNull final Class<E> elementType) {
+        return Observable.create(SyncOnSubscribe.createStateful(new Func0<ElementReader<E>>() {
+            @Override public ElementReader<E> call() {
+                try {
+                    ElementReader<E> reader = openElements(field, elementType);
+                    return (reader == null) ? new DataReader<E>(field, elementType, getData()) : reader;
+                } catch (Throwable e) {
+                    closeQuietly();
+                    throw Exceptions.propagate(e);
+                }
+            }
+        }, new Func2<ElementReader<E>, Observer<? super E>, ElementReader<E>>() {
+            @Override public ElementReader<E> call(ElementReader<E> reader, Observer<? super E> observer) {
+                try {
+                    if (reader.hasNext()) {
+                        observer.onNext(reader.next());
+                    } else {
+                        observer.onCompleted();
+                    }
+                } catch (Throwable e) {
+                    observer.onError(e);
+                }
+                return reader;
+            }
+        }, new Action1<ElementReader<E>>() {
+            @Override public void call(ElementReader<E> reader) {
+                Util.closeQuietly(reader);
+                closeQuietly();
+            }
+        }));
+    }
+
     private void tryClose() {
         if (metadataLoaded && dataLoaded) {
             closeQuietly();
         }
     }
 
+    /** Iterates the collection in data that is already loaded. */
+    private static final class DataReader<E> implements ElementReader<E> {
+        private final Class<E> elementType;
+        private final Iterator<?> iterator;
+
+        private DataReader(String field, Class<E> elementType, Object data) {
+            this.elementType = elementType;
+            this.iterator = collection(field, data).iterator();
+        }
+
+        private static Iterable<?> collection(String name, Object data) {
+            if (data == null) {
+                return Collections.emptyList();
+            } else if (name == null) {
+                if (data instanceof Iterable) {
+                    return (Iterable<?>) data;
+                }
+                throw new IllegalStateException(data.getClass().getName() + " is not a collection");
+            }
+            Field field = Util.collectionField(data.getClass(), name);
+            try {
+                field.setAccessible(true);
+                Iterable<?> collection = (Iterable<?>) field.get(data);
+                return collection == null ? Collections.emptyList() : collection;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override public E next() {
+            return elementType.cast(iterator.next());
+        }
+
+        @Override public void close() {}
+    }
+
     private static final class LazyEntryWrapper<T> extends LazyEntry<T> {
         private final Entry<T> entry;
 
@@ -33,6 +33,7 @@ public interface Metadata {
     final class Builder implements stash.Builder<Metadata> {
         boolean called;
         private long lastUpdated = System.currentTimeMillis();
+        private long expiresAt = ExpiringMetadata.NO_EXPIRATION;
         private List<String> data;
 
         public Builder setLastUpdated(long lastUpdated) {
@@ -41,6 +42,15 @@ public Builder setLastUpdated(long lastUpdated) {
             return this;
         }
 
+        /**
+         * Sets the absolute expiration time the built metadata reports as {@link ExpiringMetadata}.
+         */
+        public Builder setExpiresAt(long expiresAt) {
+            called = true;
+            this.expiresAt = expiresAt;
+            return this;
+        }
+
         public Builder setData(List<String> data) {
             called = true;
             this.data = data;
@@ -54,12 +64,14 @@ public Builder setData(List<String> data) {
             return new MetadataImpl(this);
         }
 
-        private static final class MetadataImpl implements Metadata {
+        private static final class MetadataImpl implements ExpiringMetadata {
             private final long lastUpdated;
+            private final long expiresAt;
             private final List<String> data;
 
             private MetadataImpl(Builder builder) {
                 this.lastUpdated = builder.lastUpdated;
+                this.expiresAt = builder.expiresAt;
                 this.data = Collections.unmodifiableList(Util.nullSafe(builder.data));
             }
 
@@ -70,6 +82,10 @@ private MetadataImpl(Builder builder) {
             @Override public long getLastUpdated() {
                 return lastUpdated;
             }
+
+            @Override public long getExpiresAt() {
+                return expiresAt;
+            }
         }
     }
 }
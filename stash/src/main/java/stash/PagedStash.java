@@ -0,0 +1,415 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import rx.Observable;
+import rx.functions.Func1;
+import stash.internal.ExpiryPurger;
+import stash.internal.Util;
+
+/**
+ * A {@link Stash} for large lists that stores them in pages under derived keys, the key followed by a NUL character
+ * and the page number, next to an index entry under the key itself. The index's metadata records the page size, the
+ * list size and a SHA-1 fingerprint of every page, so a put only rewrites the pages that changed and
+ * {@link #getPages(int, int)} reads just the pages asked for. {@link #getData()} still assembles the whole list, so a
+ * paged stash works anywhere a {@link Stash} does, like the secondary of a {@link Stashable}.
+ * <p>
+ * Pages never expire on their own, the index carries the entry's expiration. If a page has been evicted the whole
+ * list reads as missing, and the index is dropped so the next put writes every page again. Every page read is checked
+ * against the index's fingerprints, so a read racing a put never mixes old and new pages.
+ */
+public final class PagedStash<T extends List<E>, E> extends Stash<T> {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private static final String INDEX_PREFIX = "stash.paged:";
+    private static final char PAGE_SEPARATOR = '\u0000';
+    private static final int READ_ATTEMPTS = 3;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ConcurrentMap<Class<?>, Boolean> VALUE_TYPES = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    private final PagedWorker<T, E> worker;
+
+    private PagedStash(PagedWorker<T, E> worker) {
+        super(worker);
+        this.worker = worker;
+    }
+
+    /** @return the number of stored pages, 0 if nothing is stored */
+    @NonNull public Request<Integer> getPageCount() {
+        return Request.from(new Callable<Integer>() {
+            @Override public Integer call() throws Exception {
+                Index index = worker.readIndex();
+                return (index == null) ? 0 : index.pageCount();
+            }
+        });
+    }
+
+    @NonNull public Request<T> getPage(int page) {
+        return getPages(page, 1);
+    }
+
+    /**
+     * Reads up to {@code count} pages starting at {@code from}, each one only when it is requested. Pages past the end
+     * are skipped, and reading stops at the first page that has been evicted.
+     */
+    @NonNull public Request<T> getPages(final int from, final int count) {
+        if (from < 0 || count < 0) {
+            throw new IllegalArgumentException("from and count must not be negative");
+        }
+        Observable<T> observable = StashObservables.from(new Callable<Index>() {
+            @Override public Index call() throws Exception {
+                return worker.readIndex();
+            }
+        }).concatMap(new Func1<Index, Observable<T>>() {
+            @Override public Observable<T> call(final Index index) {
+                int pages = (index == null) ? 0 : Math.max(0, Math.min(count, index.pageCount() - from));
+                return Observable.range(from, pages).concatMap(new Func1<Integer, Observable<T>>() {
+                    @Override public Observable<T> call(final Integer page) {
+                        return StashObservables.from(new Callable<T>() {
+                            @Override public T call() throws Exception {
+                                return worker.readPage(index, page);
+                            }
+                        });
+                    }
+                });
+            }
+        }).takeWhile(new Func1<T, Boolean>() {
+            @Override public Boolean call(T page) {
+                return page != null;
+            }
+        });
+        return Request.from(observable);
+    }
+
+    public static final class Builder<T extends List<E>, E> {
+        private final Func1<List<E>, T> pageFactory;
+        private int pageSize = DEFAULT_PAGE_SIZE;
+        private Func1<? super E, ?> version;
+
+        /**
+         * @param pageFactory creates a page from a view of the list's elements, it must copy them
+         */
+        public Builder(@NonNull Func1<List<E>, T> pageFactory) {
+            this.pageFactory = pageFactory;
+        }
+
+        public Builder<T, E> pageSize(int pageSize) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be positive");
+            }
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Maps an element to the value its page fingerprint is computed from. The value's string form must change
+         * whenever the element does and be the same in every process, like an id combined with a modification time.
+         * Defaults to the element itself, which then has to override {@link Object#hashCode()} and
+         * {@link Object#toString()}.
+         */
+        public Builder<T, E> version(@NonNull Func1<? super E, ?> version) {
+            this.version = version;
+            return this;
+        }
+
+        @NonNull public PagedStash<T, E> build(@NonNull StashDb<? super String> db, @NonNull Class<T> type,
+                @NonNull StashKey<? extends String> stashKey) {
+            return new PagedStash<T, E>(new PagedWorker<T, E>(this, db, type, stashKey));
+        }
+
+        /** @return a function creating paged stashes in {@code db}, for {@link Stashable.Builder} */
+        @NonNull public Functions.Stash<T, String> stashFunction(@NonNull final StashDb<? super String> db) {
+            return new Functions.Stash<T, String>() {
+                @NonNull @Override public PagedStash<T, E> getStash(@NonNull Class<T> type,
+                        @NonNull StashKey<? extends String> stashKey) {
+                    return build(db, type, stashKey);
+                }
+            };
+        }
+    }
+
+    private static final class PagedWorker<T extends List<E>, E> implements Worker<T> {
+        private final Func1<List<E>, T> pageFactory;
+        private final int pageSize;
+        private final Func1<? super E, ?> version;
+        private final StashDb<? super String> db;
+        private final Class<T> type;
+        private final String key;
+        private final Stash<T> indexStash;
+
+        private PagedWorker(Builder<T, E> builder, StashDb<? super String> db, Class<T> type,
+                StashKey<? extends String> stashKey) {
+            this.pageFactory = builder.pageFactory;
+            this.pageSize = builder.pageSize;
+            this.version = builder.version;
+            this.db = db;
+            this.type = type;
+            this.key = stashKey.getKey();
+            if (key.indexOf(PAGE_SEPARATOR) >= 0) {
+                throw new IllegalArgumentException("paged stash keys must not contain NUL characters");
+            }
+            this.indexStash = db.getStash(type, stashKey);
+        }
+
+        @Nullable @Override public Entry<T> get() throws Exception {
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                Index index = readIndex();
+                if (index == null) {
+                    return null;
+                }
+                List<E> items = new ArrayList<E>(index.size);
+                boolean consistent = true;
+                for (int i = 0; consistent && i < index.pageCount(); i++) {
+                    T page = pageStash(i).getData().asCallable().call();
+                    consistent = page != null && fingerprint(page).equals(index.fingerprints[i]);
+                    if (consistent) {
+                        items.addAll(page);
+                    }
+                }
+                if (consistent) {
+                    return new Entry.Builder<T>()
+                            .setMetadata(index.metadata)
+                            .setData(pageFactory.call(items))
+                            .build();
+                } else if (index.equals(readIndex())) {
+                    // not a concurrent put, the page was evicted or overwritten; drop the index so the next put
+                    // writes every page again
+                    indexStash.remove().asCallable().call();
+                    return null;
+                }
+                // a concurrent put changed the pages, read its index
+            }
+            return null;
+        }
+
+        /** @return the page, or null if it is missing or doesn't match the index */
+        @Nullable private T readPage(Index index, int page) throws Exception {
+            T data = pageStash(page).getData().asCallable().call();
+            return (data == null || !fingerprint(data).equals(index.fingerprints[page])) ? null : data;
+        }
+
+        @Nullable @Override public T put(@NonNull Entry<T> entry) throws Exception {
+            final Metadata metadata = entry.getMetadata();
+            final T data = entry.getData();
+            final List<E> items = Util.nullSafe((List<E>) data);
+            final Index old = readIndex();
+            final boolean samePages = old != null && old.pageSize == pageSize;
+            final int pageCount = (items.size() + pageSize - 1) / pageSize;
+            final Metadata pageMetadata = new Metadata.Builder()
+                    .setLastUpdated(metadata.getLastUpdated())
+                    .build();
+            List<String> fingerprints = new ArrayList<String>(pageCount);
+            for (int i = 0; i < pageCount; i++) {
+                List<E> page = items.subList(i * pageSize, Math.min(items.size(), (i + 1) * pageSize));
+                String fingerprint = fingerprint(page);
+                fingerprints.add(fingerprint);
+                if (!samePages || i >= old.pageCount() || !fingerprint.equals(old.fingerprints[i])) {
+                    pageStash(i).put(pageMetadata, pageFactory.call(page)).asCallable().call();
+                }
+            }
+            if (old != null) {
+                for (int i = pageCount; i < old.pageCount(); i++) {
+                    pageStash(i).remove().asCallable().call();
+                }
+            }
+            // the index goes last, so it never refers to pages that haven't been written
+            List<String> indexData = new ArrayList<String>(metadata.getData());
+            indexData.add(Index.format(pageSize, items.size(), fingerprints));
+            Metadata indexMetadata = new Metadata.Builder()
+                    .setLastUpdated(metadata.getLastUpdated())
+                    .setExpiresAt(ExpiryPurger.getExpiresAt(metadata))
+                    .setData(indexData)
+                    .build();
+            indexStash.put(indexMetadata, pageFactory.call(new ArrayList<E>(0))).asCallable().call();
+            return data;
+        }
+
+        @Override public boolean remove() throws Exception {
+            Index index = readIndex();
+            if (index != null) {
+                for (int i = 0; i < index.pageCount(); i++) {
+                    pageStash(i).remove().asCallable().call();
+                }
+            }
+            return indexStash.remove().asCallable().call();
+        }
+
+        private Index readIndex() throws Exception {
+            Metadata metadata = indexStash.getMetadata().asCallable().call();
+            return (metadata == null) ? null : Index.parse(metadata);
+        }
+
+        private Stash<T> pageStash(int page) {
+            return db.getStash(type, new PageKey(pageKey(key, page)));
+        }
+
+        private String fingerprint(List<E> page) {
+            MessageDigest digest = sha1();
+            byte[] length = new byte[4];
+            for (E element : page) {
+                Object value = element;
+                if (element != null && version != null) {
+                    value = version.call(element);
+                } else if (element != null && !isValueType(element.getClass())) {
+                    throw new IllegalStateException(element.getClass().getName()
+                            + " doesn't override hashCode() and toString(), set a version on the PagedStash.Builder");
+                }
+                // length prefixed, so neighbouring values can't run into each other
+                byte[] bytes = (value == null) ? new byte[0] : String.valueOf(value).getBytes(UTF_8);
+                int size = (value == null) ? -1 : bytes.length;
+                length[0] = (byte) (size >>> 24);
+                length[1] = (byte) (size >>> 16);
+                length[2] = (byte) (size >>> 8);
+                length[3] = (byte) size;
+                digest.update(length);
+                digest.update(bytes);
+            }
+            return hex(digest.digest());
+        }
+    }
+
+    static String pageKey(String key, int page) {
+        return key + PAGE_SEPARATOR + page;
+    }
+
+    private static boolean isValueType(Class<?> type) {
+        Boolean valueType = VALUE_TYPES.get(type);
+        if (valueType == null) {
+            try {
+                valueType = type.getMethod("hashCode").getDeclaringClass() != Object.class
+                        && type.getMethod("toString").getDeclaringClass() != Object.class;
+            } catch (NoSuchMethodException e) {
+                valueType = false;
+            }
+            VALUE_TYPES.put(type, valueType);
+        }
+        return valueType;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /** The page index, kept as the last metadata string of the index entry. */
+    private static final class Index {
+        private final int pageSize;
+        private final int size;
+        private final String[] fingerprints;
+        private final Metadata metadata;
+
+        private Index(int pageSize, int size, String[] fingerprints, Metadata metadata) {
+            this.pageSize = pageSize;
+            this.size = size;
+            this.fingerprints = fingerprints;
+            this.metadata = metadata;
+        }
+
+        private int pageCount() {
+            return fingerprints.length;
+        }
+
+        /** Compares the page layout, whether the index still describes the same pages. */
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Index)) return false;
+            Index index = (Index) o;
+            return pageSize == index.pageSize
+                    && size == index.size
+                    && Arrays.equals(fingerprints, index.fingerprints);
+        }
+
+        @Override public int hashCode() {
+            return 31 * (31 * pageSize + size) + Arrays.hashCode(fingerprints);
+        }
+
+        private static String format(int pageSize, int size, List<String> fingerprints) {
+            StringBuilder sb = new StringBuilder(INDEX_PREFIX)
+                    .append(pageSize).append(':')
+                    .append(size).append(':');
+            for (int i = 0; i < fingerprints.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(fingerprints.get(i));
+            }
+            return sb.toString();
+        }
+
+        /** @return the index, or null if the entry was not written by a paged stash */
+        @Nullable private static Index parse(Metadata metadata) {
+            List<String> data = metadata.getData();
+            String last = data.isEmpty() ? null : data.get(data.size() - 1);
+            if (last == null || !last.startsWith(INDEX_PREFIX)) {
+                return null;
+            }
+            String[] parts = last.substring(INDEX_PREFIX.length()).split(":", 3);
+            if (parts.length != 3) {
+                return null;
+            }
+            String[] fingerprints = parts[2].isEmpty() ? new String[0] : parts[2].split(",");
+            Metadata userMetadata = new Metadata.Builder()
+                    .setLastUpdated(metadata.getLastUpdated())
+                    .setExpiresAt(ExpiryPurger.getExpiresAt(metadata))
+                    .setData(data.subList(0, data.size() - 1))
+                    .build();
+            try {
+                return new Index(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), fingerprints, userMetadata);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class PageKey implements StashKey<String> {
+        private final String key;
+
+        private PageKey(String key) {
+            this.key = key;
+        }
+
+        @Override public String getKey() {
+            return key;
+        }
+    }
+}
@@ -77,7 +77,7 @@ protected Stash(@NonNull final Worker<T> worker) {
         return Request.from(getInternal().map(new Func1<Entry<T>, Entry<T>>() {
             @Override public Entry<T> call(Entry<T> entry) {
                 if (entry != null) {
-                    // Fully read lazy entry, and return a copy
+                    // Fully read lazy entry, and return a copy unless it is already immutable
                     return Entry.Builder.copy(entry);
                 }
                 return null;
@@ -97,7 +97,7 @@ protected Stash(@NonNull final Worker<T> worker) {
         return getLazy(predicate).map(new Func1<LazyEntry<T>, Entry<T>>() {
             @Override public Entry<T> call(LazyEntry<T> entry) {
                 if (entry != null) {
-                    // Fully read lazy entry, and return a copy
+                    // Fully read lazy entry, and return a copy unless it is already immutable
                     return Entry.Builder.copy(entry);
                 }
                 return null;
@@ -130,6 +130,28 @@ protected Stash(@NonNull final Worker<T> worker) {
         return Request.from(observable);
     }
 
+    /**
+     * Emits the elements of a stored collection one by one, with backpressure, while it is still being read. Stashes
+     * that can't decode elements incrementally load the data first. The data must be an {@link Iterable}, see
+     * {@link #streamData(String, Class)} for a collection inside the data.
+     */
+    @NonNull public final <E> Request<E> streamData(@NonNull Class<E> elementType) {
+        return streamData(null, elementType);
+    }
+
+    /**
+     * Like {@link #streamData(Class)}, streaming the collection in the data's field named {@code field}, like the
+     * {@code appVersions} list in a response wrapper. The field is the Java field; JSON bodies find it by its
+     * {@code @SerializedName}, binary bodies by its {@code @Tag}.
+     */
+    @NonNull public final <E> Request<E> streamData(@Nullable final String field, @NonNull final Class<E> elementType) {
+        return Request.from(getLazy().asObservable().concatMap(new Func1<LazyEntry<T>, Observable<E>>() {
+            @Override public Observable<E> call(LazyEntry<T> entry) {
+                return (entry == null) ? Observable.<E>empty() : entry.streamData(field, elementType);
+            }
+        }));
+    }
+
     @NonNull public final Request<T> put(@NonNull T data) {
         return put(new Entry.Builder<T>()
                 .setData(data)
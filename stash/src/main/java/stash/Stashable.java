@@ -93,6 +93,7 @@ public Stashable<T> build() {
             private final Functions.Stash<T, ? super K> secondary;
             private final EntryPredicate<T> isExpired;
             private final Func1<T, List<String>> metadata;
+            private volatile Stash<T> stash;
 
             private StashableImpl(Builder<T, K> builder) {
                 this.type = builder.type;
@@ -104,10 +105,15 @@ private StashableImpl(Builder<T, K> builder) {
             }
 
             @Nullable @Override public Stash<T> getStash() {
-                Stash<T> stash = getStash(primary, type, stashKey);
-                if (secondary != null) {
-                    Stash<T> second = getStash(secondary, type, stashKey);
-                    return stash.combine(second);
+                // handles are stateless, so a racing thread building its own copy is harmless
+                Stash<T> stash = this.stash;
+                if (stash == null) {
+                    stash = getStash(primary, type, stashKey);
+                    if (secondary != null) {
+                        Stash<T> second = getStash(secondary, type, stashKey);
+                        stash = stash.combine(second);
+                    }
+                    this.stash = stash;
                 }
                 return stash;
             }
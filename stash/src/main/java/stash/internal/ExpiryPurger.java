@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import stash.Entry;
+import stash.ExpiringMetadata;
+import stash.Metadata;
+
+/**
+ * Tracks the absolute expiration time of in-memory entries in a {@link TimerWheel}, and purges them from a
+ * background scheduler once they die. The purge task only runs while there are pending timers.
+ */
+public final class ExpiryPurger<K> {
+    private static final long PURGE_INTERVAL_MILLIS = 1000;
+
+    private final Object lock = new Object();
+    private final Purger<K> purger;
+    private final Scheduler scheduler;
+    private TimerWheel<K> wheel;
+    private Subscription subscription;
+
+    public ExpiryPurger(@NonNull Purger<K> purger) {
+        this(purger, Schedulers.computation());
+    }
+
+    public ExpiryPurger(@NonNull Purger<K> purger, @NonNull Scheduler scheduler) {
+        this.purger = purger;
+        this.scheduler = scheduler;
+    }
+
+    public static long getExpiresAt(@NonNull Entry<?> entry) {
+        return getExpiresAt(entry.getMetadata());
+    }
+
+    /**
+     * Returns the expiration time of {@code metadata}, or {@link ExpiringMetadata#NO_EXPIRATION} if it doesn't carry
+     * one.
+     */
+    public static long getExpiresAt(@Nullable Metadata metadata) {
+        return (metadata instanceof ExpiringMetadata)
+                ? ((ExpiringMetadata) metadata).getExpiresAt()
+                : ExpiringMetadata.NO_EXPIRATION;
+    }
+
+    /**
+     * Returns true once {@code now} is past the expiration time of {@code entry}. Strict, like the max age
+     * predicates, so an entry is still live at exactly its expiration time.
+     */
+    public static boolean isExpired(@NonNull Entry<?> entry, long now) {
+        long expiresAt = getExpiresAt(entry);
+        return expiresAt != ExpiringMetadata.NO_EXPIRATION && expiresAt < now;
+    }
+
+    /**
+     * Schedules {@code key} according to the expiration time of {@code entry}, or cancels any pending timer if the
+     * entry never expires.
+     */
+    public void schedule(@NonNull K key, @NonNull Entry<?> entry) {
+        final long expiresAt = getExpiresAt(entry);
+        synchronized (lock) {
+            if (expiresAt == ExpiringMetadata.NO_EXPIRATION) {
+                cancelLocked(key);
+                return;
+            }
+            if (wheel == null) {
+                wheel = new TimerWheel<K>(System.currentTimeMillis());
+            }
+            wheel.schedule(key, expiresAt);
+            if (subscription == null) {
+                Scheduler.Worker worker = scheduler.createWorker();
+                subscription = worker;
+                worker.schedulePeriodically(new Action0() {
+                    @Override public void call() {
+                        purge(System.currentTimeMillis());
+                    }
+                }, PURGE_INTERVAL_MILLIS, PURGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public void cancel(@NonNull K key) {
+        synchronized (lock) {
+            cancelLocked(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            if (wheel != null) {
+                wheel = null;
+                if (subscription != null) {
+                    subscription.unsubscribe();
+                    subscription = null;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return wheel == null ? 0 : wheel.size();
+        }
+    }
+
+    /**
+     * Purges every entry that expired before {@code now}. Called periodically in the background, exposed so
+     * callers can force a purge, e.g. when trimming memory.
+     */
+    public void purge(long now) {
+        final List<K> expired;
+        synchronized (lock) {
+            if (wheel == null) {
+                return;
+            }
+            expired = wheel.advance(now);
+            stopIfEmpty();
+        }
+        for (K key : expired) {
+            try {
+                purger.purge(key, now);
+            } catch (Throwable e) {
+                StashLog.e(ExpiryPurger.class.getSimpleName(), "error purging expired key: " + key, e);
+            }
+        }
+    }
+
+    private void cancelLocked(K key) {
+        if (wheel != null && wheel.cancel(key)) {
+            stopIfEmpty();
+        }
+    }
+
+    private void stopIfEmpty() {
+        if (wheel.isEmpty() && subscription != null) {
+            subscription.unsubscribe();
+            subscription = null;
+        }
+    }
+
+    public interface Purger<K> {
+        /**
+         * Removes {@code key} if its entry is still expired at {@code now}; the entry may have been replaced since
+         * the timer was scheduled.
+         */
+        void purge(@NonNull K key, long now);
+    }
+}
@@ -25,19 +25,43 @@
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import stash.Entry;
 import stash.KeyStash;
 import stash.Stash;
 import stash.StashCollection;
 import stash.StashKey;
+import stash.stashdbs.CacheStats;
 import stash.stashdbs.MemDb;
 
-class MemDbImpl implements MemDb.Worker {
+class MemDbImpl implements MemDb.StatsWorker {
     public static final int DEFAULT_SIZE = 5;
 
     private final Map<Class<?>, LruCache<Object, ? extends Entry<?>>> cache
             = new HashMap<Class<?>, LruCache<Object, ? extends Entry<?>>>(4);
+    private final StatsCounter stats = new StatsCounter();
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, key));
+        }
+    };
+    private final ExpiryPurger<TypedKey> purger = new ExpiryPurger<TypedKey>(new ExpiryPurger.Purger<TypedKey>() {
+        @Override public void purge(@NonNull TypedKey typedKey, long now) {
+            StatsLruCache<?> cache = getCache(typedKey.getType());
+            if (cache != null) {
+                // puts hold the cache lock too, so nothing is put between the check and the remove
+                synchronized (cache) {
+                    Entry<?> entry = cache.peek(typedKey.getKey());
+                    if (entry != null && ExpiryPurger.isExpired(entry, now)) {
+                        cache.remove(typedKey.getKey());
+                    }
+                }
+            }
+        }
+    });
 
     private MemDbImpl() { }
 
@@ -50,7 +74,7 @@ static MemDb create() {
     }
 
     @NonNull @Override public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<?> stashKey) {
-        return Stash.create(new Worker<V>(type, stashKey.getKey()));
+        return handles.intern(type, stashKey.getKey(), stashFactory);
     }
 
     @NonNull @Override public Iterable<?> keys() {
@@ -65,9 +89,10 @@ static MemDb create() {
 
     @Override public boolean removeAll() {
         synchronized (cache) {
-            for (LruCache cache : this.cache.values()) {
-                cache.evictAll();
+            for (LruCache<Object, ? extends Entry<?>> cache : this.cache.values()) {
+                ((StatsLruCache<?>) cache).clear();
             }
+            purger.clear();
             return true;
         }
     }
@@ -75,59 +100,122 @@ static MemDb create() {
     @Override public boolean removeAll(@NonNull Collection<StashKey<?>> stashKeys) {
         synchronized (cache) {
             boolean removed = false;
-            for (LruCache<Object, ?> cache : this.cache.values()) {
+            for (Map.Entry<Class<?>, LruCache<Object, ? extends Entry<?>>> entry : this.cache.entrySet()) {
+                LruCache<Object, ?> cache = entry.getValue();
                 for (StashKey<?> stashKey : stashKeys) {
                     Object key = stashKey.getKey();
-                    removed |= cache.remove(key) != null;
+                    if (cache.remove(key) != null) {
+                        purger.cancel(new TypedKey(entry.getKey(), key));
+                        removed = true;
+                    }
                 }
             }
             return removed;
         }
     }
 
+    @NonNull @Override public Map<Class<?>, CacheStats> stats() {
+        synchronized (cache) {
+            Map<Class<?>, Integer> sizes = new HashMap<Class<?>, Integer>(cache.size());
+            for (Map.Entry<Class<?>, LruCache<Object, ? extends Entry<?>>> entry : cache.entrySet()) {
+                sizes.put(entry.getKey(), entry.getValue().size());
+            }
+            return stats.snapshot(sizes);
+        }
+    }
+
     @Override
     public <T> void registerMaxSize(@NonNull Class<T> type, int maxSize) {
-        final LruCache<Object, Entry<T>> old = getOrCreateCache(type, maxSize);
+        final StatsLruCache<T> old = getOrCreateCache(type, maxSize);
         if (old.maxSize() != maxSize) {
-            final LruCache<Object, Entry<T>> cache = new LruCache<Object, Entry<T>>(maxSize);
+            final StatsLruCache<T> cache = new StatsLruCache<T>(type, maxSize);
             final Map<Object, Entry<T>> snapshot = old.snapshot();
-            final int diff = old.maxSize() - maxSize;
+            final int diff = snapshot.size() - maxSize;
             int i = 0;
             synchronized (old) {
                 // snapshot is ordered from least recently used to most recently used
                 for (Map.Entry<Object, Entry<T>> entry : snapshot.entrySet()) {
                     if (i++ < diff) {
+                        stats.recordEviction(type);
                         continue;
                     }
-                    cache.put(entry.getKey(), entry.getValue());
+                    cache.putEntry(entry.getKey(), entry.getValue());
                 }
             }
 
             synchronized (this.cache) {
                 this.cache.put(type, cache);
             }
+            old.retire();
             old.evictAll();
         }
     }
 
     @SuppressWarnings("unchecked")
-    private <T> LruCache<Object, Entry<T>> getCache(Class<T> type) {
+    private <T> StatsLruCache<T> getCache(Class<T> type) {
         synchronized (cache) {
-            return (LruCache<Object, Entry<T>>) this.cache.get(type);
+            return (StatsLruCache<T>) this.cache.get(type);
         }
     }
 
-    private <T> LruCache<Object, Entry<T>> getOrCreateCache(Class<T> type, int maxSize) {
+    private <T> StatsLruCache<T> getOrCreateCache(Class<T> type, int maxSize) {
         synchronized (cache) {
-            LruCache<Object, Entry<T>> cache = getCache(type);
+            StatsLruCache<T> cache = getCache(type);
             if (cache == null) {
-                cache = new LruCache<Object, Entry<T>>(maxSize);
+                cache = new StatsLruCache<T>(type, maxSize);
                 this.cache.put(type, cache);
             }
             return cache;
         }
     }
 
+    /**
+     * Counts evictions, but not the ones caused by clearing or replacing the whole cache. Also mirrors its entries so
+     * they can be peeked without promoting them or walking a snapshot.
+     */
+    private class StatsLruCache<T> extends LruCache<Object, Entry<T>> {
+        private final Class<T> type;
+        private final ConcurrentMap<Object, Entry<T>> entries = new ConcurrentHashMap<Object, Entry<T>>();
+        private volatile boolean retired;
+
+        private StatsLruCache(Class<T> type, int maxSize) {
+            super(maxSize);
+            this.type = type;
+        }
+
+        private void retire() {
+            retired = true;
+        }
+
+        private void clear() {
+            for (Object key : snapshot().keySet()) {
+                remove(key);
+            }
+        }
+
+        /** Puts under the cache lock, so the purger never sees the mirror and the cache disagree. */
+        private void putEntry(Object key, Entry<T> entry) {
+            synchronized (this) {
+                put(key, entry);
+                entries.put(key, entry);
+            }
+        }
+
+        private Entry<T> peek(Object key) {
+            return entries.get(key);
+        }
+
+        @Override protected void entryRemoved(boolean evicted, Object key, Entry<T> oldValue, Entry<T> newValue) {
+            if (newValue == null) {
+                // runs outside the cache lock, only forget the entry if it wasn't replaced meanwhile
+                entries.remove(key, oldValue);
+            }
+            if (evicted && !retired) {
+                stats.recordEviction(type);
+            }
+        }
+    }
+
     private class CollectionWorker<V> implements StashCollection.Worker<Object, V> {
         private final Class<V> type;
 
@@ -136,7 +224,7 @@ public CollectionWorker(Class<V> type) {
         }
 
         @NonNull @Override public Stash<V> getStash(@NonNull StashKey<?> stashKey) {
-            return Stash.create(new Worker<V>(type, stashKey.getKey()));
+            return handles.intern(type, stashKey.getKey(), stashFactory);
         }
 
         @NonNull @Override public Iterable<?> keys() {
@@ -163,7 +251,7 @@ public CollectionWorker(Class<V> type) {
 
                         @Override public KeyStash<Object, V> next() {
                             Object next = keys.next();
-                            return KeyStash.create(new Worker<V>(type, next), next);
+                            return KeyStash.<Object, V>create(handles.intern(type, next, stashFactory), next);
                         }
 
                         @Override public void remove() {
@@ -175,9 +263,12 @@ public CollectionWorker(Class<V> type) {
         }
 
         @Override public boolean removeAll() {
-            LruCache<?, ?> cache = getCache();
+            StatsLruCache<?> cache = getCache();
             if (cache != null) {
-                cache.evictAll();
+                for (Object key : cache.snapshot().keySet()) {
+                    purger.cancel(new TypedKey(type, key));
+                }
+                cache.clear();
                 return true;
             }
             return false;
@@ -189,7 +280,10 @@ public CollectionWorker(Class<V> type) {
                 boolean removed = false;
                 for (StashKey<?> stashKey : stashKeys) {
                     Object key = stashKey.getKey();
-                    removed |= cache.remove(key) != null;
+                    if (cache.remove(key) != null) {
+                        purger.cancel(new TypedKey(type, key));
+                        removed = true;
+                    }
                 }
                 return removed;
             }
@@ -204,7 +298,7 @@ public CollectionWorker(Class<V> type) {
             return 0;
         }
 
-        private LruCache<Object, Entry<V>> getCache() {
+        private StatsLruCache<V> getCache() {
             return MemDbImpl.this.getCache(type);
         }
     }
@@ -220,20 +314,22 @@ private Worker(Class<T> type, Object key) {
 
         @Override public Entry<T> get() throws Exception {
             LruCache<Object, Entry<T>> cache = getCache(type);
-            if (cache != null) {
-                return cache.get(key);
-            }
-            return null;
+            Entry<T> entry = (cache == null) ? null : cache.get(key);
+            stats.recordGet(type, entry != null);
+            return entry;
         }
 
         @Override public T put(@NonNull Entry<T> entry) throws Exception {
-            LruCache<Object, Entry<T>> cache = getOrCreateCache(type, DEFAULT_SIZE);
-            cache.put(key, entry);
+            StatsLruCache<T> cache = getOrCreateCache(type, DEFAULT_SIZE);
+            cache.putEntry(key, entry);
+            stats.recordPut(type);
+            purger.schedule(new TypedKey(type, key), entry);
             return getData(cache);
         }
 
         @Override public boolean remove() throws Exception {
             LruCache<Object, Entry<T>> cache = getCache(type);
+            purger.cancel(new TypedKey(type, key));
             return cache != null && cache.remove(key) != null;
         }
 
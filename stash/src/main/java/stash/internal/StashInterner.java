@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import android.support.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import stash.Stash;
+
+/**
+ * Hands out one canonical {@link Stash} per (type, key), so hot paths reuse the handle and its worker wrappers
+ * instead of building new ones on every call. Handles are weakly held and dropped once nobody references them.
+ */
+public final class StashInterner {
+    private final ConcurrentMap<TypedKey, HandleRef> handles = new ConcurrentHashMap<TypedKey, HandleRef>(16);
+    private final ReferenceQueue<Stash<?>> queue = new ReferenceQueue<Stash<?>>();
+
+    public interface Factory {
+        @NonNull <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key);
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull public <T> Stash<T> intern(@NonNull Class<T> type, @NonNull Object key, @NonNull Factory factory) {
+        final TypedKey typedKey = new TypedKey(type, key);
+        HandleRef ref = handles.get(typedKey);
+        Stash<T> stash = (ref == null) ? null : (Stash<T>) ref.get();
+        if (stash != null) {
+            return stash;
+        }
+
+        drainQueue();
+        stash = factory.create(type, key);
+        final HandleRef created = new HandleRef(typedKey, stash, queue);
+        while (true) {
+            ref = handles.putIfAbsent(typedKey, created);
+            if (ref == null) {
+                return stash;
+            }
+            Stash<T> existing = (Stash<T>) ref.get();
+            if (existing != null) {
+                // lost the race, use the handle that got there first
+                return existing;
+            }
+            if (handles.replace(typedKey, ref, created)) {
+                return stash;
+            }
+        }
+    }
+
+    public int size() {
+        drainQueue();
+        return handles.size();
+    }
+
+    private void drainQueue() {
+        HandleRef ref;
+        while ((ref = (HandleRef) queue.poll()) != null) {
+            handles.remove(ref.typedKey, ref);
+        }
+    }
+
+    private static final class HandleRef extends WeakReference<Stash<?>> {
+        private final TypedKey typedKey;
+
+        private HandleRef(TypedKey typedKey, Stash<?> stash, ReferenceQueue<Stash<?>> queue) {
+            super(stash, queue);
+            this.typedKey = typedKey;
+        }
+    }
+}
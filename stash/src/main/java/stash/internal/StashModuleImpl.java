@@ -21,6 +21,8 @@
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 import sourcerer.ExtensionMethod;
@@ -36,6 +38,8 @@ public class StashModuleImpl {
 
     private final AtomicReference<StashSchedulersHook> schedulersHook = new AtomicReference<StashSchedulersHook>();
     private final AtomicReference<MemDbHook> memSourceHook = new AtomicReference<MemDbHook>();
+    // guarded by itself, cleared once the context is set
+    private final List<Runnable> initActions = new ArrayList<Runnable>();
     private volatile Context context;
 
     private StashModuleImpl() {}
@@ -45,16 +49,42 @@ private StashModuleImpl() {}
     }
 
     @ExtensionMethod(Kind.ReturnThis) @NonNull public StashModuleImpl init(@NonNull Context context) {
-        if (this.context == null) {
-            if (context instanceof Application) {
-                this.context = context;
-            } else if (context != null) {
-                this.context = context.getApplicationContext();
+        List<Runnable> actions = null;
+        synchronized (initActions) {
+            if (this.context == null) {
+                if (context instanceof Application) {
+                    this.context = context;
+                } else if (context != null) {
+                    this.context = context.getApplicationContext();
+                }
+                if (this.context != null) {
+                    actions = new ArrayList<Runnable>(initActions);
+                    initActions.clear();
+                }
+            }
+        }
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
             }
         }
         return this;
     }
 
+    /**
+     * Runs {@code action} once {@link #init(Context)} sets the context, or right away if it already did. Lets the
+     * extension modules start work at init.
+     */
+    void doOnInit(@NonNull Runnable action) {
+        synchronized (initActions) {
+            if (context == null) {
+                initActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
     @ExtensionMethod(Kind.Return) @Nullable public Context getContext() {
         return context;
     }
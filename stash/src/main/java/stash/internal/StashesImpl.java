@@ -16,28 +16,74 @@
 
 package stash.internal;
 
+import android.content.Context;
 import android.support.annotation.NonNull;
 
+import java.util.concurrent.TimeUnit;
+
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
 import sourcerer.ExtensionMethod;
 import sourcerer.ExtensionMethod.Kind;
 import stash.Stash;
 import stash.StashCollection;
 import stash.StashKey;
 import stash.annotations.Stashes;
+import stash.plugins.MemDbHook;
 import stash.stashdbs.MemDb;
+import stash.stashdbs.TinyLfuMemDb;
+import stash.stashdbs.WeightedMemDb;
 
 @Stashes
 public final class StashesImpl {
     private static final StashesImpl INSTANCE = new StashesImpl();
+    private static final int WEIGHT_MEMORY_DIVISOR = 8;
 
     private final MemDb memDb;
 
     private StashesImpl() {
-        MemDb mem = StashModuleImpl.getInstance().getMemDbHook().getMemDb();
+        MemDbHook hook = StashModuleImpl.getInstance().getMemDbHook();
+        MemDb mem = hook.getMemDb();
         if (mem == null) {
-            mem = MemDbImpl.create();
+            MemDb.Policy policy = hook.getPolicy();
+            if (policy == MemDb.Policy.TINY_LFU) {
+                mem = MemDb.create(new TinyLfuMemDb());
+            } else if (policy == MemDb.Policy.WEIGHTED) {
+                mem = MemDb.create(new WeightedMemDb.Builder(maxWeight(hook)).build());
+            } else {
+                mem = MemDbImpl.create();
+            }
         }
         this.memDb = mem;
+        scheduleStats(hook, mem);
+    }
+
+    private static long maxWeight(MemDbHook hook) {
+        long maxWeight = hook.getMaxWeight();
+        if (maxWeight > 0) {
+            return maxWeight;
+        }
+        Context context = StashModuleImpl.getInstance().getContext();
+        if (context == null) {
+            StashLog.w(StashesImpl.class.getSimpleName(), "Module context is null. Sizing memDb from the max heap");
+            return Runtime.getRuntime().maxMemory() / WEIGHT_MEMORY_DIVISOR;
+        }
+        return WeightedMemDb.maxWeightForMemoryClass(context, WEIGHT_MEMORY_DIVISOR);
+    }
+
+    private static void scheduleStats(final MemDbHook hook, final MemDb memDb) {
+        final long interval = hook.getStatsIntervalMillis();
+        if (interval > 0) {
+            Schedulers.computation().createWorker().schedulePeriodically(new Action0() {
+                @Override public void call() {
+                    try {
+                        hook.onStats(memDb.stats());
+                    } catch (Throwable e) {
+                        StashLog.e(StashesImpl.class.getSimpleName(), "error reporting memDb stats", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     @ExtensionMethod(Kind.Instance) @NonNull public static StashesImpl getInstance() {
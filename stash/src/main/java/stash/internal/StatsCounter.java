@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import stash.stashdbs.CacheStats;
+
+/**
+ * Records per-type {@link CacheStats} counters for MemDb workers. Counters are striped across cache lines by thread,
+ * so recording on the hot read path never takes a lock and rarely contends.
+ */
+public final class StatsCounter {
+    private final ConcurrentMap<Class<?>, Counters> counters = new ConcurrentHashMap<Class<?>, Counters>(8);
+
+    public void recordGet(@NonNull Class<?> type, boolean hit) {
+        Counters c = countersFor(type);
+        if (hit) {
+            c.hits.increment();
+        } else {
+            c.misses.increment();
+        }
+    }
+
+    public void recordPut(@NonNull Class<?> type) {
+        countersFor(type).puts.increment();
+    }
+
+    public void recordEviction(@NonNull Class<?> type) {
+        countersFor(type).evictions.increment();
+    }
+
+    public void recordEvictions(@NonNull Class<?> type, int count) {
+        if (count > 0) {
+            countersFor(type).evictions.add(count);
+        }
+    }
+
+    @NonNull public CacheStats snapshot(@NonNull Class<?> type, long size) {
+        Counters c = counters.get(type);
+        return c == null ? new CacheStats(0, 0, 0, 0, size) : c.snapshot(size);
+    }
+
+    /**
+     * Returns a snapshot for every type that has recorded anything or appears in {@code sizes}.
+     */
+    @NonNull public Map<Class<?>, CacheStats> snapshot(@NonNull Map<Class<?>, ? extends Number> sizes) {
+        Map<Class<?>, CacheStats> stats = new HashMap<Class<?>, CacheStats>(counters.size() + sizes.size());
+        for (Map.Entry<Class<?>, Counters> entry : counters.entrySet()) {
+            Number size = sizes.get(entry.getKey());
+            stats.put(entry.getKey(), entry.getValue().snapshot(size == null ? 0 : size.longValue()));
+        }
+        for (Map.Entry<Class<?>, ? extends Number> entry : sizes.entrySet()) {
+            if (!stats.containsKey(entry.getKey())) {
+                stats.put(entry.getKey(), new CacheStats(0, 0, 0, 0, entry.getValue().longValue()));
+            }
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private Counters countersFor(Class<?> type) {
+        Counters c = counters.get(type);
+        if (c == null) {
+            Counters created = new Counters();
+            c = counters.putIfAbsent(type, created);
+            if (c == null) {
+                c = created;
+            }
+        }
+        return c;
+    }
+
+    private static final class Counters {
+        private final Striped64 hits = new Striped64();
+        private final Striped64 misses = new Striped64();
+        private final Striped64 puts = new Striped64();
+        private final Striped64 evictions = new Striped64();
+
+        private CacheStats snapshot(long size) {
+            return new CacheStats(hits.sum(), misses.sum(), puts.sum(), evictions.sum(), size);
+        }
+    }
+
+    /**
+     * A minimal LongAdder: one cell per stripe, each padded to its own cache line, selected by the calling thread.
+     * Sums are not atomic snapshots, which is fine for statistics.
+     */
+    static final class Striped64 {
+        // 8 longs = 64 bytes between cells
+        private static final int PAD = 8;
+        private static final int STRIPES;
+
+        static {
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors()) {
+                stripes <<= 1;
+            }
+            STRIPES = stripes;
+        }
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long x) {
+            cells.getAndAdd(index(), x);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PAD);
+            }
+            return sum;
+        }
+
+        private static int index() {
+            long id = Thread.currentThread().getId();
+            int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+            return ((h ^ (h >>> 16)) & (STRIPES - 1)) * PAD;
+        }
+    }
+}
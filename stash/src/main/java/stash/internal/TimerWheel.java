@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timer wheel keyed by {@code K}. Scheduling and cancelling are O(1); {@link #advance(long)} only
+ * visits the buckets whose time span has passed, cascading timers from coarser wheels down into finer ones.
+ * <p>
+ * Not thread safe, callers must synchronize.
+ */
+public final class TimerWheel<K> {
+    // wheel resolutions: ~1s, ~1m, ~1h, ~1.5d (in millis, powers of two)
+    private static final int[] SHIFTS = {10, 16, 22, 27};
+    private static final int[] BUCKETS = {64, 64, 64, 32};
+
+    private final Node<K>[][] wheels;
+    private final Map<K, Node<K>> timers = new HashMap<K, Node<K>>();
+    private long time;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long now) {
+        this.time = now;
+        this.wheels = new Node[SHIFTS.length][];
+        for (int i = 0; i < SHIFTS.length; i++) {
+            wheels[i] = new Node[BUCKETS[i]];
+            for (int j = 0; j < BUCKETS[i]; j++) {
+                wheels[i][j] = Node.sentinel();
+            }
+        }
+    }
+
+    /**
+     * Schedules {@code key} to expire at the absolute time {@code expiresAt}, replacing any existing timer for the
+     * key.
+     */
+    public void schedule(K key, long expiresAt) {
+        Node<K> node = timers.get(key);
+        if (node == null) {
+            node = new Node<K>(key);
+            timers.put(key, node);
+        } else {
+            node.unlink();
+        }
+        node.expiresAt = expiresAt;
+        link(node);
+    }
+
+    public boolean cancel(K key) {
+        Node<K> node = timers.remove(key);
+        if (node != null) {
+            node.unlink();
+            return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return timers.size();
+    }
+
+    public boolean isEmpty() {
+        return timers.isEmpty();
+    }
+
+    /**
+     * Advances the wheel to {@code now} and returns the keys whose timers expired, in no particular order.
+     */
+    public List<K> advance(long now) {
+        List<K> expired = new ArrayList<K>();
+        long previous = time;
+        if (now <= previous) {
+            return expired;
+        }
+        time = now;
+        for (int i = 0; i < SHIFTS.length; i++) {
+            long previousTicks = previous >>> SHIFTS[i];
+            long currentTicks = now >>> SHIFTS[i];
+            if (currentTicks - previousTicks <= 0) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks, now, expired);
+        }
+        return expired;
+    }
+
+    private void expire(int index, long previousTicks, long currentTicks, long now, List<K> expired) {
+        Node<K>[] wheel = wheels[index];
+        int mask = wheel.length - 1;
+        long delta = currentTicks - previousTicks;
+        int count = (delta >= wheel.length) ? wheel.length : (int) delta + 1;
+        int start = (int) (previousTicks & mask);
+        for (int i = 0; i < count; i++) {
+            Node<K> sentinel = wheel[(start + i) & mask];
+            Node<K> node = sentinel.next;
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                Node<K> next = node.next;
+                node.prev = null;
+                node.next = null;
+                // strict, see ExpiryPurger.isExpired()
+                if (node.expiresAt < now) {
+                    timers.remove(node.key);
+                    expired.add(node.key);
+                } else {
+                    // not due yet, cascade into a finer wheel
+                    link(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private void link(Node<K> node) {
+        long duration = node.expiresAt - time;
+        for (int i = 1; i < SHIFTS.length; i++) {
+            if (duration < (1L << SHIFTS[i])) {
+                add(i - 1, node);
+                return;
+            }
+        }
+        add(SHIFTS.length - 1, node);
+    }
+
+    private void add(int index, Node<K> node) {
+        Node<K>[] wheel = wheels[index];
+        // clamp far away timers into the coarsest wheel, they will be rescheduled when visited
+        long expiresAt = Math.max(node.expiresAt, time);
+        long span = (long) wheel.length << SHIFTS[index];
+        if (expiresAt - time >= span) {
+            expiresAt = time + span - 1;
+        }
+        Node<K> sentinel = wheel[(int) ((expiresAt >>> SHIFTS[index]) & (wheel.length - 1))];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static final class Node<K> {
+        private final K key;
+        private long expiresAt;
+        private Node<K> prev;
+        private Node<K> next;
+
+        private Node(K key) {
+            this.key = key;
+        }
+
+        private static <K> Node<K> sentinel() {
+            Node<K> sentinel = new Node<K>(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        private void unlink() {
+            if (next != null) {
+                prev.next = next;
+                next.prev = prev;
+                prev = null;
+                next = null;
+            }
+        }
+    }
+}
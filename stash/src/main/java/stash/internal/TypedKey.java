@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A stash key qualified by the type stored under it, since the same key may be stashed for several types.
+ */
+public final class TypedKey {
+    private final Class<?> type;
+    private final Object key;
+
+    public TypedKey(@NonNull Class<?> type, @NonNull Object key) {
+        this.type = type;
+        this.key = key;
+    }
+
+    @NonNull public Class<?> getType() {
+        return type;
+    }
+
+    @NonNull public Object getKey() {
+        return key;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TypedKey)) return false;
+        TypedKey typedKey = (TypedKey) o;
+        return type.equals(typedKey.type) && key.equals(typedKey.key);
+    }
+
+    @Override public int hashCode() {
+        return 31 * type.hashCode() + key.hashCode();
+    }
+
+    @Override public String toString() {
+        return type.getName() + "." + key;
+    }
+}
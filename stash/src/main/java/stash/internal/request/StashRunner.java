@@ -22,6 +22,7 @@
 import rx.Observable;
 import rx.functions.Func1;
 import stash.Entry;
+import stash.ExpiringMetadata;
 import stash.LazyEntry;
 import stash.Metadata;
 import stash.Progress;
@@ -31,6 +32,7 @@
 import stash.internal.StashLog;
 import stash.internal.Util;
 import stash.predicates.EntryPredicate;
+import stash.predicates.ExpiringPredicate;
 
 class StashRunner<T> {
     private static final String TAG = StashRunner.class.getSimpleName();
@@ -127,8 +129,10 @@ SourceProgressProcessor.ConcatFunction<T> saveFunctionWithProgress() {
                     Progress<T> saving = Progress.savingToStash();
                     Observable<Progress<T>> observable = Observable.just(progress, saving);
                     final T t = progress.getData();
+                    final long now = System.currentTimeMillis();
                     Entry<T> entry = new Entry.Builder<T>()
-                            .setMetadata(stashable.getMetadataToSave(t))
+                            .setMetadata(now, stashable.getMetadataToSave(t))
+                            .setExpiresAt(getExpiresAt(now))
                             .setData(t)
                             .build();
                     Observable<Progress<T>> save = stash.put(entry)
@@ -150,6 +154,14 @@ SourceProgressProcessor.ConcatFunction<T> saveFunctionWithProgress() {
         };
     }
 
+    private long getExpiresAt(long lastUpdated) {
+        EntryPredicate<T> expiredPredicate = stashable.isExpired();
+        if (expiredPredicate instanceof ExpiringPredicate) {
+            return ((ExpiringPredicate<T>) expiredPredicate).getExpiresAt(lastUpdated);
+        }
+        return ExpiringMetadata.NO_EXPIRATION;
+    }
+
     private Observable<LazyEntry<T>> get() {
         return stash.getLazy().asObservable().onErrorReturn(new Func1<Throwable, LazyEntry<T>>() {
             @Override public LazyEntry<T> call(Throwable throwable) {
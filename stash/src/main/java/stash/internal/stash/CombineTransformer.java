@@ -68,7 +68,7 @@ public Observable<? extends Entry<T>> call(Entry<T> entry) {
                                 return Observable.just(null);
                             }
 
-                            // Save concrete entry to primary stash and return result
+                            // Save concrete entry to primary stash and return result (immutable entries are shared)
                             final Entry<T> concrete = Entry.Builder.copy(entry);
                             return primary.putResult(concrete).map(new Func1<Result<T>, Entry<T>>() {
                                 @Override public Entry<T> call(Result<T> tResult) {
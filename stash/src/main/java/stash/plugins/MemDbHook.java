@@ -16,6 +16,11 @@
 
 package stash.plugins;
 
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+
+import stash.stashdbs.CacheStats;
 import stash.stashdbs.MemDb;
 
 public class MemDbHook {
@@ -27,6 +32,34 @@ public MemDb getMemDb() {
         return null;
     }
 
+    /**
+     * Eviction policy of the default MemDb, only used if {@link #getMemDb()} returns null.
+     */
+    public MemDb.Policy getPolicy() {
+        return MemDb.Policy.LRU;
+    }
+
+    /**
+     * Weight budget of the default MemDb in estimated bytes, only used with {@link MemDb.Policy#WEIGHTED}. Zero, the
+     * default, uses an eighth of the application's memory class.
+     */
+    public long getMaxWeight() {
+        return 0;
+    }
+
+    /**
+     * Interval in milliseconds at which {@link #onStats(Map)} receives a snapshot of {@link MemDb#stats()}. Zero,
+     * the default, disables the snapshots.
+     */
+    public long getStatsIntervalMillis() {
+        return 0;
+    }
+
+    /**
+     * Called on a background scheduler every {@link #getStatsIntervalMillis()} milliseconds.
+     */
+    public void onStats(@NonNull Map<Class<?>, CacheStats> stats) {}
+
     public static MemDbHook getDefaultInstance() {
         return DEFAULT_INSTANCE;
     }
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.predicates;
+
+/**
+ * An {@link EntryPredicate} that can tell up front when an entry written at a given time expires, so stashes can
+ * purge it proactively instead of waiting for the next read.
+ */
+public interface ExpiringPredicate<T> extends EntryPredicate<T> {
+    /**
+     * @return absolute expiration time in milliseconds for an entry last updated at {@code lastUpdated}
+     */
+    long getExpiresAt(long lastUpdated);
+}
@@ -20,7 +20,7 @@
 
 import stash.Metadata;
 
-/* package */ final class LastUpdatedPredicate<T> extends MetadataPredicate<T> {
+/* package */ final class LastUpdatedPredicate<T> extends MetadataPredicate<T> implements ExpiringPredicate<T> {
     private final long maxAgeMillis;
 
     /* package */ LastUpdatedPredicate(long maxAgeMillis) {
@@ -30,4 +30,8 @@
     @Override public final boolean isExpired(@NonNull Metadata metadata) {
         return System.currentTimeMillis() - metadata.getLastUpdated() > maxAgeMillis;
     }
+
+    @Override public long getExpiresAt(long lastUpdated) {
+        return lastUpdated + maxAgeMillis;
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.support.annotation.NonNull;
+
+/**
+ * An immutable snapshot of the counters a {@link MemDb} keeps for a single type, see {@link MemDb#stats()}.
+ */
+public final class CacheStats {
+    public static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long putCount;
+    private final long evictionCount;
+    private final long estimatedSize;
+
+    public CacheStats(long hitCount, long missCount, long putCount, long evictionCount, long estimatedSize) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.evictionCount = evictionCount;
+        this.estimatedSize = estimatedSize;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public long putCount() {
+        return putCount;
+    }
+
+    /**
+     * Number of entries dropped to make room for others. Explicit removals and expirations aren't counted.
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Number of entries held when the snapshot was taken. Engines without a global lock count each segment
+     * separately, so the value may be slightly off under concurrent writes.
+     */
+    public long estimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Returns the ratio of hits to lookups, or {@code 1.0} if there were no lookups.
+     */
+    public double hitRate() {
+        long requests = requestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public double missRate() {
+        long requests = requestCount();
+        return requests == 0 ? 0.0 : (double) missCount / requests;
+    }
+
+    @NonNull public CacheStats plus(@NonNull CacheStats other) {
+        return new CacheStats(
+                hitCount + other.hitCount,
+                missCount + other.missCount,
+                putCount + other.putCount,
+                evictionCount + other.evictionCount,
+                estimatedSize + other.estimatedSize);
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CacheStats)) return false;
+        CacheStats that = (CacheStats) o;
+        return hitCount == that.hitCount
+                && missCount == that.missCount
+                && putCount == that.putCount
+                && evictionCount == that.evictionCount
+                && estimatedSize == that.estimatedSize;
+    }
+
+    @Override public int hashCode() {
+        int result = (int) (hitCount ^ (hitCount >>> 32));
+        result = 31 * result + (int) (missCount ^ (missCount >>> 32));
+        result = 31 * result + (int) (putCount ^ (putCount >>> 32));
+        result = 31 * result + (int) (evictionCount ^ (evictionCount >>> 32));
+        result = 31 * result + (int) (estimatedSize ^ (estimatedSize >>> 32));
+        return result;
+    }
+
+    @Override public String toString() {
+        return "CacheStats{"
+                + "hitCount=" + hitCount
+                + ", missCount=" + missCount
+                + ", putCount=" + putCount
+                + ", evictionCount=" + evictionCount
+                + ", estimatedSize=" + estimatedSize
+                + '}';
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import stash.Entry;
+import stash.KeyStash;
+import stash.Stash;
+import stash.StashCollection;
+import stash.StashKey;
+import stash.internal.ExpiryPurger;
+import stash.internal.StashInterner;
+import stash.internal.StatsCounter;
+import stash.internal.TypedKey;
+
+/**
+ * A {@link MemDb.Worker} backed by a lock-striped LRU per type. Each type's capacity is split across a power of two
+ * number of segments, each with its own monitor, so reads and writes to different types, or to keys hashing to
+ * different segments, never contend. Recency is tracked per segment, which approximates a global LRU. Types with a
+ * capacity below {@link #MIN_SEGMENT_SIZE} per segment are not striped, so small caches keep an exact LRU.
+ * <p>
+ * When {@link #registerMaxSize(Class, int)} changes the number of segments, each old segment forwards to the new
+ * table once its entries have been moved, so writes racing the resize are never lost.
+ */
+public final class ConcurrentMemDb implements MemDb.StatsWorker {
+    public static final int DEFAULT_SIZE = 5;
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+    public static final int MIN_SEGMENT_SIZE = 16;
+
+    private final ConcurrentMap<Class<?>, TypeCache> caches = new ConcurrentHashMap<Class<?>, TypeCache>(8);
+    private final ExpiryPurger<TypedKey> purger = new ExpiryPurger<TypedKey>(new ExpiryPurger.Purger<TypedKey>() {
+        @Override public void purge(@NonNull TypedKey typedKey, long now) {
+            TypeCache cache = caches.get(typedKey.getType());
+            if (cache != null) {
+                cache.removeIfExpired(typedKey.getKey(), now);
+            }
+        }
+    });
+    private final StatsCounter stats = new StatsCounter();
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, key));
+        }
+    };
+    private final int concurrencyLevel;
+
+    public ConcurrentMemDb() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    public ConcurrentMemDb(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be positive");
+        }
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    @Override public synchronized <T> void registerMaxSize(@NonNull Class<T> type, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        TypeCache old = caches.get(type);
+        if (old == null) {
+            old = caches.putIfAbsent(type, new TypeCache(maxSize, concurrencyLevel));
+            if (old == null) {
+                return;
+            }
+        }
+        if (old.segments.length == segmentCount(maxSize, concurrencyLevel)) {
+            stats.recordEvictions(type, old.setMaxSize(maxSize));
+        } else {
+            // segment count changes with the capacity; move into a new table, old segments forward to it
+            TypeCache cache = new TypeCache(maxSize, concurrencyLevel);
+            stats.recordEvictions(type, old.moveTo(cache));
+            caches.put(type, cache);
+        }
+    }
+
+    @NonNull @Override public Map<Class<?>, CacheStats> stats() {
+        Map<Class<?>, Integer> sizes = new HashMap<Class<?>, Integer>(caches.size());
+        for (Map.Entry<Class<?>, TypeCache> entry : caches.entrySet()) {
+            sizes.put(entry.getKey(), entry.getValue().size());
+        }
+        return stats.snapshot(sizes);
+    }
+
+    @NonNull @Override public <V> StashCollection<Object, V> getCollection(@NonNull Class<V> type) {
+        return StashCollection.create(new CollectionWorker<V>(type));
+    }
+
+    @NonNull @Override public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<?> stashKey) {
+        return handles.intern(type, stashKey.getKey(), stashFactory);
+    }
+
+    @NonNull @Override public Iterable<?> keys() {
+        Collection<Object> keys = new HashSet<Object>();
+        for (TypeCache cache : caches.values()) {
+            keys.addAll(cache.keys());
+        }
+        return keys;
+    }
+
+    @Override public boolean removeAll() {
+        for (TypeCache cache : caches.values()) {
+            cache.clear();
+        }
+        purger.clear();
+        return true;
+    }
+
+    @Override public boolean removeAll(@NonNull Collection<StashKey<?>> stashKeys) {
+        boolean removed = false;
+        for (Map.Entry<Class<?>, TypeCache> entry : caches.entrySet()) {
+            TypeCache cache = entry.getValue();
+            for (StashKey<?> stashKey : stashKeys) {
+                Object key = stashKey.getKey();
+                if (cache.remove(key) != null) {
+                    purger.cancel(new TypedKey(entry.getKey(), key));
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private TypeCache getOrCreateCache(Class<?> type) {
+        TypeCache cache = caches.get(type);
+        if (cache == null) {
+            TypeCache created = new TypeCache(DEFAULT_SIZE, concurrencyLevel);
+            cache = caches.putIfAbsent(type, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    private static int segmentCount(int maxSize, int concurrencyLevel) {
+        int count = 1;
+        while (count << 1 <= Math.min(maxSize / MIN_SEGMENT_SIZE, concurrencyLevel)) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    private static int spread(int h) {
+        // same supplemental hash as java.util.HashMap, so low bits select segments evenly
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static final class TypeCache {
+        private final Segment[] segments;
+        private final int mask;
+
+        private TypeCache(int maxSize, int concurrencyLevel) {
+            int count = segmentCount(maxSize, concurrencyLevel);
+            this.segments = new Segment[count];
+            this.mask = count - 1;
+            for (int i = 0; i < count; i++) {
+                segments[i] = new Segment(capacity(maxSize, i));
+            }
+        }
+
+        private int capacity(int maxSize, int index) {
+            int length = segments.length;
+            return maxSize / length + (index < maxSize % length ? 1 : 0);
+        }
+
+        private Segment segmentFor(Object key) {
+            return segments[spread(key.hashCode()) & mask];
+        }
+
+        private Entry<?> get(Object key) {
+            return segmentFor(key).get(key);
+        }
+
+        /** @return the number of entries evicted to make room */
+        private int put(Object key, Entry<?> entry) {
+            return segmentFor(key).put(key, entry);
+        }
+
+        private Entry<?> remove(Object key) {
+            return segmentFor(key).remove(key);
+        }
+
+        private void removeIfExpired(Object key, long now) {
+            segmentFor(key).removeIfExpired(key, now);
+        }
+
+        private int setMaxSize(int maxSize) {
+            int evicted = 0;
+            for (int i = 0; i < segments.length; i++) {
+                evicted += segments[i].setMaxSize(capacity(maxSize, i));
+            }
+            return evicted;
+        }
+
+        /** @return the number of entries evicted from {@code cache} while moving */
+        private int moveTo(TypeCache cache) {
+            int evicted = 0;
+            for (Segment segment : segments) {
+                evicted += segment.moveTo(cache);
+            }
+            return evicted;
+        }
+
+        private List<Object> keys() {
+            List<Object> keys = new ArrayList<Object>();
+            for (Segment segment : segments) {
+                keys.addAll(segment.snapshot().keySet());
+            }
+            return keys;
+        }
+
+        private int size() {
+            int size = 0;
+            for (Segment segment : segments) {
+                size += segment.size();
+            }
+            return size;
+        }
+
+        private void clear() {
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<Object, Entry<?>> map = new LinkedHashMap<Object, Entry<?>>(4, 0.75f, true);
+        // mirrors map, so the purger can look entries up without promoting them
+        private final Map<Object, Entry<?>> index = new HashMap<Object, Entry<?>>(4);
+        private int maxSize;
+        // set once the entries moved to a resized table, every later operation goes there instead
+        private TypeCache forward;
+
+        private Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private Entry<?> get(Object key) {
+            TypeCache forward;
+            synchronized (this) {
+                if ((forward = this.forward) == null) {
+                    return map.get(key);
+                }
+            }
+            return forward.get(key);
+        }
+
+        private int put(Object key, Entry<?> entry) {
+            TypeCache forward;
+            synchronized (this) {
+                if ((forward = this.forward) == null) {
+                    map.put(key, entry);
+                    index.put(key, entry);
+                    return trim();
+                }
+            }
+            return forward.put(key, entry);
+        }
+
+        private Entry<?> remove(Object key) {
+            TypeCache forward;
+            synchronized (this) {
+                if ((forward = this.forward) == null) {
+                    index.remove(key);
+                    return map.remove(key);
+                }
+            }
+            return forward.remove(key);
+        }
+
+        private void removeIfExpired(Object key, long now) {
+            TypeCache forward;
+            synchronized (this) {
+                if ((forward = this.forward) == null) {
+                    Entry<?> entry = index.get(key);
+                    if (entry != null && ExpiryPurger.isExpired(entry, now)) {
+                        map.remove(key);
+                        index.remove(key);
+                    }
+                    return;
+                }
+            }
+            forward.removeIfExpired(key, now);
+        }
+
+        private synchronized int setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return trim();
+        }
+
+        /**
+         * Moves the entries to {@code cache} and forwards to it from then on. The move holds this segment's monitor,
+         * so no operation can slip in between the copy and the switch.
+         */
+        private synchronized int moveTo(TypeCache cache) {
+            int evicted = 0;
+            // iteration order is from least recently used to most recently used
+            for (Map.Entry<Object, Entry<?>> entry : map.entrySet()) {
+                evicted += cache.put(entry.getKey(), entry.getValue());
+            }
+            map.clear();
+            index.clear();
+            forward = cache;
+            return evicted;
+        }
+
+        private synchronized Map<Object, Entry<?>> snapshot() {
+            return new LinkedHashMap<Object, Entry<?>>(map);
+        }
+
+        private synchronized int size() {
+            return map.size();
+        }
+
+        private void clear() {
+            TypeCache forward;
+            synchronized (this) {
+                if ((forward = this.forward) == null) {
+                    map.clear();
+                    index.clear();
+                    return;
+                }
+            }
+            forward.clear();
+        }
+
+        private int trim() {
+            int evicted = 0;
+            Iterator<Object> it = map.keySet().iterator();
+            while (map.size() > maxSize && it.hasNext()) {
+                index.remove(it.next());
+                it.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+    }
+
+    private final class CollectionWorker<V> implements StashCollection.Worker<Object, V> {
+        private final Class<V> type;
+
+        private CollectionWorker(Class<V> type) {
+            this.type = type;
+        }
+
+        @NonNull @Override public Stash<V> getStash(@NonNull StashKey<?> stashKey) {
+            return handles.intern(type, stashKey.getKey(), stashFactory);
+        }
+
+        @NonNull @Override public Iterable<?> keys() {
+            TypeCache cache = caches.get(type);
+            return cache == null ? Collections.emptySet() : cache.keys();
+        }
+
+        @NonNull @Override public Iterable<KeyStash<Object, V>> getAll() {
+            final List<KeyStash<Object, V>> stashes = new ArrayList<KeyStash<Object, V>>();
+            for (Object key : keys()) {
+                stashes.add(KeyStash.<Object, V>create(handles.intern(type, key, stashFactory), key));
+            }
+            return stashes;
+        }
+
+        @Override public boolean removeAll() {
+            TypeCache cache = caches.get(type);
+            if (cache != null) {
+                for (Object key : cache.keys()) {
+                    purger.cancel(new TypedKey(type, key));
+                }
+                cache.clear();
+                return true;
+            }
+            return false;
+        }
+
+        @Override public boolean removeAll(Collection<StashKey<?>> stashKeys) {
+            TypeCache cache = caches.get(type);
+            boolean removed = false;
+            if (cache != null) {
+                for (StashKey<?> stashKey : stashKeys) {
+                    Object key = stashKey.getKey();
+                    if (cache.remove(key) != null) {
+                        purger.cancel(new TypedKey(type, key));
+                        removed = true;
+                    }
+                }
+            }
+            return removed;
+        }
+
+        @Override public int size() {
+            TypeCache cache = caches.get(type);
+            return cache == null ? 0 : cache.size();
+        }
+    }
+
+    private final class Worker<T> implements Stash.Worker<T> {
+        private final Class<T> type;
+        private final Object key;
+
+        private Worker(Class<T> type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public Entry<T> get() throws Exception {
+            TypeCache cache = caches.get(type);
+            Entry<T> entry = (cache == null) ? null : (Entry<T>) cache.get(key);
+            stats.recordGet(type, entry != null);
+            return entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public T put(@NonNull Entry<T> entry) throws Exception {
+            TypeCache cache = getOrCreateCache(type);
+            stats.recordEvictions(type, cache.put(key, entry));
+            stats.recordPut(type);
+            purger.schedule(new TypedKey(type, key), entry);
+            Entry<T> stored = (Entry<T>) cache.get(key);
+            return stored == null ? null : stored.getData();
+        }
+
+        @Override public boolean remove() throws Exception {
+            purger.cancel(new TypedKey(type, key));
+            TypeCache cache = caches.get(type);
+            return cache != null && cache.remove(key) != null;
+        }
+    }
+}
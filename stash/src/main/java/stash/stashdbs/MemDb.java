@@ -19,7 +19,10 @@
 import android.support.annotation.NonNull;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
+import stash.Entry;
 import stash.Request;
 import stash.Stash;
 import stash.StashCollection;
@@ -34,10 +37,57 @@ public static MemDb create(@NonNull final Worker worker) {
 
     @NonNull public abstract <T> MemDb registerMaxSize(@NonNull Class<T> type, int maxSize);
 
+    /**
+     * Sets how entries of {@code type} are weighed, for workers bounded by weight, see {@link WeightedWorker}. The
+     * other workers ignore it.
+     */
+    @NonNull public <T> MemDb registerWeigher(@NonNull Class<T> type, @NonNull Weigher<? super T> weigher) {
+        return this;
+    }
+
+    /**
+     * Returns a snapshot of the hit, miss, put and eviction counters of every type seen so far, see
+     * {@link stash.plugins.MemDbHook#onStats(Map)} to receive them periodically.
+     */
+    @NonNull public abstract Map<Class<?>, CacheStats> stats();
+
+    /**
+     * Eviction policy for the default MemDb, see {@link stash.plugins.MemDbHook#getPolicy()}.
+     */
+    public enum Policy {
+        LRU,
+        TINY_LFU,
+        /** Bounded by estimated bytes, see {@link WeightedMemDb} and {@link stash.plugins.MemDbHook#getMaxWeight()}. */
+        WEIGHTED
+    }
+
     public interface Worker extends StashDb.Worker<Object> {
         <T> void registerMaxSize(@NonNull Class<T> type, int maxSize);
     }
 
+    /**
+     * A {@link Worker} that counts hits, misses, puts and evictions per type. {@link MemDb#stats()} is empty for
+     * workers that don't.
+     */
+    public interface StatsWorker extends Worker {
+        @NonNull Map<Class<?>, CacheStats> stats();
+    }
+
+    /**
+     * A {@link Worker} bounded by the weight of its entries rather than by their count.
+     */
+    public interface WeightedWorker extends Worker {
+        <T> void registerWeigher(@NonNull Class<T> type, @NonNull Weigher<? super T> weigher);
+    }
+
+    /**
+     * Estimates the retained size of an entry, in bytes, for workers that bound memory by weight rather than by
+     * entry count.
+     */
+    public interface Weigher<T> {
+        int weigh(@NonNull Object key, @NonNull Entry<T> entry);
+    }
+
     private static class Impl extends MemDb {
         private final Worker worker;
         private final StashDb<Object> impl;
@@ -52,6 +102,21 @@ private Impl(Worker worker) {
             return this;
         }
 
+        @NonNull @Override
+        public <T> MemDb registerWeigher(@NonNull Class<T> type, @NonNull Weigher<? super T> weigher) {
+            if (worker instanceof WeightedWorker) {
+                ((WeightedWorker) worker).registerWeigher(type, weigher);
+            }
+            return this;
+        }
+
+        @NonNull @Override public Map<Class<?>, CacheStats> stats() {
+            if (worker instanceof StatsWorker) {
+                return ((StatsWorker) worker).stats();
+            }
+            return Collections.emptyMap();
+        }
+
         @NonNull @Override public <V> StashCollection<Object, V> getStashCollection(@NonNull Class<V> type) {
             return impl.getStashCollection(type);
         }
@@ -0,0 +1,539 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import stash.Entry;
+import stash.KeyStash;
+import stash.Stash;
+import stash.StashCollection;
+import stash.StashKey;
+import stash.internal.ExpiryPurger;
+import stash.internal.StashInterner;
+import stash.internal.StatsCounter;
+import stash.internal.TypedKey;
+
+/**
+ * A {@link MemDb.Worker} using the W-TinyLFU policy per type: new entries land in a small LRU window, and only enter
+ * the segmented main space (probation and protected) when a count-min sketch says they are used more often than the
+ * entry they would displace. One-off scans therefore can't flush the frequently read hot set.
+ */
+public final class TinyLfuMemDb implements MemDb.StatsWorker {
+    public static final int DEFAULT_SIZE = 5;
+
+    private final ConcurrentMap<Class<?>, TypeCache> caches = new ConcurrentHashMap<Class<?>, TypeCache>(8);
+    private final ExpiryPurger<TypedKey> purger = new ExpiryPurger<TypedKey>(new ExpiryPurger.Purger<TypedKey>() {
+        @Override public void purge(@NonNull TypedKey typedKey, long now) {
+            TypeCache cache = caches.get(typedKey.getType());
+            if (cache != null) {
+                cache.removeIfExpired(typedKey.getKey(), now);
+            }
+        }
+    });
+    private final StatsCounter stats = new StatsCounter();
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, key));
+        }
+    };
+
+    public TinyLfuMemDb() {}
+
+    @Override public <T> void registerMaxSize(@NonNull Class<T> type, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        TypeCache cache = caches.get(type);
+        if (cache == null) {
+            cache = caches.putIfAbsent(type, new TypeCache(type, maxSize));
+        }
+        if (cache != null) {
+            cache.setMaxSize(maxSize);
+        }
+    }
+
+    public long hitCount(@NonNull Class<?> type) {
+        return stats.snapshot(type, 0).hitCount();
+    }
+
+    public long missCount(@NonNull Class<?> type) {
+        return stats.snapshot(type, 0).missCount();
+    }
+
+    /**
+     * Returns the ratio of hits to lookups for {@code type}, or {@code 1.0} if there were no lookups.
+     */
+    public double hitRate(@NonNull Class<?> type) {
+        return stats.snapshot(type, 0).hitRate();
+    }
+
+    @NonNull @Override public Map<Class<?>, CacheStats> stats() {
+        Map<Class<?>, Integer> sizes = new HashMap<Class<?>, Integer>(caches.size());
+        for (Map.Entry<Class<?>, TypeCache> entry : caches.entrySet()) {
+            sizes.put(entry.getKey(), entry.getValue().size());
+        }
+        return stats.snapshot(sizes);
+    }
+
+    @NonNull @Override public <V> StashCollection<Object, V> getCollection(@NonNull Class<V> type) {
+        return StashCollection.create(new CollectionWorker<V>(type));
+    }
+
+    @NonNull @Override public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<?> stashKey) {
+        return handles.intern(type, stashKey.getKey(), stashFactory);
+    }
+
+    @NonNull @Override public Iterable<?> keys() {
+        Collection<Object> keys = new HashSet<Object>();
+        for (TypeCache cache : caches.values()) {
+            keys.addAll(cache.keys());
+        }
+        return keys;
+    }
+
+    @Override public boolean removeAll() {
+        for (TypeCache cache : caches.values()) {
+            cache.clear();
+        }
+        purger.clear();
+        return true;
+    }
+
+    @Override public boolean removeAll(@NonNull Collection<StashKey<?>> stashKeys) {
+        boolean removed = false;
+        for (Map.Entry<Class<?>, TypeCache> entry : caches.entrySet()) {
+            TypeCache cache = entry.getValue();
+            for (StashKey<?> stashKey : stashKeys) {
+                Object key = stashKey.getKey();
+                if (cache.remove(key) != null) {
+                    purger.cancel(new TypedKey(entry.getKey(), key));
+                    removed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private TypeCache getOrCreateCache(Class<?> type) {
+        TypeCache cache = caches.get(type);
+        if (cache == null) {
+            TypeCache created = new TypeCache(type, DEFAULT_SIZE);
+            cache = caches.putIfAbsent(type, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node {
+        private final Object key;
+        private Entry<?> entry;
+        private int queue;
+        private Node prev;
+        private Node next;
+
+        private Node(Object key, Entry<?> entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    /** Circular doubly linked list with a sentinel head; head.next is the least recently used node. */
+    private static final class Queue {
+        private final Node head = new Node(null, null);
+        private int size;
+
+        private Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        private void addLast(Node node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            size++;
+        }
+
+        private void unlink(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        private void moveToLast(Node node) {
+            unlink(node);
+            addLast(node);
+        }
+
+        private Node first() {
+            return head.next == head ? null : head.next;
+        }
+    }
+
+    private final class TypeCache {
+        private final Class<?> type;
+        private final Map<Object, Node> data = new HashMap<Object, Node>();
+        private final Queue window = new Queue();
+        private final Queue probation = new Queue();
+        private final Queue protect = new Queue();
+        private FrequencySketch sketch;
+        private int windowMax;
+        private int protectedMax;
+        private int mainMax;
+
+        private TypeCache(Class<?> type, int maxSize) {
+            this.type = type;
+            setMaxSize(maxSize);
+        }
+
+        private synchronized void setMaxSize(int maxSize) {
+            // 1% window, the rest split 20/80 between probation and protected
+            windowMax = Math.max(1, maxSize / 100);
+            mainMax = Math.max(0, maxSize - windowMax);
+            protectedMax = (int) (mainMax * 0.8);
+            if (sketch == null || sketch.capacity < maxSize) {
+                sketch = new FrequencySketch(maxSize);
+            }
+            while (window.size > windowMax) {
+                evictFromWindow();
+            }
+            while (protect.size > protectedMax) {
+                demote();
+            }
+            while (probation.size + protect.size > mainMax) {
+                evict(probation.size > 0 ? probation.first() : protect.first());
+                stats.recordEviction(type);
+            }
+        }
+
+        private synchronized Entry<?> get(Object key) {
+            sketch.increment(key);
+            Node node = data.get(key);
+            if (node == null) {
+                return null;
+            }
+            onAccess(node);
+            return node.entry;
+        }
+
+        private synchronized Entry<?> getQuietly(Object key) {
+            Node node = data.get(key);
+            return node == null ? null : node.entry;
+        }
+
+        private synchronized void put(Object key, Entry<?> entry) {
+            Node node = data.get(key);
+            if (node != null) {
+                node.entry = entry;
+                onAccess(node);
+                return;
+            }
+            sketch.increment(key);
+            node = new Node(key, entry);
+            node.queue = WINDOW;
+            data.put(key, node);
+            window.addLast(node);
+            while (window.size > windowMax) {
+                evictFromWindow();
+            }
+        }
+
+        private synchronized Entry<?> remove(Object key) {
+            Node node = data.get(key);
+            if (node == null) {
+                return null;
+            }
+            evict(node);
+            return node.entry;
+        }
+
+        private synchronized void removeIfExpired(Object key, long now) {
+            Node node = data.get(key);
+            if (node != null && ExpiryPurger.isExpired(node.entry, now)) {
+                evict(node);
+            }
+        }
+
+        private synchronized List<Object> keys() {
+            return new ArrayList<Object>(data.keySet());
+        }
+
+        private synchronized int size() {
+            return data.size();
+        }
+
+        private synchronized void clear() {
+            for (Node node : new ArrayList<Node>(data.values())) {
+                evict(node);
+            }
+        }
+
+        private void onAccess(Node node) {
+            switch (node.queue) {
+                case WINDOW:
+                    window.moveToLast(node);
+                    break;
+                case PROBATION:
+                    probation.unlink(node);
+                    node.queue = PROTECTED;
+                    protect.addLast(node);
+                    while (protect.size > protectedMax) {
+                        demote();
+                    }
+                    break;
+                case PROTECTED:
+                    protect.moveToLast(node);
+                    break;
+            }
+        }
+
+        private void demote() {
+            Node node = protect.first();
+            protect.unlink(node);
+            node.queue = PROBATION;
+            probation.addLast(node);
+        }
+
+        private void evictFromWindow() {
+            Node candidate = window.first();
+            window.unlink(candidate);
+            if (probation.size + protect.size < mainMax) {
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+                return;
+            }
+            Node victim = probation.size > 0 ? probation.first() : protect.first();
+            if (victim != null && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+            } else {
+                data.remove(candidate.key);
+            }
+            stats.recordEviction(type);
+        }
+
+        private void evict(Node node) {
+            switch (node.queue) {
+                case WINDOW:
+                    window.unlink(node);
+                    break;
+                case PROBATION:
+                    probation.unlink(node);
+                    break;
+                case PROTECTED:
+                    protect.unlink(node);
+                    break;
+            }
+            data.remove(node.key);
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters with four hash functions. Counters are halved once the number of
+     * increments reaches ten times the cache size, so the sketch favors recent popularity.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final int capacity;
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int capacity) {
+            this.capacity = capacity;
+            int length = 1;
+            while (length < Math.max(capacity, 16)) {
+                length <<= 1;
+            }
+            // each long holds sixteen 4-bit counters
+            this.table = new long[length];
+            this.tableMask = length - 1;
+            this.sampleSize = 10 * Math.max(capacity, 16);
+        }
+
+        private int frequency(Object key) {
+            int hash = rehash(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = offsetOf(hash, i);
+                int count = (int) ((table[index] >>> offset) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        private void increment(Object key) {
+            int hash = rehash(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = offsetOf(hash, i);
+                long mask = 0xfL << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int offsetOf(int hash, int i) {
+            // each hash function uses a different one of the sixteen counters in its slot
+            int start = (hash & 3) << 2;
+            return (start + i) << 2;
+        }
+
+        private static int rehash(int x) {
+            x = (int) (x * 0x31848bab);
+            x ^= x >>> 14;
+            return x;
+        }
+    }
+
+    private final class CollectionWorker<V> implements StashCollection.Worker<Object, V> {
+        private final Class<V> type;
+
+        private CollectionWorker(Class<V> type) {
+            this.type = type;
+        }
+
+        @NonNull @Override public Stash<V> getStash(@NonNull StashKey<?> stashKey) {
+            return handles.intern(type, stashKey.getKey(), stashFactory);
+        }
+
+        @NonNull @Override public Iterable<?> keys() {
+            TypeCache cache = caches.get(type);
+            return cache == null ? Collections.emptySet() : cache.keys();
+        }
+
+        @NonNull @Override public Iterable<KeyStash<Object, V>> getAll() {
+            final List<KeyStash<Object, V>> stashes = new ArrayList<KeyStash<Object, V>>();
+            for (Object key : keys()) {
+                stashes.add(KeyStash.<Object, V>create(handles.intern(type, key, stashFactory), key));
+            }
+            return stashes;
+        }
+
+        @Override public boolean removeAll() {
+            TypeCache cache = caches.get(type);
+            if (cache != null) {
+                for (Object key : cache.keys()) {
+                    purger.cancel(new TypedKey(type, key));
+                }
+                cache.clear();
+                return true;
+            }
+            return false;
+        }
+
+        @Override public boolean removeAll(Collection<StashKey<?>> stashKeys) {
+            TypeCache cache = caches.get(type);
+            boolean removed = false;
+            if (cache != null) {
+                for (StashKey<?> stashKey : stashKeys) {
+                    Object key = stashKey.getKey();
+                    if (cache.remove(key) != null) {
+                        purger.cancel(new TypedKey(type, key));
+                        removed = true;
+                    }
+                }
+            }
+            return removed;
+        }
+
+        @Override public int size() {
+            TypeCache cache = caches.get(type);
+            return cache == null ? 0 : cache.size();
+        }
+    }
+
+    private final class Worker<T> implements Stash.Worker<T> {
+        private final Class<T> type;
+        private final Object key;
+
+        private Worker(Class<T> type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public Entry<T> get() throws Exception {
+            TypeCache cache = caches.get(type);
+            Entry<T> entry = (cache == null) ? null : (Entry<T>) cache.get(key);
+            stats.recordGet(type, entry != null);
+            return entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public T put(@NonNull Entry<T> entry) throws Exception {
+            TypeCache cache = getOrCreateCache(type);
+            cache.put(key, entry);
+            stats.recordPut(type);
+            purger.schedule(new TypedKey(type, key), entry);
+            Entry<T> stored = (Entry<T>) cache.getQuietly(key);
+            return stored == null ? null : stored.getData();
+        }
+
+        @Override public boolean remove() throws Exception {
+            purger.cancel(new TypedKey(type, key));
+            TypeCache cache = caches.get(type);
+            return cache != null && cache.remove(key) != null;
+        }
+    }
+}
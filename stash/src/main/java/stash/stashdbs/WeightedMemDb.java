@@ -0,0 +1,547 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import stash.Entry;
+import stash.KeyStash;
+import stash.Stash;
+import stash.StashCollection;
+import stash.StashKey;
+import stash.internal.ExpiryPurger;
+import stash.internal.StashInterner;
+import stash.internal.StatsCounter;
+import stash.internal.TypedKey;
+
+/**
+ * A {@link MemDb.Worker} bounded by a single, process-wide weight budget (estimated bytes) instead of a per-type entry
+ * count. Each type may register its own {@link MemDb.Weigher}, and {@link #registerMaxWeight(Class, long)} sets an
+ * optional per-type sub-quota in the same weight units. {@link #registerMaxSize(Class, int)} caps the number of
+ * entries of a type, as it does for the count based workers.
+ * <p>
+ * <b>Register a weigher for every model type stored on its own or in collections.</b> The {@link #DEFAULT_WEIGHER}
+ * can't see inside other objects and charges them a flat {@link #DEFAULT_ENTRY_WEIGHT}, so a large model counts as
+ * 1 KB and the budget stops bounding memory.
+ */
+public final class WeightedMemDb implements MemDb.StatsWorker, MemDb.WeightedWorker {
+    /** The weight the {@link #DEFAULT_WEIGHER} charges for any object it can't estimate. */
+    public static final int DEFAULT_ENTRY_WEIGHT = 1024;
+    /**
+     * Estimates strings, boxed primitives and arrays from their length, an object array counting only its
+     * references. Collections and maps weigh their size times the estimate of their first element, or entry, assuming
+     * the others are alike. Every other object, however large, weighs {@link #DEFAULT_ENTRY_WEIGHT}.
+     */
+    public static final MemDb.Weigher<Object> DEFAULT_WEIGHER = new MemDb.Weigher<Object>() {
+        @Override public int weigh(@NonNull Object key, @NonNull Entry<Object> entry) {
+            Object data = entry.getData();
+            long weight;
+            if (data instanceof Collection) {
+                Collection<?> collection = (Collection<?>) data;
+                Iterator<?> it = collection.iterator();
+                long element = it.hasNext() ? estimate(it.next()) : 0;
+                weight = 16 + collection.size() * (4 + element);
+            } else if (data instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) data;
+                Iterator<? extends Map.Entry<?, ?>> it = map.entrySet().iterator();
+                long element = 0;
+                if (it.hasNext()) {
+                    Map.Entry<?, ?> first = it.next();
+                    element = estimate(first.getKey()) + estimate(first.getValue());
+                }
+                // a hash map node is about 32 bytes, plus its slot in the table
+                weight = 48 + map.size() * (36 + element);
+            } else {
+                weight = estimate(data);
+            }
+            return (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+    };
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<TypedKey, Node> lru = new LinkedHashMap<TypedKey, Node>(16, 0.75f, true);
+    private final Map<Class<?>, TypeCache> types = new HashMap<Class<?>, TypeCache>(4);
+    private final ConcurrentMap<Class<?>, MemDb.Weigher<?>> weighers;
+    private final MemDb.Weigher<Object> defaultWeigher;
+    private final ExpiryPurger<TypedKey> purger = new ExpiryPurger<TypedKey>(new ExpiryPurger.Purger<TypedKey>() {
+        @Override public void purge(@NonNull TypedKey typedKey, long now) {
+            synchronized (lock) {
+                TypeCache cache = types.get(typedKey.getType());
+                Node node = (cache == null) ? null : cache.peek(typedKey.getKey());
+                if (node != null && ExpiryPurger.isExpired(node.entry, now)) {
+                    cache.remove(typedKey.getKey());
+                }
+            }
+        }
+    });
+    private final StatsCounter stats = new StatsCounter();
+    private final StashInterner handles = new StashInterner();
+    private final StashInterner.Factory stashFactory = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return Stash.create(new Worker<T>(type, key));
+        }
+    };
+    private final long maxWeight;
+    private long weight;
+
+    private WeightedMemDb(Builder builder) {
+        this.maxWeight = builder.maxWeight;
+        this.defaultWeigher = builder.defaultWeigher;
+        this.weighers = new ConcurrentHashMap<Class<?>, MemDb.Weigher<?>>(builder.weighers);
+        for (Map.Entry<Class<?>, Long> quota : builder.quotas.entrySet()) {
+            types.put(quota.getKey(), new TypeCache(quota.getValue()));
+        }
+    }
+
+    /**
+     * Returns a weight budget that is {@code 1 / divisor} of the application's memory class.
+     */
+    public static long maxWeightForMemoryClass(@NonNull Context context, int divisor) {
+        if (divisor <= 0) {
+            throw new IllegalArgumentException("divisor must be positive");
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024L * 1024L / divisor;
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    public long weight() {
+        synchronized (lock) {
+            return weight;
+        }
+    }
+
+    public long weight(@NonNull Class<?> type) {
+        synchronized (lock) {
+            TypeCache cache = types.get(type);
+            return cache == null ? 0 : cache.weight;
+        }
+    }
+
+    @NonNull @Override public Map<Class<?>, CacheStats> stats() {
+        synchronized (lock) {
+            Map<Class<?>, Integer> sizes = new HashMap<Class<?>, Integer>(types.size());
+            for (Map.Entry<Class<?>, TypeCache> entry : types.entrySet()) {
+                sizes.put(entry.getKey(), entry.getValue().entries.size());
+            }
+            return stats.snapshot(sizes);
+        }
+    }
+
+    /** Weighs entries put from now on, entries already stored keep their weight. */
+    @Override public <T> void registerWeigher(@NonNull Class<T> type, @NonNull MemDb.Weigher<? super T> weigher) {
+        weighers.put(type, weigher);
+    }
+
+    /**
+     * Sets the sub-quota for {@code type}, in the same units returned by the registered {@link MemDb.Weigher}. A
+     * non-positive weight removes the sub-quota, leaving the type bounded only by the global budget.
+     */
+    public <T> void registerMaxWeight(@NonNull Class<T> type, long maxWeight) {
+        synchronized (lock) {
+            TypeCache cache = getOrCreateCache(type);
+            cache.quota = maxWeight <= 0 ? 0 : maxWeight;
+            cache.trim();
+        }
+    }
+
+    /**
+     * Caps the number of entries of {@code type}, on top of the weight budget. A non-positive size removes the cap.
+     */
+    @Override public <T> void registerMaxSize(@NonNull Class<T> type, int maxSize) {
+        synchronized (lock) {
+            TypeCache cache = getOrCreateCache(type);
+            cache.maxSize = maxSize <= 0 ? 0 : maxSize;
+            cache.trim();
+        }
+    }
+
+    @NonNull @Override public <V> StashCollection<Object, V> getCollection(@NonNull Class<V> type) {
+        return StashCollection.create(new CollectionWorker<V>(type));
+    }
+
+    @NonNull @Override public <V> Stash<V> getStash(@NonNull Class<V> type, @NonNull StashKey<?> stashKey) {
+        return handles.intern(type, stashKey.getKey(), stashFactory);
+    }
+
+    @NonNull @Override public Iterable<?> keys() {
+        synchronized (lock) {
+            Collection<Object> keys = new HashSet<Object>();
+            for (TypeCache cache : types.values()) {
+                keys.addAll(cache.entries.keySet());
+            }
+            return keys;
+        }
+    }
+
+    @Override public boolean removeAll() {
+        synchronized (lock) {
+            for (TypeCache cache : types.values()) {
+                cache.clear();
+            }
+        }
+        purger.clear();
+        return true;
+    }
+
+    @Override public boolean removeAll(@NonNull Collection<StashKey<?>> stashKeys) {
+        synchronized (lock) {
+            boolean removed = false;
+            for (Map.Entry<Class<?>, TypeCache> entry : types.entrySet()) {
+                TypeCache cache = entry.getValue();
+                for (StashKey<?> stashKey : stashKeys) {
+                    Object key = stashKey.getKey();
+                    if (cache.remove(key) != null) {
+                        purger.cancel(new TypedKey(entry.getKey(), key));
+                        removed = true;
+                    }
+                }
+            }
+            return removed;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> int weigh(Class<T> type, Object key, Entry<T> entry) {
+        MemDb.Weigher<T> weigher = (MemDb.Weigher<T>) weighers.get(type);
+        int weight = (weigher == null)
+                ? defaultWeigher.weigh(key, (Entry<Object>) entry)
+                : weigher.weigh(key, entry);
+        if (weight < 0) {
+            throw new IllegalStateException("Negative weight for " + type.getName() + ": " + weight);
+        }
+        return weight;
+    }
+
+    private static long estimate(Object data) {
+        if (data == null) {
+            return 0;
+        } else if (data instanceof CharSequence) {
+            return 40 + 2 * ((CharSequence) data).length();
+        } else if (data instanceof Number || data instanceof Boolean || data instanceof Character) {
+            return 16;
+        } else if (data.getClass().isArray()) {
+            return 16 + (long) Array.getLength(data) * elementSize(data.getClass().getComponentType());
+        }
+        return DEFAULT_ENTRY_WEIGHT;
+    }
+
+    private static int elementSize(Class<?> componentType) {
+        if (componentType == byte.class || componentType == boolean.class) {
+            return 1;
+        } else if (componentType == char.class || componentType == short.class) {
+            return 2;
+        } else if (componentType == long.class || componentType == double.class) {
+            return 8;
+        }
+        // int, float and references
+        return 4;
+    }
+
+    private TypeCache getOrCreateCache(Class<?> type) {
+        TypeCache cache = types.get(type);
+        if (cache == null) {
+            cache = new TypeCache(0);
+            types.put(type, cache);
+        }
+        return cache;
+    }
+
+    private void trimToMaxWeight() {
+        Iterator<Map.Entry<TypedKey, Node>> it = lru.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Map.Entry<TypedKey, Node> eldest = it.next();
+            TypedKey typedKey = eldest.getKey();
+            it.remove();
+            types.get(typedKey.getType()).unlink(typedKey.getKey(), eldest.getValue());
+            stats.recordEviction(typedKey.getType());
+        }
+    }
+
+    public static final class Builder {
+        private final Map<Class<?>, MemDb.Weigher<?>> weighers = new HashMap<Class<?>, MemDb.Weigher<?>>(4);
+        private final Map<Class<?>, Long> quotas = new HashMap<Class<?>, Long>(4);
+        private MemDb.Weigher<Object> defaultWeigher = DEFAULT_WEIGHER;
+        private long maxWeight;
+
+        public Builder(long maxWeight) {
+            if (maxWeight <= 0) {
+                throw new IllegalArgumentException("maxWeight must be positive");
+            }
+            this.maxWeight = maxWeight;
+        }
+
+        public Builder(@NonNull Context context, int divisor) {
+            this(maxWeightForMemoryClass(context, divisor));
+        }
+
+        public Builder defaultWeigher(@NonNull MemDb.Weigher<Object> weigher) {
+            this.defaultWeigher = weigher;
+            return this;
+        }
+
+        public <T> Builder weigher(@NonNull Class<T> type, @NonNull MemDb.Weigher<? super T> weigher) {
+            weighers.put(type, weigher);
+            return this;
+        }
+
+        public <T> Builder maxWeight(@NonNull Class<T> type, long maxWeight) {
+            quotas.put(type, maxWeight <= 0 ? 0 : maxWeight);
+            return this;
+        }
+
+        public WeightedMemDb build() {
+            return new WeightedMemDb(this);
+        }
+    }
+
+    private static final class Node {
+        private final TypedKey typedKey;
+        private final Entry<?> entry;
+        private final int weight;
+
+        private Node(TypedKey typedKey, Entry<?> entry, int weight) {
+            this.typedKey = typedKey;
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+
+    /** Entries of a single type, guarded by the outer lock. */
+    private final class TypeCache {
+        private final LinkedHashMap<Object, Node> entries = new LinkedHashMap<Object, Node>(8, 0.75f, true);
+        // mirrors entries, so the purger can look nodes up without promoting them
+        private final Map<Object, Node> index = new HashMap<Object, Node>(8);
+        private long quota;
+        private int maxSize;
+        private long weight;
+
+        private TypeCache(long quota) {
+            this.quota = quota;
+        }
+
+        private Node get(Object key) {
+            Node node = entries.get(key);
+            if (node != null) {
+                // touch global access order as well
+                lru.get(node.typedKey);
+            }
+            return node;
+        }
+
+        private Node peek(Object key) {
+            return index.get(key);
+        }
+
+        private void put(Node node) {
+            Node old = entries.put(node.typedKey.getKey(), node);
+            index.put(node.typedKey.getKey(), node);
+            lru.put(node.typedKey, node);
+            if (old != null) {
+                weight -= old.weight;
+                WeightedMemDb.this.weight -= old.weight;
+            }
+            weight += node.weight;
+            WeightedMemDb.this.weight += node.weight;
+        }
+
+        private Node remove(Object key) {
+            Node node = entries.get(key);
+            if (node != null) {
+                lru.remove(node.typedKey);
+                unlink(key, node);
+            }
+            return node;
+        }
+
+        private void unlink(Object key, Node node) {
+            entries.remove(key);
+            index.remove(key);
+            weight -= node.weight;
+            WeightedMemDb.this.weight -= node.weight;
+        }
+
+        private void trim() {
+            if (quota <= 0 && maxSize <= 0) {
+                return;
+            }
+            Iterator<Map.Entry<Object, Node>> it = entries.entrySet().iterator();
+            while (isOverLimit() && it.hasNext()) {
+                Node eldest = it.next().getValue();
+                it.remove();
+                index.remove(eldest.typedKey.getKey());
+                lru.remove(eldest.typedKey);
+                weight -= eldest.weight;
+                WeightedMemDb.this.weight -= eldest.weight;
+                stats.recordEviction(eldest.typedKey.getType());
+            }
+        }
+
+        private boolean isOverLimit() {
+            return (quota > 0 && weight > quota) || (maxSize > 0 && entries.size() > maxSize);
+        }
+
+        private void clear() {
+            for (Object key : new ArrayList<Object>(entries.keySet())) {
+                remove(key);
+            }
+        }
+
+        private List<Object> keys() {
+            return new ArrayList<Object>(entries.keySet());
+        }
+    }
+
+    private final class CollectionWorker<V> implements StashCollection.Worker<Object, V> {
+        private final Class<V> type;
+
+        private CollectionWorker(Class<V> type) {
+            this.type = type;
+        }
+
+        @NonNull @Override public Stash<V> getStash(@NonNull StashKey<?> stashKey) {
+            return handles.intern(type, stashKey.getKey(), stashFactory);
+        }
+
+        @NonNull @Override public Iterable<?> keys() {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                return cache == null ? Collections.emptySet() : cache.keys();
+            }
+        }
+
+        @NonNull @Override public Iterable<KeyStash<Object, V>> getAll() {
+            final List<KeyStash<Object, V>> stashes = new ArrayList<KeyStash<Object, V>>();
+            for (Object key : keys()) {
+                stashes.add(KeyStash.<Object, V>create(handles.intern(type, key, stashFactory), key));
+            }
+            return stashes;
+        }
+
+        @Override public boolean removeAll() {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                if (cache != null) {
+                    for (Object key : cache.keys()) {
+                        purger.cancel(new TypedKey(type, key));
+                    }
+                    cache.clear();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        @Override public boolean removeAll(Collection<StashKey<?>> stashKeys) {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                boolean removed = false;
+                if (cache != null) {
+                    for (StashKey<?> stashKey : stashKeys) {
+                        Object key = stashKey.getKey();
+                        if (cache.remove(key) != null) {
+                            purger.cancel(new TypedKey(type, key));
+                            removed = true;
+                        }
+                    }
+                }
+                return removed;
+            }
+        }
+
+        @Override public int size() {
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                return cache == null ? 0 : cache.entries.size();
+            }
+        }
+    }
+
+    private final class Worker<T> implements Stash.Worker<T> {
+        private final Class<T> type;
+        private final Object key;
+
+        private Worker(Class<T> type, Object key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public Entry<T> get() throws Exception {
+            final Node node;
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                node = (cache == null) ? null : cache.get(key);
+            }
+            stats.recordGet(type, node != null);
+            return node == null ? null : (Entry<T>) node.entry;
+        }
+
+        @Override public T put(@NonNull Entry<T> entry) throws Exception {
+            // weigh outside of the lock, weighers may walk large object graphs
+            final int entryWeight = weigh(type, key, entry);
+            final TypedKey typedKey = new TypedKey(type, key);
+            final boolean admitted;
+            stats.recordPut(type);
+            synchronized (lock) {
+                TypeCache cache = getOrCreateCache(type);
+                if (entryWeight > maxWeight || (cache.quota > 0 && entryWeight > cache.quota)) {
+                    // never admit an entry that would flush the entire budget
+                    cache.remove(key);
+                    admitted = false;
+                } else {
+                    cache.put(new Node(typedKey, entry, entryWeight));
+                    cache.trim();
+                    trimToMaxWeight();
+                    admitted = cache.entries.containsKey(key);
+                }
+            }
+            if (admitted) {
+                purger.schedule(typedKey, entry);
+                return entry.getData();
+            }
+            purger.cancel(typedKey);
+            return null;
+        }
+
+        @Override public boolean remove() throws Exception {
+            purger.cancel(new TypedKey(type, key));
+            synchronized (lock) {
+                TypeCache cache = types.get(type);
+                return cache != null && cache.remove(key) != null;
+            }
+        }
+    }
+}
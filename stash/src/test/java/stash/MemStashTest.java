@@ -25,6 +25,11 @@
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.Arrays;
+import java.util.List;
+
+import rx.observers.TestSubscriber;
+import stash.TestKeys.StringKey;
 import stash.internal.StashesImpl;
 import stash.stashdbs.MemDb;
 
@@ -72,6 +77,18 @@ public void memStashShouldReturnStashedData() throws Exception {
         Assert.assertEquals(val2, ret2);
     }
 
+    @Test
+    public void memStashShouldNotCopyImmutableEntries() throws Exception {
+        Stash<String> memStash = stringCollection.getStash(new StringKey("one"));
+        Entry<String> entry = new Entry.Builder<String>()
+                .setData("test1")
+                .build();
+        memStash.put(entry).asCallable().call();
+
+        Assert.assertSame(entry, memStash.get().asCallable().call());
+        Assert.assertSame(entry, Entry.Builder.copy(LazyEntry.cast(entry)));
+    }
+
     @Test
     public void memStashShouldRespectMaxSize() throws Exception {
         // set max size to one
@@ -109,15 +126,43 @@ public void memStashShouldRespectMaxSize() throws Exception {
         Assert.assertEquals(val2, ret2);
     }
 
-    private static final class StringKey implements StashKey<String> {
-        private final String key;
+    @Test
+    public void memStashShouldStreamCollectionElements() throws Exception {
+        Stash<Names> memStash = memDb.getStashCollection(Names.class).getStash(new StringKey("names"));
+        List<String> names = Arrays.asList("a", "b", "c");
+        memStash.put(new Names(names)).asCallable().call();
+
+        Assert.assertEquals("a", memStash.streamData("names", String.class).asObservable()
+                .take(1).toBlocking().single());
+        Assert.assertEquals(names, memStash.streamData("names", String.class).asObservable()
+                .toList().toBlocking().single());
+        Assert.assertEquals(Arrays.asList("z"), memStash.streamData("aliases", String.class).asObservable()
+                .toList().toBlocking().single());
+    }
+
+    @Test
+    public void memStashShouldStreamOnlyRequestedElements() throws Exception {
+        Stash<Names> memStash = memDb.getStashCollection(Names.class).getStash(new StringKey("requested"));
+        memStash.put(new Names(Arrays.asList("a", "b", "c"))).asCallable().call();
+
+        TestSubscriber<String> subscriber = new TestSubscriber<String>(1);
+        memStash.streamData("names", String.class).asObservable().subscribe(subscriber);
+        subscriber.assertValues("a");
+        subscriber.assertNotCompleted();
+
+        subscriber.requestMore(1);
+        subscriber.assertValues("a", "b");
+        subscriber.requestMore(2);
+        subscriber.assertValues("a", "b", "c");
+        subscriber.assertCompleted();
+    }
 
-        public StringKey(String key) {
-            this.key = key;
-        }
+    private static final class Names {
+        private final List<String> aliases = Arrays.asList("z");
+        private final List<String> names;
 
-        @Override public String getKey() {
-            return key;
+        private Names(List<String> names) {
+            this.names = names;
         }
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import rx.functions.Func1;
+import stash.TestKeys.StringKey;
+import stash.internal.StashesImpl;
+import stash.internal.Util;
+import stash.stashdbs.MemDb;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PagedStashTest {
+    private final MemDb memDb = StashesImpl.getInstance().memDb();
+    private final PagedStash.Builder<Names, String> builder = new PagedStash.Builder<Names, String>(
+            new Func1<List<String>, Names>() {
+                @Override public Names call(List<String> names) {
+                    return new Names(names);
+                }
+            })
+            .pageSize(2);
+
+    @Test
+    public void shouldReadWhatWasPut() throws Exception {
+        memDb.registerMaxSize(Names.class, 10);
+        PagedStash<Names, String> stash = builder.build(memDb, Names.class, new StringKey("read"));
+        Names names = new Names(Arrays.asList("a", "b", "c", "d", "e"));
+        stash.put(Util.list("meta"), names).asCallable().call();
+
+        Assert.assertEquals(names, stash.getData().asCallable().call());
+        Assert.assertEquals(Util.list("meta"), stash.getMetadata().asCallable().call().getData());
+        Assert.assertEquals(3, (int) stash.getPageCount().asCallable().call());
+        Assert.assertEquals(Arrays.asList("c", "d"), stash.getPage(1).asCallable().call());
+        Assert.assertEquals(Arrays.asList(new Names(Arrays.asList("c", "d")), new Names(Arrays.asList("e"))),
+                stash.getPages(1, 5).asObservable().toList().toBlocking().single());
+    }
+
+    @Test
+    public void shouldOnlyRewriteChangedPages() throws Exception {
+        memDb.registerMaxSize(Names.class, 10);
+        PagedStash<Names, String> stash = builder.build(memDb, Names.class, new StringKey("rewrite"));
+        stash.put(new Names(Arrays.asList("a", "b", "c", "d", "e"))).asCallable().call();
+        List<Names> before = stash.getPages(0, 3).asObservable().toList().toBlocking().single();
+
+        stash.put(new Names(Arrays.asList("a", "b", "x", "d", "e"))).asCallable().call();
+        List<Names> after = stash.getPages(0, 3).asObservable().toList().toBlocking().single();
+        Assert.assertSame(before.get(0), after.get(0));
+        Assert.assertNotSame(before.get(1), after.get(1));
+        Assert.assertSame(before.get(2), after.get(2));
+
+        // shrinking drops the pages past the end
+        stash.put(new Names(Arrays.asList("a", "b"))).asCallable().call();
+        Assert.assertEquals(1, (int) stash.getPageCount().asCallable().call());
+        Assert.assertNull(memDb.getStash(Names.class, new StringKey(PagedStash.pageKey("rewrite", 1))).getData().asCallable().call());
+    }
+
+    @Test
+    public void shouldReadAsMissingWhenPageIsEvicted() throws Exception {
+        memDb.registerMaxSize(Names.class, 10);
+        PagedStash<Names, String> stash = builder.build(memDb, Names.class, new StringKey("evict"));
+        stash.put(new Names(Arrays.asList("a", "b", "c"))).asCallable().call();
+        memDb.getStash(Names.class, new StringKey(PagedStash.pageKey("evict", 1))).remove().asCallable().call();
+
+        Assert.assertNull(stash.getData().asCallable().call());
+        Assert.assertEquals(0, (int) stash.getPageCount().asCallable().call());
+    }
+
+    @Test
+    public void shouldNotTouchKeysThatLookLikePages() throws Exception {
+        memDb.registerMaxSize(Names.class, 10);
+        Stash<Names> other = memDb.getStash(Names.class, new StringKey("keys#1"));
+        other.put(new Names(Arrays.asList("other"))).asCallable().call();
+
+        PagedStash<Names, String> stash = builder.build(memDb, Names.class, new StringKey("keys"));
+        stash.put(new Names(Arrays.asList("a", "b", "c"))).asCallable().call();
+        stash.remove().asCallable().call();
+        Assert.assertEquals(Arrays.asList("other"), other.getData().asCallable().call());
+    }
+
+    @Test
+    public void shouldMissWhenPageDoesNotMatchIndex() throws Exception {
+        memDb.registerMaxSize(Names.class, 10);
+        PagedStash<Names, String> stash = builder.build(memDb, Names.class, new StringKey("mixed"));
+        stash.put(new Names(Arrays.asList("a", "b", "c", "d"))).asCallable().call();
+        // a page written by another put whose index isn't stored yet
+        memDb.getStash(Names.class, new StringKey(PagedStash.pageKey("mixed", 1)))
+                .put(new Names(Arrays.asList("x", "y"))).asCallable().call();
+
+        Assert.assertEquals(Arrays.asList(new Names(Arrays.asList("a", "b"))),
+                stash.getPages(0, 2).asObservable().toList().toBlocking().single());
+        Assert.assertNull(stash.getData().asCallable().call());
+        // the index is dropped, so the next put writes the page again
+        Assert.assertEquals(0, (int) stash.getPageCount().asCallable().call());
+        stash.put(new Names(Arrays.asList("a", "b", "c", "d"))).asCallable().call();
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), stash.getData().asCallable().call());
+    }
+
+    @Test
+    public void shouldRequireVersionWithoutValueElements() throws Exception {
+        Func1<List<Object>, Things> factory = new Func1<List<Object>, Things>() {
+            @Override public Things call(List<Object> things) {
+                return new Things(things);
+            }
+        };
+        memDb.registerMaxSize(Things.class, 10);
+        Things things = new Things(Arrays.asList(new Object(), new Object()));
+        try {
+            new PagedStash.Builder<Things, Object>(factory)
+                    .build(memDb, Things.class, new StringKey("things"))
+                    .put(things).asCallable().call();
+            Assert.fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        PagedStash<Things, Object> stash = new PagedStash.Builder<Things, Object>(factory)
+                .version(new Func1<Object, Object>() {
+                    @Override public Object call(Object thing) {
+                        return "thing";
+                    }
+                })
+                .build(memDb, Things.class, new StringKey("things"));
+        stash.put(things).asCallable().call();
+        Assert.assertEquals(things, stash.getData().asCallable().call());
+    }
+
+    private static final class Things extends ArrayList<Object> {
+        private Things(Collection<Object> things) {
+            super(things);
+        }
+    }
+
+    private static final class Names extends ArrayList<String> {
+        private Names(Collection<String> names) {
+            super(names);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash;
+
+/**
+ * Keys shared by the tests of this module.
+ */
+public final class TestKeys {
+    private TestKeys() { throw new AssertionError("no instances"); }
+
+    public static final class StringKey implements StashKey<String> {
+        private final String key;
+
+        public StringKey(String key) {
+            this.key = key;
+        }
+
+        @Override public String getKey() {
+            return key;
+        }
+    }
+
+    public static final class IntKey implements StashKey<Integer> {
+        private final Integer key;
+
+        public IntKey(int key) {
+            this.key = key;
+        }
+
+        @Override public Integer getKey() {
+            return key;
+        }
+    }
+}
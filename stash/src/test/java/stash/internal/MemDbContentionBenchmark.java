@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import stash.ConsoleLogger;
+import stash.Stash;
+import stash.TestKeys.IntKey;
+import stash.stashdbs.ConcurrentMemDb;
+import stash.stashdbs.MemDb;
+
+/**
+ * Compares {@link MemDbImpl} with {@link ConcurrentMemDb} under a read-mostly, multi-type workload. Not part of the
+ * default test run, run it with {@code -Pbenchmarks}. Results are printed to the console.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MemDbContentionBenchmark {
+    private static final String TAG = MemDbContentionBenchmark.class.getSimpleName();
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20000;
+    private static final int KEYS = 64;
+    private static final Class<?>[] TYPES = {String.class, Integer.class, Long.class, Double.class};
+
+    @BeforeClass
+    public static void setUpLogger() {
+        StashLog.setLogger(new ConsoleLogger());
+    }
+
+    @AfterClass
+    public static void tearDownLogger() {
+        StashLog.setLogger(null);
+    }
+
+    @Test
+    public void compareContention() throws Exception {
+        // warm up both implementations before measuring
+        run(MemDbImpl.create());
+        run(MemDb.create(new ConcurrentMemDb()));
+
+        long synchronizedNanos = run(MemDbImpl.create());
+        long concurrentNanos = run(MemDb.create(new ConcurrentMemDb()));
+        StashLog.d(TAG, "MemDbImpl: %d ms, ConcurrentMemDb: %d ms (%d threads x %d ops)",
+                TimeUnit.NANOSECONDS.toMillis(synchronizedNanos),
+                TimeUnit.NANOSECONDS.toMillis(concurrentNanos),
+                THREADS, OPERATIONS);
+    }
+
+    private static long run(final MemDb memDb) throws Exception {
+        for (Class<?> type : TYPES) {
+            memDb.registerMaxSize(type, KEYS);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int seed = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override public Integer call() throws Exception {
+                        Random random = new Random(seed);
+                        start.await();
+                        int hits = 0;
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            @SuppressWarnings("unchecked")
+                            Class<Object> type = (Class<Object>) TYPES[random.nextInt(TYPES.length)];
+                            Stash<Object> stash = memDb.getStash(type, new IntKey(random.nextInt(KEYS)));
+                            if (random.nextInt(10) == 0) {
+                                stash.put(i).asCallable().call();
+                            } else if (stash.get().asCallable().call() != null) {
+                                hits++;
+                            }
+                        }
+                        return hits;
+                    }
+                }));
+            }
+            long startNanos = System.nanoTime();
+            start.countDown();
+            for (Future<Integer> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - startNanos;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import stash.StashCollection;
+import stash.TestKeys.StringKey;
+import stash.stashdbs.CacheStats;
+import stash.stashdbs.MemDb;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MemDbStatsTest {
+
+    @Test
+    public void shouldCountHitsMissesPutsAndEvictions() throws Exception {
+        MemDb memDb = MemDbImpl.create().registerMaxSize(String.class, 2);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+
+        strings.getStash(new StringKey("one")).put("a").asCallable().call();
+        strings.getStash(new StringKey("two")).put("b").asCallable().call();
+        Assert.assertEquals("a", strings.getData(new StringKey("one")).asCallable().call());
+        // evicts "two", the least recently used
+        strings.getStash(new StringKey("three")).put("c").asCallable().call();
+        Assert.assertNull(strings.getData(new StringKey("two")).asCallable().call());
+
+        CacheStats stats = memDb.stats().get(String.class);
+        Assert.assertEquals(1, stats.hitCount());
+        Assert.assertEquals(1, stats.missCount());
+        Assert.assertEquals(3, stats.putCount());
+        Assert.assertEquals(1, stats.evictionCount());
+        Assert.assertEquals(2, stats.estimatedSize());
+        Assert.assertEquals(0.5, stats.hitRate(), 0.0001);
+    }
+
+    @Test
+    public void shouldNotCountRemovalsAsEvictions() throws Exception {
+        MemDb memDb = MemDbImpl.create().registerMaxSize(String.class, 4);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+
+        strings.getStash(new StringKey("one")).put("a").asCallable().call();
+        strings.getStash(new StringKey("two")).put("b").asCallable().call();
+        strings.getStash(new StringKey("two")).remove().asCallable().call();
+        memDb.removeAll().asCallable().call();
+
+        CacheStats stats = memDb.stats().get(String.class);
+        Assert.assertEquals(0, stats.evictionCount());
+        Assert.assertEquals(0, stats.estimatedSize());
+
+        // shrinking drops the least recently used entries, which does count
+        strings.getStash(new StringKey("one")).put("a").asCallable().call();
+        strings.getStash(new StringKey("two")).put("b").asCallable().call();
+        memDb.registerMaxSize(String.class, 1);
+        stats = memDb.stats().get(String.class);
+        Assert.assertEquals(1, stats.evictionCount());
+        Assert.assertEquals(1, stats.estimatedSize());
+    }
+}
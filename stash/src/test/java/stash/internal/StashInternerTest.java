@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import android.support.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import stash.Stash;
+
+public class StashInternerTest {
+    private static final StashInterner.Factory FACTORY = new StashInterner.Factory() {
+        @NonNull @Override public <T> Stash<T> create(@NonNull Class<T> type, @NonNull Object key) {
+            return new Stash<T>(Stash.<T>empty()) {};
+        }
+    };
+
+    @Test
+    public void shouldReuseHandlePerTypeAndKey() {
+        StashInterner interner = new StashInterner();
+        Stash<String> first = interner.intern(String.class, "key", FACTORY);
+
+        Assert.assertSame(first, interner.intern(String.class, "key", FACTORY));
+        Assert.assertNotSame(first, interner.intern(String.class, "other", FACTORY));
+        Assert.assertNotSame(first, interner.intern(Integer.class, "key", FACTORY));
+    }
+}
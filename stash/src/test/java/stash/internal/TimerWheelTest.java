@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.internal;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import stash.Entry;
+
+public class TimerWheelTest {
+    private static final long START = 1000000L;
+
+    @Test
+    public void shouldExpireDueTimers() {
+        TimerWheel<String> wheel = new TimerWheel<String>(START);
+        wheel.schedule("short", START + TimeUnit.SECONDS.toMillis(5));
+        wheel.schedule("medium", START + TimeUnit.MINUTES.toMillis(10));
+        wheel.schedule("long", START + TimeUnit.DAYS.toMillis(3));
+        Assert.assertEquals(3, wheel.size());
+
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(START + TimeUnit.SECONDS.toMillis(1)));
+        Assert.assertEquals(Collections.singletonList("short"), wheel.advance(START + TimeUnit.SECONDS.toMillis(7)));
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(START + TimeUnit.MINUTES.toMillis(9)));
+        Assert.assertEquals(Collections.singletonList("medium"), wheel.advance(START + TimeUnit.MINUTES.toMillis(11)));
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(START + TimeUnit.DAYS.toMillis(2)));
+        Assert.assertEquals(Collections.singletonList("long"), wheel.advance(START + TimeUnit.DAYS.toMillis(4)));
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void shouldExpireEverythingAfterLongGap() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(START);
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule(i, START + TimeUnit.SECONDS.toMillis(i * 97));
+        }
+        List<Integer> expired = wheel.advance(START + TimeUnit.DAYS.toMillis(365));
+        Assert.assertEquals(100, new HashSet<Integer>(expired).size());
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void shouldKeepTimersAliveAtTheirExpirationTime() {
+        final long expiresAt = START + 5000;
+        Entry<String> entry = new Entry.Builder<String>()
+                .setExpiresAt(expiresAt)
+                .build();
+        // the same boundary as the max age predicates, now - lastUpdated > maxAge
+        Assert.assertFalse(ExpiryPurger.isExpired(entry, expiresAt));
+        Assert.assertTrue(ExpiryPurger.isExpired(entry, expiresAt + 1));
+
+        TimerWheel<String> wheel = new TimerWheel<String>(START);
+        wheel.schedule("a", expiresAt);
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(expiresAt));
+        Assert.assertEquals(1, wheel.size());
+        Assert.assertEquals(Arrays.asList("a"), wheel.advance(expiresAt + TimeUnit.SECONDS.toMillis(1)));
+    }
+
+    @Test
+    public void shouldRescheduleAndCancel() {
+        TimerWheel<String> wheel = new TimerWheel<String>(START);
+        wheel.schedule("a", START + 2000);
+        wheel.schedule("b", START + 2000);
+        wheel.schedule("a", START + TimeUnit.HOURS.toMillis(1));
+        Assert.assertTrue(wheel.cancel("b"));
+        Assert.assertFalse(wheel.cancel("b"));
+
+        Assert.assertEquals(Collections.emptyList(), wheel.advance(START + 5000));
+        Assert.assertEquals(Arrays.asList("a"), wheel.advance(START + TimeUnit.HOURS.toMillis(2)));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import stash.Stash;
+import stash.StashCollection;
+import stash.TestKeys.IntKey;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ConcurrentMemDbTest {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 4;
+
+    @Test
+    public void smallCachesShouldNotEvictBeforeFull() throws Exception {
+        MemDb memDb = MemDb.create(new ConcurrentMemDb());
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+        for (int i = 0; i < ConcurrentMemDb.DEFAULT_SIZE; i++) {
+            strings.getStash(new IntKey(i)).put("value" + i).asCallable().call();
+        }
+        for (int i = 0; i < ConcurrentMemDb.DEFAULT_SIZE; i++) {
+            Assert.assertEquals("value" + i, strings.getData(new IntKey(i)).asCallable().call());
+        }
+
+        // the least recently used entry goes first
+        strings.getStash(new IntKey(ConcurrentMemDb.DEFAULT_SIZE)).put("new").asCallable().call();
+        Assert.assertNull(strings.getData(new IntKey(0)).asCallable().call());
+        Assert.assertEquals(ConcurrentMemDb.DEFAULT_SIZE, (int) strings.size().asCallable().call());
+    }
+
+    @Test
+    public void registerMaxSizeShouldNotLosePuts() throws Exception {
+        final MemDb memDb = MemDb.create(new ConcurrentMemDb());
+        final int rounds = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        for (int i = 0; i < rounds; i++) {
+                            int key = thread * KEYS_PER_THREAD + i % KEYS_PER_THREAD;
+                            memDb.getStash(Integer.class, new IntKey(key)).put(i).asCallable().call();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            // flips between one and four segments, every key fits either way
+            for (int i = 0; i < 200; i++) {
+                memDb.registerMaxSize(Integer.class, (i % 2 == 0) ? 64 : ConcurrentMemDb.MIN_SEGMENT_SIZE);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int t = 0; t < THREADS; t++) {
+            for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                Stash<Integer> stash = memDb.getStash(Integer.class, new IntKey(t * KEYS_PER_THREAD + k));
+                // the last round that wrote this key
+                int last = rounds - KEYS_PER_THREAD + k;
+                Assert.assertEquals(last, (int) stash.getData().asCallable().call());
+            }
+        }
+    }
+
+    @Test
+    public void registerMaxSizeShouldBeSafeDuringReads() throws Exception {
+        final MemDb memDb = MemDb.create(new ConcurrentMemDb());
+        final Stash<String> stash = memDb.getStash(String.class, new IntKey(1));
+        stash.put("value").asCallable().call();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override public Integer call() throws Exception {
+                        int misses = 0;
+                        for (int i = 0; i < 1000; i++) {
+                            if (stash.getData().asCallable().call() == null) {
+                                misses++;
+                            }
+                        }
+                        return misses;
+                    }
+                }));
+            }
+            for (int i = 0; i < 100; i++) {
+                memDb.registerMaxSize(String.class, 1 + (i % 4) * ConcurrentMemDb.MIN_SEGMENT_SIZE);
+            }
+            // the only entry is never evicted, so a resize must not hide it from readers
+            for (Future<Integer> future : futures) {
+                Assert.assertEquals(0, (int) future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals("value", stash.getData().asCallable().call());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import stash.Stash;
+import stash.StashCollection;
+import stash.TestKeys.IntKey;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TinyLfuMemDbTest {
+    private static final int SIZE = 10;
+    private static final int HOT_KEYS = 5;
+
+    @Test
+    public void scanShouldNotFlushHotSet() throws Exception {
+        TinyLfuMemDb worker = new TinyLfuMemDb();
+        MemDb memDb = MemDb.create(worker);
+        memDb.registerMaxSize(String.class, SIZE);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+
+        // build up frequency for the hot set
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                Stash<String> stash = strings.getStash(new IntKey(i));
+                if (stash.getData().asCallable().call() == null) {
+                    stash.put("hot" + i).asCallable().call();
+                }
+            }
+        }
+
+        // one-off scan over many cold keys
+        for (int i = 100; i < 200; i++) {
+            strings.getStash(new IntKey(i)).put("cold" + i).asCallable().call();
+        }
+
+        for (int i = 0; i < HOT_KEYS; i++) {
+            Assert.assertEquals("hot" + i, strings.getData(new IntKey(i)).asCallable().call());
+        }
+        Assert.assertTrue(strings.size().asCallable().call() <= SIZE);
+    }
+
+    @Test
+    public void shouldReportHitRate() throws Exception {
+        TinyLfuMemDb tinyLfu = new TinyLfuMemDb();
+        double tinyLfuHitRate = replay(MemDb.create(tinyLfu));
+        double lruHitRate = replay(MemDb.create(new ConcurrentMemDb(1)));
+        Assert.assertEquals(tinyLfuHitRate, tinyLfu.hitRate(String.class), 0.0001);
+        Assert.assertTrue("TinyLFU " + tinyLfuHitRate + " <= LRU " + lruHitRate, tinyLfuHitRate > lruHitRate);
+    }
+
+    /** Replays a trace of repeated hot reads interleaved with scans and returns the observed hit rate. */
+    private static double replay(MemDb memDb) throws Exception {
+        memDb.registerMaxSize(String.class, SIZE);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+        int hits = 0;
+        int requests = 0;
+        int scanKey = 1000;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < HOT_KEYS; i++) {
+                requests++;
+                Stash<String> stash = strings.getStash(new IntKey(i));
+                if (stash.getData().asCallable().call() != null) {
+                    hits++;
+                } else {
+                    stash.put("hot").asCallable().call();
+                }
+            }
+            for (int i = 0; i < SIZE; i++) {
+                requests++;
+                Stash<String> stash = strings.getStash(new IntKey(scanKey++));
+                if (stash.getData().asCallable().call() != null) {
+                    hits++;
+                } else {
+                    stash.put("cold").asCallable().call();
+                }
+            }
+        }
+        return (double) hits / requests;
+    }
+}
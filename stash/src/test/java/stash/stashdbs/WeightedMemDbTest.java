@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Layne Mobile, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stash.stashdbs;
+
+import android.support.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import stash.Entry;
+import stash.StashCollection;
+import stash.TestKeys.StringKey;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WeightedMemDbTest {
+    private static final MemDb.Weigher<String> LENGTH_WEIGHER = new MemDb.Weigher<String>() {
+        @Override public int weigh(@NonNull Object key, @NonNull Entry<String> entry) {
+            return entry.getData().length();
+        }
+    };
+
+    @Test
+    public void shouldEvictByGlobalWeight() throws Exception {
+        WeightedMemDb worker = new WeightedMemDb.Builder(10)
+                .weigher(String.class, LENGTH_WEIGHER)
+                .build();
+        StashCollection<Object, String> strings = MemDb.create(worker).getStashCollection(String.class);
+
+        strings.getStash(new StringKey("one")).put("aaaa").asCallable().call();
+        strings.getStash(new StringKey("two")).put("bbbb").asCallable().call();
+        Assert.assertEquals(8, worker.weight());
+
+        // touch "one" so "two" becomes the eldest
+        Assert.assertEquals("aaaa", strings.getData(new StringKey("one")).asCallable().call());
+        strings.getStash(new StringKey("three")).put("cccc").asCallable().call();
+
+        Assert.assertEquals(8, worker.weight());
+        Assert.assertNull(strings.getData(new StringKey("two")).asCallable().call());
+        Assert.assertEquals("aaaa", strings.getData(new StringKey("one")).asCallable().call());
+        Assert.assertEquals("cccc", strings.getData(new StringKey("three")).asCallable().call());
+    }
+
+    @Test
+    public void shouldRespectTypeQuota() throws Exception {
+        WeightedMemDb worker = new WeightedMemDb.Builder(100)
+                .weigher(String.class, LENGTH_WEIGHER)
+                .maxWeight(String.class, 5)
+                .build();
+        MemDb memDb = MemDb.create(worker);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+
+        strings.getStash(new StringKey("one")).put("aaa").asCallable().call();
+        strings.getStash(new StringKey("two")).put("bbb").asCallable().call();
+        Assert.assertEquals(3, worker.weight(String.class));
+        Assert.assertNull(strings.getData(new StringKey("one")).asCallable().call());
+
+        // entries heavier than the quota are never admitted
+        Assert.assertNull(strings.getStash(new StringKey("big")).put("bbbbbbbb").asCallable().call());
+        Assert.assertEquals(1, strings.size().asCallable().call().intValue());
+
+        worker.registerMaxWeight(String.class, 2);
+        Assert.assertEquals(0, worker.weight());
+    }
+
+    @Test
+    public void shouldCapTypeByCount() throws Exception {
+        WeightedMemDb worker = new WeightedMemDb.Builder(100)
+                .weigher(String.class, LENGTH_WEIGHER)
+                .build();
+        MemDb memDb = MemDb.create(worker).registerMaxSize(String.class, 1);
+        StashCollection<Object, String> strings = memDb.getStashCollection(String.class);
+
+        // the size is an entry count like in the other workers, not a weight
+        strings.getStash(new StringKey("one")).put("aaa").asCallable().call();
+        strings.getStash(new StringKey("two")).put("bbb").asCallable().call();
+        Assert.assertEquals(1, strings.size().asCallable().call().intValue());
+        Assert.assertEquals("bbb", strings.getData(new StringKey("two")).asCallable().call());
+        Assert.assertEquals(3, worker.weight());
+    }
+
+    @Test
+    public void defaultWeigherShouldEstimateArrays() throws Exception {
+        Assert.assertEquals(16 + 100, defaultWeight(new byte[100]));
+        Assert.assertEquals(16 + 400, defaultWeight(new int[100]));
+        Assert.assertEquals(16 + 800, defaultWeight(new long[100]));
+        Assert.assertEquals(40 + 2 * 4, defaultWeight("abcd"));
+        Assert.assertEquals(16, defaultWeight(42L));
+        Assert.assertEquals(WeightedMemDb.DEFAULT_ENTRY_WEIGHT, defaultWeight(new Object()));
+    }
+
+    @Test
+    public void defaultWeigherShouldEstimateCollections() throws Exception {
+        Assert.assertEquals(16, defaultWeight(new ArrayList<Object>()));
+        Assert.assertEquals(16 + 3 * (4 + 40 + 2 * 4), defaultWeight(Arrays.asList("abcd", "efgh", "ijkl")));
+        Assert.assertEquals(16 + 100 * (4 + WeightedMemDb.DEFAULT_ENTRY_WEIGHT),
+                defaultWeight(Collections.nCopies(100, new Object())));
+        Assert.assertEquals(48 + 36 + (40 + 2 * 3) + 16, defaultWeight(Collections.singletonMap("key", 1L)));
+    }
+
+    private static int defaultWeight(Object data) {
+        return WeightedMemDb.DEFAULT_WEIGHER.weigh("key", new Entry.Builder<Object>().setData(data).build());
+    }
+}